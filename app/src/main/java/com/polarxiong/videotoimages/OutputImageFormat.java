@@ -9,6 +9,10 @@ public enum OutputImageFormat {
     I420("I420"),
     NV21("NV21"),
     JPEG("JPEG"),
+    /**
+     * All frames encoded into one frames.mp4 by {@link com.wrlus.virtcam.utils.FrameRecorder}.
+     */
+    MP4("MP4"),
     RAW("RAW");
 
     private final String friendlyName;
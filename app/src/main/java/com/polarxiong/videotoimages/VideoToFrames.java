@@ -10,11 +10,15 @@ import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.util.Log;
 
+import com.wrlus.virtcam.utils.FramePool;
+import com.wrlus.virtcam.utils.FrameRecorder;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 /**
  * Created by zhantong on 16/5/12.
@@ -23,21 +27,29 @@ public class VideoToFrames implements Runnable {
     private static final String TAG = "VideoToFrames";
     private static final boolean VERBOSE = false;
     private static final long DEFAULT_TIMEOUT_US = 10000;
-    private static final int COLOR_FormatI420 = 1;
-    private static final int COLOR_FormatNV21 = 2;
+    public static final int COLOR_FormatI420 = 1;
+    public static final int COLOR_FormatNV21 = 2;
+    /**
+     * Longest wait for the MP4 encoder per frame before the frame is dropped.
+     */
+    private static final long RECORD_TIMEOUT_MS = 500;
     private OutputImageFormat imageFormat;
     private String outputDir;
+    private int outputWidth = 0;
+    private int outputHeight = 0;
     private boolean stopDecode = false;
 
     private String videoFilePath;
     private Thread childThread;
 
     private Callback callback;
+    private FrameRecorder recorder;
 
     public interface Callback {
         default void onFinishDecode() {}
         default void onDecodeFrameToFile(int index, String fileName) {}
         default void onDecodeFrameToMemory(int index, Image image) {}
+        default void onDecodeFailed(Exception e) {}
     }
 
     public void setCallback(Callback callback) {
@@ -57,6 +69,14 @@ public class VideoToFrames implements Runnable {
         this.imageFormat = imageFormat;
     }
 
+    /**
+     * Save frames decimated to width x height (even), 0 keeps the video size.
+     */
+    public void setOutputSize(int width, int height) {
+        this.outputWidth = width;
+        this.outputHeight = height;
+    }
+
     public void stopDecode() {
         stopDecode = true;
     }
@@ -69,6 +89,11 @@ public class VideoToFrames implements Runnable {
         }
     }
 
+    public void decode(String videoFilePath, Executor executor) {
+        this.videoFilePath = videoFilePath;
+        executor.execute(this);
+    }
+
     public void run() {
         videoDecode(videoFilePath);
     }
@@ -97,9 +122,16 @@ public class VideoToFrames implements Runnable {
             }
             decodeFramesToImage(decoder, extractor, mediaFormat);
             decoder.stop();
-        } catch (IOException e) {
-            Log.e(TAG, "IOException", e);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "videoDecode failed", e);
+            if (callback != null) {
+                callback.onDecodeFailed(e);
+            }
         } finally {
+            if (recorder != null) {
+                recorder.stop();
+                recorder = null;
+            }
             if (decoder != null) {
                 decoder.stop();
                 decoder.release();
@@ -125,8 +157,10 @@ public class VideoToFrames implements Runnable {
         boolean sawOutputEOS = false;
         decoder.configure(mediaFormat, null, null, 0);
         decoder.start();
-        final int width = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
-        final int height = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        final int width = outputWidth > 0 ? outputWidth :
+                mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
+        final int height = outputHeight > 0 ? outputHeight :
+                mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
         int frameCount = 0;
         while (!sawOutputEOS && !stopDecode) {
             if (!sawInputEOS) {
@@ -159,18 +193,24 @@ public class VideoToFrames implements Runnable {
                             case I420:
                                 fileName = outputDir + String.format(Locale.getDefault(),
                                         "frame_%05d_I420_%dx%d.yuv", frameCount, width, height);
-                                dumpFile(fileName, getDataFromImage(image, COLOR_FormatI420));
+                                dumpImage(fileName, image, COLOR_FormatI420,
+                                        outputWidth, outputHeight);
                                 break;
                             case NV21:
                                 fileName = outputDir + String.format(Locale.getDefault(),
                                         "frame_%05d_NV21_%dx%d.yuv", frameCount, width, height);
-                                dumpFile(fileName, getDataFromImage(image, COLOR_FormatNV21));
+                                dumpImage(fileName, image, COLOR_FormatNV21,
+                                        outputWidth, outputHeight);
                                 break;
                             case JPEG:
                                 fileName = outputDir + String.format(Locale.getDefault(),
                                         "frame_%05d.jpg", frameCount);
                                 compressToJpeg(fileName, image);
                                 break;
+                            case MP4:
+                                fileName = outputDir + "frames.mp4";
+                                recordFrame(fileName, image, info.presentationTimeUs);
+                                break;
                         }
                         if (callback != null) {
                             callback.onDecodeFrameToMemory(frameCount, image);
@@ -214,19 +254,107 @@ public class VideoToFrames implements Runnable {
     }
 
     public static byte[] getDataFromImage(Image image, int colorFormat) {
+        byte[] data = new byte[getDataSize(image)];
+        getDataFromImage(image, colorFormat, data);
+        return data;
+    }
+
+    /**
+     * Copy image data into a pooled slot, the caller releases it.
+     */
+    public static FramePool.Slot acquireDataFromImage(Image image, int colorFormat) {
+        return acquireDataFromImage(image, colorFormat, 0, 0);
+    }
+
+    /**
+     * Copy image data decimated to width x height into a pooled slot, 0 keeps the crop size.
+     */
+    public static FramePool.Slot acquireDataFromImage(Image image, int colorFormat,
+                                                      int width, int height) {
+        FramePool.Slot slot = FramePool.acquire(width > 0 ?
+                width * height * 3 / 2 : getDataSize(image));
+        try {
+            if (width > 0) {
+                getDataFromImage(image, colorFormat, slot.array(), width, height);
+            } else {
+                getDataFromImage(image, colorFormat, slot.array());
+            }
+        } catch (RuntimeException e) {
+            slot.release();
+            throw e;
+        }
+        return slot;
+    }
+
+    public static int getDataSize(Image image) {
+        Rect crop = image.getCropRect();
+        return crop.width() * crop.height() * ImageFormat.getBitsPerPixel(image.getFormat()) / 8;
+    }
+
+    /**
+     * Like {@link #getDataFromImage(Image, int, byte[])} decimated to width x height (even)
+     * by picking the nearest pixel, so the cost follows the output size and not the image size.
+     */
+    public static void getDataFromImage(Image image, int colorFormat, byte[] data,
+                                        int width, int height) {
+        Rect crop = image.getCropRect();
+        if (width == crop.width() && height == crop.height()) {
+            getDataFromImage(image, colorFormat, data);
+            return;
+        }
+        checkFormats(image, colorFormat);
+        Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < planes.length; i++) {
+            int channelOffset;
+            int outputStride;
+            if (i == 0) {
+                channelOffset = 0;
+                outputStride = 1;
+            } else if (colorFormat == COLOR_FormatI420) {
+                channelOffset = i == 1 ? width * height : width * height * 5 / 4;
+                outputStride = 1;
+            } else {
+                // NV21 interleaves V before U.
+                channelOffset = i == 1 ? width * height + 1 : width * height;
+                outputStride = 2;
+            }
+            ByteBuffer buffer = planes[i].getBuffer();
+            int rowStride = planes[i].getRowStride();
+            int pixelStride = planes[i].getPixelStride();
+            int shift = (i == 0) ? 0 : 1;
+            int w = width >> shift;
+            int h = height >> shift;
+            int srcWidth = crop.width() >> shift;
+            int srcHeight = crop.height() >> shift;
+            int srcLeft = (crop.left >> shift) * pixelStride;
+            int srcTop = crop.top >> shift;
+            for (int row = 0; row < h; row++) {
+                int srcRow = (srcTop + row * srcHeight / h) * rowStride + srcLeft;
+                for (int col = 0; col < w; col++) {
+                    data[channelOffset] = buffer.get(srcRow + col * srcWidth / w * pixelStride);
+                    channelOffset += outputStride;
+                }
+            }
+        }
+    }
+
+    private static void checkFormats(Image image, int colorFormat) {
         if (colorFormat != COLOR_FormatI420 && colorFormat != COLOR_FormatNV21) {
             throw new IllegalArgumentException("only support COLOR_FormatI420 " + "and COLOR_FormatNV21");
         }
         if (!isImageFormatSupported(image)) {
             throw new RuntimeException("can't convert Image to byte array, format " + image.getFormat());
         }
+    }
+
+    public static void getDataFromImage(Image image, int colorFormat, byte[] data) {
+        checkFormats(image, colorFormat);
         Rect crop = image.getCropRect();
-        int format = image.getFormat();
         int width = crop.width();
         int height = crop.height();
         Image.Plane[] planes = image.getPlanes();
-        byte[] data = new byte[width * height * ImageFormat.getBitsPerPixel(format) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
+        FramePool.Slot rowSlot = FramePool.acquire(planes[0].getRowStride());
+        byte[] rowData = rowSlot.array();
         if (VERBOSE) Log.v(TAG, "get data from " + planes.length + " planes");
         int channelOffset = 0;
         int outputStride = 1;
@@ -287,10 +415,24 @@ public class VideoToFrames implements Runnable {
             }
             if (VERBOSE) Log.v(TAG, "Finished reading data from plane " + i);
         }
-        return data;
+        rowSlot.release();
+    }
+
+    public static void dumpImage(String fileName, Image image, int colorFormat) {
+        dumpImage(fileName, image, colorFormat, 0, 0);
+    }
+
+    /**
+     * Dump image data decimated to width x height, 0 keeps the crop size.
+     */
+    public static void dumpImage(String fileName, Image image, int colorFormat,
+                                 int width, int height) {
+        FramePool.Slot slot = acquireDataFromImage(image, colorFormat, width, height);
+        dumpFile(fileName, slot.array());
+        slot.release();
     }
 
-    private static void dumpFile(String fileName, byte[] data) {
+    public static void dumpFile(String fileName, byte[] data) {
         FileOutputStream outStream;
         try {
             outStream = new FileOutputStream(fileName);
@@ -301,6 +443,18 @@ public class VideoToFrames implements Runnable {
         }
     }
 
+    private void recordFrame(String fileName, Image image, long presentationTimeUs) {
+        Rect rect = getOutputRect(image);
+        if (recorder == null) {
+            recorder = FrameRecorder.start(new File(fileName), rect.width(), rect.height());
+        }
+        // Decoding is not real time, wait for the encoder instead of dropping frames.
+        FramePool.Slot slot = acquireDataFromImage(image, COLOR_FormatNV21,
+                outputWidth, outputHeight);
+        recorder.offer(slot.array(), presentationTimeUs, RECORD_TIMEOUT_MS);
+        slot.release();
+    }
+
     private void compressToJpeg(String fileName, Image image) {
         FileOutputStream outStream;
         try {
@@ -308,8 +462,19 @@ public class VideoToFrames implements Runnable {
         } catch (IOException ioe) {
             throw new RuntimeException("Unable to create output file " + fileName, ioe);
         }
-        Rect rect = image.getCropRect();
-        YuvImage yuvImage = new YuvImage(getDataFromImage(image, COLOR_FormatNV21), ImageFormat.NV21, rect.width(), rect.height(), null);
+        Rect rect = getOutputRect(image);
+        FramePool.Slot slot = acquireDataFromImage(image, COLOR_FormatNV21,
+                outputWidth, outputHeight);
+        YuvImage yuvImage = new YuvImage(slot.array(), ImageFormat.NV21, rect.width(), rect.height(), null);
         yuvImage.compressToJpeg(rect, 100, outStream);
+        slot.release();
+    }
+
+    private Rect getOutputRect(Image image) {
+        if (outputWidth > 0) {
+            return new Rect(0, 0, outputWidth, outputHeight);
+        }
+        Rect crop = image.getCropRect();
+        return new Rect(0, 0, crop.width(), crop.height());
     }
 }
\ No newline at end of file
@@ -1,9 +1,7 @@
 package com.wrlus.virtcam;
 
-import com.wrlus.virtcam.hook.LegacyCameraHooker;
-import com.wrlus.virtcam.hook.Camera2Hooker;
+import com.wrlus.virtcam.hook.HookInstaller;
 import com.wrlus.virtcam.utils.Config;
-import com.wrlus.xposed.framework.HookInterface;
 
 import java.io.File;
 
@@ -17,16 +15,17 @@ public class VirtCameraImpl implements IXposedHookLoadPackage {
 
     @Override
     public void handleLoadPackage(XC_LoadPackage.LoadPackageParam loadPackageParam) {
+        if (!Config.isHookPackage(loadPackageParam.packageName)) {
+            return;
+        }
         // Base file is internal or external private storage dir.
         File baseFile = new File(Config.baseStorage, loadPackageParam.packageName);
 
-        if (Config.enableCamera2Hook) {
-            HookInterface hooker = new Camera2Hooker(baseFile);
-            hooker.onHookPackage(loadPackageParam);
-        }
-        if (Config.enableLegacyCameraHook) {
-            HookInterface hooker = new LegacyCameraHooker(baseFile);
-            hooker.onHookPackage(loadPackageParam);
+        HookInstaller installer = new HookInstaller(loadPackageParam, baseFile);
+        if (Config.enableLazyHook) {
+            installer.installLazy();
+        } else {
+            installer.installEager();
         }
     }
 }
@@ -0,0 +1,122 @@
+package com.wrlus.virtcam.decode;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.wrlus.virtcam.utils.Config;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Module-owned threads for extractor, codec, conversion and player work, so none of it runs
+ * on the app's camera or main thread.
+ * <p>
+ * Streaming work (codec callbacks, frame ticks, player events) runs on a pool of named
+ * HandlerThreads. Each user leases a Handler on the least loaded thread and returns it when
+ * done. Handlers are per lease, so removeCallbacksAndMessages(null) never touches other
+ * users' messages. Messages posted there must not block.
+ * <p>
+ * One-shot blocking work (pre-decode, sample loading, JPEG encode) runs on a separate bounded
+ * thread pool, so live streams never wait behind it.
+ */
+public class DecodeExecutor {
+    private static final long BLOCKING_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static HandlerThread[] threads;
+    private static int[] loads;
+    private static ThreadPoolExecutor blockingExecutor;
+
+    private static int defaultThreadCount() {
+        return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    private static synchronized void ensureStarted() {
+        if (threads != null) return;
+        int count = Config.decodeThreadCount > 0 ? Config.decodeThreadCount :
+                defaultThreadCount();
+        threads = new HandlerThread[count];
+        loads = new int[count];
+        for (int i = 0; i < count; i++) {
+            threads[i] = new HandlerThread("VirtCam-decode-" + i, Config.decodeThreadPriority);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Lease a handler on the least loaded pool thread, return it with {@link #release}.
+     */
+    public static Handler obtainHandler() {
+        return new Handler(lease(1));
+    }
+
+    public static void release(Handler handler) {
+        unlease(handler.getLooper(), 1);
+    }
+
+    /**
+     * Run a one-shot, possibly long blocking task on the blocking pool.
+     */
+    public static void execute(Runnable task) {
+        executor().execute(task);
+    }
+
+    /**
+     * Threads of the blocking pool, tasks beyond it wait in queue.
+     */
+    public static int getBlockingThreadCount() {
+        return ((ThreadPoolExecutor) executor()).getMaximumPoolSize();
+    }
+
+    /**
+     * Executor of the blocking pool.
+     */
+    public static synchronized Executor executor() {
+        if (blockingExecutor != null) return blockingExecutor;
+        int count = Config.decodeBlockingThreadCount > 0 ? Config.decodeBlockingThreadCount :
+                defaultThreadCount();
+        blockingExecutor = new ThreadPoolExecutor(count, count,
+                BLOCKING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Config.decodeBlockingThreadPriority);
+                        runnable.run();
+                    }
+                }, "VirtCam-blocking-" + index.getAndIncrement());
+            }
+        });
+        // Idle threads exit, pre-decode and captures are rare.
+        blockingExecutor.allowCoreThreadTimeOut(true);
+        return blockingExecutor;
+    }
+
+    private static synchronized Looper lease(int weight) {
+        ensureStarted();
+        int best = 0;
+        for (int i = 1; i < threads.length; i++) {
+            if (loads[i] < loads[best]) best = i;
+        }
+        loads[best] += weight;
+        return threads[best].getLooper();
+    }
+
+    private static synchronized void unlease(Looper looper, int weight) {
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i].getLooper() == looper) {
+                loads[i] = Math.max(0, loads[i] - weight);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.wrlus.virtcam.decode;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decode of one source + variant. State transitions are CAS driven:
+ * NOT_START -> DECODING -> READY / FAILED, only the caller winning
+ * {@link #tryStart()} runs the decode. Decoded frames are published once
+ * when the job becomes READY, readers never take a lock. A decode which is not wanted any
+ * more can be cancelled, the decoder notices and fails the job, so the next request for
+ * it decodes again.
+ */
+public class DecodeJob {
+    public enum State {
+        NOT_START,
+        DECODING,
+        READY,
+        FAILED,
+    }
+
+    public interface Listener {
+        void onDecodeJobFinished(DecodeJob job);
+    }
+
+    private final String key;
+    private final AtomicReference<State> state = new AtomicReference<>(State.NOT_START);
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile String[] frames;
+    private volatile boolean cancelled = false;
+    private final AtomicInteger users = new AtomicInteger();
+
+    DecodeJob(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public boolean isReady() {
+        return state.get() == State.READY;
+    }
+
+    /**
+     * @return true if the caller owns the decode and must call finish or fail.
+     */
+    public boolean tryStart() {
+        return state.compareAndSet(State.NOT_START, State.DECODING);
+    }
+
+    public void finish(List<String> decodedFrames) {
+        frames = decodedFrames.toArray(new String[0]);
+        if (state.compareAndSet(State.DECODING, State.READY)) {
+            onFinished();
+        }
+    }
+
+    public void fail() {
+        if (state.compareAndSet(State.DECODING, State.FAILED)) {
+            onFinished();
+        }
+    }
+
+    /**
+     * Ask the decoder to stop, it fails the job once it notices. Frames of a job which is
+     * READY already stay.
+     */
+    public void cancel() {
+        if (state.get() == State.DECODING) {
+            cancelled = true;
+        }
+    }
+
+    void retain() {
+        users.incrementAndGet();
+    }
+
+    /**
+     * @return users left, counted by {@link DecodeJobRegistry}.
+     */
+    int release() {
+        return users.decrementAndGet();
+    }
+
+    /**
+     * Polled by the decoder between frames.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Decoded frame files, null until the job is READY.
+     */
+    public String[] getFrames() {
+        return isReady() ? frames : null;
+    }
+
+    /**
+     * Notify listener once the job is READY or FAILED, immediately if it already is.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        State current = state.get();
+        if ((current == State.READY || current == State.FAILED) && listeners.remove(listener)) {
+            listener.onDecodeJobFinished(this);
+        }
+    }
+
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    private void onFinished() {
+        finished.countDown();
+        for (Listener listener : listeners) {
+            // Remove first so a listener racing in addListener is notified exactly once.
+            if (listeners.remove(listener)) {
+                listener.onDecodeJobFinished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.wrlus.virtcam.decode;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide registry of decode jobs keyed by source + variant,
+ * so that every source is decoded at most once whoever asks for it.
+ * Every obtain counts as a user of the job, a job stays registered until all users which
+ * release it did so. Users which never release keep it for the process.
+ */
+public class DecodeJobRegistry {
+    private static final ConcurrentHashMap<String, DecodeJob> jobs = new ConcurrentHashMap<>();
+
+    public static String key(File source, String variant) {
+        // Include size and mtime so a replaced video gets a new job.
+        return source.getAbsolutePath() + ':' + source.length() + ':' +
+                source.lastModified() + '#' + variant;
+    }
+
+    /**
+     * Hex SHA-1 of a job key, short enough for a file name and unique for every key.
+     */
+    public static String hashKey(String key) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Get the job of source + variant, a failed job is replaced so it can be retried.
+     */
+    public static DecodeJob obtain(File source, String variant) {
+        return jobs.compute(key(source, variant), (key, job) -> {
+            if (job == null || job.getState() == DecodeJob.State.FAILED) {
+                job = new DecodeJob(key);
+            }
+            job.retain();
+            return job;
+        });
+    }
+
+    public static DecodeJob get(File source, String variant) {
+        return jobs.get(key(source, variant));
+    }
+
+    public static boolean contains(String key) {
+        return jobs.containsKey(key);
+    }
+
+    /**
+     * Drop one user of a job obtained before.
+     *
+     * @return true if it was the last one and the job left the registry, its frames can
+     * be deleted.
+     */
+    public static boolean release(DecodeJob job) {
+        boolean[] removed = new boolean[1];
+        jobs.computeIfPresent(job.getKey(), (key, current) -> {
+            if (current != job || job.release() > 0) {
+                return current;
+            }
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public static void remove(DecodeJob job) {
+        jobs.remove(job.getKey(), job);
+    }
+}
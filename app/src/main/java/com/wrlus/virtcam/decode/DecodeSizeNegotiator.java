@@ -0,0 +1,51 @@
+package com.wrlus.virtcam.decode;
+
+import com.wrlus.virtcam.utils.Config;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide record of the sizes apps configured for the outputs we feed, so frames are
+ * decoded at the size they are consumed at instead of the source size.
+ * <p>
+ * The decode size keeps the source aspect ratio and is the smallest one covering every
+ * consumer, the source is never scaled up. Scaling down only pays off for much smaller
+ * consumers, sources at most {@link #MIN_GAIN} times larger in area are decoded as they are.
+ */
+public class DecodeSizeNegotiator {
+    private static final float MIN_GAIN = 1.5f;
+    private static final ConcurrentHashMap<Object, int[]> consumers = new ConcurrentHashMap<>();
+
+    /**
+     * Add or update the size of a consumer, e.g. an app output surface.
+     */
+    public static void addConsumer(Object consumer, int width, int height) {
+        if (width <= 0 || height <= 0) return;
+        consumers.put(consumer, new int[]{width, height});
+    }
+
+    public static void removeConsumer(Object consumer) {
+        consumers.remove(consumer);
+    }
+
+    /**
+     * Size to decode a source of sourceWidth x sourceHeight at for the current consumers,
+     * the source size if there are none.
+     */
+    public static void getDecodeSize(int sourceWidth, int sourceHeight, int[] size) {
+        float scale = 0;
+        for (int[] consumer : consumers.values()) {
+            scale = Math.max(scale, Math.max((float) consumer[0] / sourceWidth,
+                    (float) consumer[1] / sourceHeight));
+        }
+        if (!Config.enableDecodeSizeNegotiation || scale <= 0 ||
+                scale * scale * MIN_GAIN > 1) {
+            size[0] = sourceWidth;
+            size[1] = sourceHeight;
+            return;
+        }
+        // Round up to even sizes, NV21 chroma is subsampled by 2.
+        size[0] = Math.min(sourceWidth, ((int) Math.ceil(sourceWidth * scale) + 1) & ~1);
+        size[1] = Math.min(sourceHeight, ((int) Math.ceil(sourceHeight * scale) + 1) & ~1);
+    }
+}
@@ -0,0 +1,143 @@
+package com.wrlus.virtcam.decode;
+
+import android.util.Log;
+
+/**
+ * Watch backpressure of an ImageReader consumer and decide which decoded frames are worth
+ * delivering. A frame is skipped when the consumer holds all of its images, or when the
+ * consumer acquires slower than the video frame rate and the frame would arrive before it
+ * is ready for the next one. While throttling, disposable (non-reference) samples are not
+ * decoded at all, and once the consumer takes at most every second frame only the head of
+ * each GOP is (see {@link GopThinner}).
+ */
+public class DeliveryGovernor {
+    private static final String TAG = "DeliveryGovernor";
+    /**
+     * Consumer is considered slow if it acquires this much slower than the video.
+     */
+    private static final float SLOW_CONSUMER_RATIO = 1.25f;
+    /**
+     * Thin out GOPs once the consumer acquires at least this many times slower.
+     */
+    private static final int GOP_THINNING_RATIO = 2;
+    private static final int MAX_DECODE_INTERVAL = 8;
+    private static final int LOG_INTERVAL_FRAMES = 300;
+
+    private final String name;
+    /**
+     * Images the consumer may hold at once, 0 until the first acquire tells us.
+     */
+    private volatile int maxImages = 0;
+    private volatile long frameDurationNs = 33333333;
+    // Consumer side, updated from the app threads which acquire and close images.
+    private volatile int heldImages = 0;
+    private volatile long consumerIntervalNs = 0;
+    private volatile long lastAcquireNs = 0;
+    private volatile long maxAcquireToReleaseNs = 0;
+    // Producer side, decoder thread only.
+    private long lastDeliverNs = 0;
+    private long delivered = 0;
+    private long skippedRender = 0;
+    private long skippedDecode = 0;
+
+    public DeliveryGovernor(String name) {
+        this.name = name;
+    }
+
+    public void setFrameDurationUs(long frameDurationUs) {
+        frameDurationNs = frameDurationUs * 1000;
+    }
+
+    public synchronized void onConsumerAcquire(int maxImages, long nowNs) {
+        this.maxImages = Math.max(1, maxImages);
+        if (lastAcquireNs > 0) {
+            long interval = nowNs - lastAcquireNs;
+            // EWMA with 1/8 weight, smooths out jitter of the app's pipeline.
+            consumerIntervalNs = consumerIntervalNs == 0 ? interval :
+                    consumerIntervalNs + ((interval - consumerIntervalNs) >> 3);
+        }
+        lastAcquireNs = nowNs;
+        heldImages = Math.min(maxImages, heldImages + 1);
+    }
+
+    public synchronized void onConsumerRelease(long nowNs) {
+        heldImages = Math.max(0, heldImages - 1);
+        if (lastAcquireNs > 0) {
+            maxAcquireToReleaseNs = Math.max(maxAcquireToReleaseNs, nowNs - lastAcquireNs);
+        }
+    }
+
+    public int getFreeSlots() {
+        int max = maxImages;
+        return max > 0 ? max - heldImages : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Consumer can not keep up with the video.
+     */
+    public boolean isThrottling() {
+        return getFreeSlots() <= 0 ||
+                consumerIntervalNs > frameDurationNs * SLOW_CONSUMER_RATIO;
+    }
+
+    /**
+     * Video frames per frame the consumer takes, rounded, or 1 while it takes at least half
+     * of them. Frames are worth decoding at this interval.
+     */
+    public int getDecodeInterval() {
+        long intervalNs = consumerIntervalNs;
+        long durationNs = frameDurationNs;
+        if (durationNs <= 0 || intervalNs < durationNs * GOP_THINNING_RATIO) {
+            return 1;
+        }
+        return (int) Math.min((intervalNs + durationNs / 2) / durationNs, MAX_DECODE_INTERVAL);
+    }
+
+    /**
+     * Decide whether a decoded frame should be rendered into the consumer now.
+     */
+    public boolean shouldDeliver(long nowNs) {
+        boolean deliver;
+        if (getFreeSlots() <= 0) {
+            deliver = false;
+        } else if (consumerIntervalNs > frameDurationNs * SLOW_CONSUMER_RATIO) {
+            // Deliver at the consumer's pace, slightly early so it never waits for us.
+            deliver = nowNs - lastDeliverNs >= consumerIntervalNs - frameDurationNs / 2;
+        } else {
+            deliver = true;
+        }
+        if (deliver) {
+            lastDeliverNs = nowNs;
+            ++delivered;
+        } else {
+            ++skippedRender;
+        }
+        maybeLog();
+        return deliver;
+    }
+
+    public void onDecodeSkipped() {
+        ++skippedDecode;
+    }
+
+    public long getDeliveredCount() {
+        return delivered;
+    }
+
+    public long getSkippedRenderCount() {
+        return skippedRender;
+    }
+
+    public long getSkippedDecodeCount() {
+        return skippedDecode;
+    }
+
+    private void maybeLog() {
+        if ((delivered + skippedRender) % LOG_INTERVAL_FRAMES == 0) {
+            Log.i(TAG, name + ": delivered " + delivered + ", skipped render " + skippedRender +
+                    ", skipped decode " + skippedDecode + ", consumer interval " +
+                    consumerIntervalNs / 1000 + " us, max hold " +
+                    maxAcquireToReleaseNs / 1000 + " us, held " + heldImages + "/" + maxImages);
+        }
+    }
+}
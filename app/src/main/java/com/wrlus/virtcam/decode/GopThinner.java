@@ -0,0 +1,88 @@
+package com.wrlus.virtcam.decode;
+
+/**
+ * Decode only the head of every GOP while the consumer takes one frame out of several,
+ * free of codec calls so it also runs on the JVM.
+ * <p>
+ * Within a GOP every frame may reference any earlier one in decode order, so the only
+ * frames which can be left out without breaking others are the ones at its tail. With an
+ * interval of n, the first 1/n of the GOP in decode order is decoded and the rest skipped
+ * up to the next sync sample. The decoded frames are spread over the whole GOP duration,
+ * so they come out one consumer interval apart instead of in a burst: the consumer sees
+ * the head of each GOP slowed down, then a jump to the next one.
+ * <p>
+ * Leading pictures of an open GOP (presented before its sync sample, like HEVC RASL) may
+ * reference the tail of the GOP before, they are skipped too after a skipped tail.
+ * <p>
+ * Not thread safe, use from the decoder thread only.
+ */
+public class GopThinner {
+    private int interval = 1;
+    private int budget = 0;
+    private long gopStartUs = 0;
+    private long lastTimeUs = Long.MAX_VALUE;
+    private boolean tailSkipped = false;
+    private boolean skipLeading = false;
+
+    /**
+     * A sync sample starts a GOP.
+     *
+     * @param gopLength samples of the GOP in decode order, up to the next sync sample.
+     * @param nextSyncTimeUs sample time of the next sync sample, Long.MAX_VALUE if none.
+     * @param interval video frames per frame the consumer takes, 1 to decode everything.
+     */
+    public void startGop(long syncTimeUs, int gopLength, long nextSyncTimeUs,
+                         long frameDurationUs, int interval) {
+        this.interval = Math.max(1, interval);
+        budget = (gopLength + this.interval - 1) / this.interval;
+        skipLeading = tailSkipped;
+        tailSkipped = false;
+        gopStartUs = syncTimeUs;
+        lastTimeUs = nextSyncTimeUs == Long.MAX_VALUE ?
+                Long.MAX_VALUE : nextSyncTimeUs - frameDurationUs;
+    }
+
+    /**
+     * Stop thinning until the next GOP starts, e.g. a clip of unknown GOP structure.
+     */
+    public void reset() {
+        interval = 1;
+        budget = 0;
+        tailSkipped = false;
+        skipLeading = false;
+    }
+
+    /**
+     * Whether the next sample in decode order should be decoded, the rest of the GOP is
+     * skipped once this returned false for a sample at or after the sync sample.
+     */
+    public boolean shouldDecode(long sampleTimeUs) {
+        if (skipLeading && sampleTimeUs < gopStartUs) {
+            return false;
+        }
+        if (interval <= 1) {
+            return true;
+        }
+        if (budget <= 0) {
+            tailSkipped = true;
+            return false;
+        }
+        --budget;
+        return true;
+    }
+
+    /**
+     * Sample time to queue a decoded sample with, stretched over the GOP and kept before
+     * the next sync sample.
+     */
+    public long mapSampleTime(long sampleTimeUs) {
+        if (interval <= 1 || sampleTimeUs < gopStartUs) {
+            return sampleTimeUs;
+        }
+        return Math.min(gopStartUs + (sampleTimeUs - gopStartUs) * interval, lastTimeUs);
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+}
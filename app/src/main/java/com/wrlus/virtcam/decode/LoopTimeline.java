@@ -0,0 +1,129 @@
+package com.wrlus.virtcam.decode;
+
+import java.util.ArrayDeque;
+
+/**
+ * Timestamp bookkeeping of {@link LoopingDecoder}, free of codec calls so it also runs on
+ * the JVM.
+ * <p>
+ * Input side: sample times of every loop or clip are shifted to start one frame after the
+ * largest presentation time queued so far, so they stay monotonic across loops whatever the
+ * first sample time or frame reordering of the clip. Output side: presentation times are
+ * turned into render times on a wall clock anchored at the first frame, and the worst gap
+ * between two rendered frames is recorded per loop and overall.
+ * <p>
+ * Not thread safe, use from the decoder thread only. Getters may be read from any thread.
+ */
+public class LoopTimeline {
+    /**
+     * Re-anchor the output clock if a frame is later than this many frame periods.
+     */
+    private static final int MAX_LATE_FRAMES = 3;
+
+    // Input side.
+    private long loopOffsetUs = 0;
+    private long maxInputPtsUs = -1;
+    private final ArrayDeque<Long> loopBoundaries = new ArrayDeque<>();
+
+    // Output side.
+    private long anchorPtsUs = -1;
+    private long anchorTimeNs;
+    private long outputFrameIndex = 0;
+    private long lastRenderTimeNs = -1;
+    private long loopWorstGapNs = 0;
+    private volatile long worstGapNs = 0;
+    private volatile int loopCount = 0;
+
+    /**
+     * Presentation time to queue a sample of the current loop with.
+     */
+    public long onInputSample(long sampleTimeUs) {
+        long presentationTimeUs = sampleTimeUs + loopOffsetUs;
+        maxInputPtsUs = Math.max(maxInputPtsUs, presentationTimeUs);
+        return presentationTimeUs;
+    }
+
+    /**
+     * A sample of the current loop was dropped before the codec, it still takes its time.
+     */
+    public void onSkippedSample(long sampleTimeUs) {
+        maxInputPtsUs = Math.max(maxInputPtsUs, sampleTimeUs + loopOffsetUs);
+    }
+
+    /**
+     * The current loop ran out of samples, the next one (same clip rewound or next clip)
+     * starts at firstSampleTimeUs in its own time.
+     *
+     * @param frameDurationUs frame duration of the loop which ended.
+     */
+    public void startLoop(long firstSampleTimeUs, long frameDurationUs) {
+        long nextStartUs = maxInputPtsUs + frameDurationUs;
+        loopBoundaries.add(nextStartUs);
+        loopOffsetUs = nextStartUs - firstSampleTimeUs;
+    }
+
+    /**
+     * Wall clock time at which the frame of presentationTimeUs is due.
+     *
+     * @param periodNs output frame period.
+     * @param fixedRate release frames one period apart whatever their timestamps.
+     */
+    public long getRenderTimeNs(long presentationTimeUs, long periodNs, boolean fixedRate,
+                                long nowNs) {
+        if (anchorPtsUs < 0) {
+            anchorPtsUs = presentationTimeUs;
+            anchorTimeNs = nowNs;
+        }
+        long dueNs = fixedRate ? anchorTimeNs + outputFrameIndex * periodNs :
+                anchorTimeNs + (presentationTimeUs - anchorPtsUs) * 1000;
+        if (nowNs - dueNs > MAX_LATE_FRAMES * periodNs) {
+            // We were stalled (e.g. app paused), restart the clock instead of bursting frames.
+            anchorPtsUs = presentationTimeUs;
+            anchorTimeNs = nowNs;
+            outputFrameIndex = 0;
+            dueNs = nowNs;
+        }
+        ++outputFrameIndex;
+        return dueNs;
+    }
+
+    /**
+     * A frame was rendered at nowNs.
+     */
+    public void onRendered(long nowNs) {
+        if (lastRenderTimeNs > 0) {
+            long gapNs = nowNs - lastRenderTimeNs;
+            loopWorstGapNs = Math.max(loopWorstGapNs, gapNs);
+            if (gapNs > worstGapNs) worstGapNs = gapNs;
+        }
+        lastRenderTimeNs = nowNs;
+    }
+
+    /**
+     * The frame of presentationTimeUs left the decoder, rendered or dropped.
+     *
+     * @return worst gap in the loop which ended before this frame, -1 if no loop ended.
+     */
+    public long onOutput(long presentationTimeUs) {
+        Long boundaryPtsUs = loopBoundaries.peek();
+        if (boundaryPtsUs == null || presentationTimeUs < boundaryPtsUs) {
+            return -1;
+        }
+        loopBoundaries.poll();
+        ++loopCount;
+        long loopGapNs = loopWorstGapNs;
+        loopWorstGapNs = 0;
+        return loopGapNs;
+    }
+
+    /**
+     * Worst wall-clock gap between two rendered frames, including loop boundaries.
+     */
+    public long getWorstGapNs() {
+        return worstGapNs;
+    }
+
+    public int getLoopCount() {
+        return loopCount;
+    }
+}
@@ -0,0 +1,607 @@
+package com.wrlus.virtcam.decode;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import com.polarxiong.videotoimages.VideoToFrames;
+import com.wrlus.virtcam.utils.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decode a playlist to a surface in an endless gapless loop.
+ * <p>
+ * End of stream is never queued into the codec: when the extractor runs out of samples
+ * the next clip (pre-opened in background) or the clip head is queued right behind the
+ * tail, with sample timestamps shifted so that they stay monotonic across loops. The codec
+ * therefore never drains or restarts at the loop point. Output buffers are released at their
+ * presentation time, and the worst inter-frame gap of every loop is recorded.
+ * <p>
+ * For high-speed sessions an output rate can be forced: frames are then released one
+ * output period apart whatever the clip frame rate, a burst worth of frames per wakeup,
+ * and the achieved rate is measured against the target.
+ */
+public class LoopingDecoder {
+    private static final String TAG = "LoopingDecoder";
+    private static final long DEFAULT_FRAME_DURATION_US = 33333;
+    private static final long THROUGHPUT_WINDOW_NS = 1000000000L;
+
+    private final Playlist playlist;
+    private final Surface surface;
+    /**
+     * Forced output frame rate, 0 to follow clip timestamps.
+     */
+    private final int outputFps;
+    /**
+     * Frames released per wakeup when outputFps is forced, each with its own render time.
+     */
+    private final int batchSize;
+    /**
+     * Decoder thread leased from {@link DecodeExecutor}, all codec callbacks run there.
+     */
+    private final Handler handler;
+    private volatile boolean released = false;
+    /**
+     * Drops frames the consumer can not take, only set for ImageReader outputs.
+     */
+    private volatile DeliveryGovernor governor;
+
+    // Set up on the decoder thread.
+    /**
+     * Clip which the codec is configured for, every later clip must be compatible with it.
+     */
+    private volatile Clip configuredClip;
+    private MediaCodec codec;
+
+    // Input side, only touched on the decoder thread.
+    private Clip clip;
+    private long frameDurationUs;
+    /**
+     * Sample timestamp rewriting and output pacing, both sides on the decoder thread.
+     */
+    private final LoopTimeline timeline = new LoopTimeline();
+    /**
+     * Skips GOP tails of cached clips and non-reference frames the governor's consumer
+     * would not take.
+     */
+    private final SampleSelector sampleSelector = new SampleSelector();
+    /**
+     * Next clip opened in background on the blocking decode pool, at most one is held.
+     */
+    private Clip prefetchedClip;
+
+    // Output side, only touched on the decoder thread.
+    private volatile long renderedFrames = 0;
+    private long throughputWindowStartNs = -1;
+    private int throughputWindowFrames = 0;
+    private volatile float measuredFps = 0;
+
+    /**
+     * One opened clip, positioned at the first sample. Samples are read from the
+     * {@link SampleCache} if the clip fits, from the extractor otherwise.
+     */
+    private static class Clip {
+        final File file;
+        final MediaFormat format;
+        final long firstSampleTimeUs;
+        /**
+         * Highest HEVC TemporalId, -1 if unknown or not HEVC.
+         */
+        final int maxTemporalId;
+        private MediaExtractor extractor;
+        private SampleCache cache;
+        private int cacheCursor = 0;
+
+        private Clip(File file, MediaExtractor extractor, MediaFormat format) {
+            this.file = file;
+            this.extractor = extractor;
+            this.format = format;
+            this.firstSampleTimeUs = Math.max(0, extractor.getSampleTime());
+            this.maxTemporalId = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(getMime()) ?
+                    NalUnits.getMaxTemporalId(format.getByteBuffer("csd-0")) : -1;
+        }
+
+        static Clip open(File file) throws IOException {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(file.toString());
+                int trackIndex = VideoToFrames.selectTrack(extractor);
+                if (trackIndex < 0) {
+                    throw new IOException("No video track found in " + file.getAbsolutePath());
+                }
+                extractor.selectTrack(trackIndex);
+                Clip clip = new Clip(file, extractor, extractor.getTrackFormat(trackIndex));
+                if (Config.enableSampleCache) {
+                    clip.cache = SampleCacheRegistry.obtain(file, extractor, clip.format);
+                    if (clip.cache != null) {
+                        extractor.release();
+                        clip.extractor = null;
+                    } else {
+                        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                    }
+                }
+                return clip;
+            } catch (IOException | RuntimeException e) {
+                extractor.release();
+                throw e;
+            }
+        }
+
+        int readSample(ByteBuffer dst) {
+            return cache != null ? cache.readSample(cacheCursor, dst) :
+                    extractor.readSampleData(dst, 0);
+        }
+
+        long getSampleTime() {
+            return cache != null ? cache.getSampleTimeUs(cacheCursor) : extractor.getSampleTime();
+        }
+
+        /**
+         * Whether the current sample starts a GOP of known length, only cached clips know.
+         */
+        boolean isGopStart() {
+            return cache != null && cacheCursor < cache.getSampleCount() &&
+                    cache.isSyncSample(cacheCursor);
+        }
+
+        /**
+         * Start thinning the GOP of the current sample, cached clips only.
+         */
+        void startGop(SampleSelector selector, long frameDurationUs, int interval) {
+            selector.startGop(cache, cacheCursor, frameDurationUs, interval);
+        }
+
+        void advance() {
+            if (cache != null) {
+                ++cacheCursor;
+            } else {
+                extractor.advance();
+            }
+        }
+
+        void rewind() {
+            seekTo(0);
+        }
+
+        /**
+         * Seek to the sync sample at or before timeUs, a binary search if cached.
+         */
+        void seekTo(long timeUs) {
+            if (cache != null) {
+                cacheCursor = Math.max(0, cache.findSyncSample(timeUs));
+            } else {
+                extractor.seekTo(timeUs, timeUs == 0 ?
+                        MediaExtractor.SEEK_TO_CLOSEST_SYNC : MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+        }
+
+        void release() {
+            if (extractor != null) {
+                extractor.release();
+                extractor = null;
+            }
+            if (cache != null) {
+                cache = null;
+                SampleCacheRegistry.release(file);
+            }
+        }
+
+        String getMime() {
+            return format.getString(MediaFormat.KEY_MIME);
+        }
+
+        /**
+         * Whether samples of other clip can be fed into a codec configured for this clip.
+         */
+        boolean isCompatible(Clip other) {
+            return getMime().equals(other.getMime()) &&
+                    format.getInteger(MediaFormat.KEY_WIDTH) ==
+                            other.format.getInteger(MediaFormat.KEY_WIDTH) &&
+                    format.getInteger(MediaFormat.KEY_HEIGHT) ==
+                            other.format.getInteger(MediaFormat.KEY_HEIGHT);
+        }
+
+        long getFrameDurationUs() {
+            int frameRate = format.containsKey(MediaFormat.KEY_FRAME_RATE) ?
+                    format.getInteger(MediaFormat.KEY_FRAME_RATE) : 0;
+            return frameRate > 0 ? 1000000L / frameRate : DEFAULT_FRAME_DURATION_US;
+        }
+    }
+
+    private LoopingDecoder(Playlist playlist, Surface surface, int outputFps, int batchSize) {
+        this.playlist = playlist;
+        this.surface = surface;
+        this.outputFps = Math.max(0, outputFps);
+        this.batchSize = Math.max(1, batchSize);
+        this.handler = DecodeExecutor.obtainHandler();
+    }
+
+    public static LoopingDecoder start(File videoFile, Surface surface) {
+        return start(Playlist.of(videoFile), surface);
+    }
+
+    /**
+     * Start decoding on the decode pool, extractor and codec setup never block the caller.
+     */
+    public static LoopingDecoder start(Playlist playlist, Surface surface) {
+        return start(playlist, surface, 0, 1);
+    }
+
+    /**
+     * Start decoding with a forced output rate, e.g. 120 or 240 fps for high-speed sessions.
+     *
+     * @param batchSize frames queued per wakeup, usually the burst size of the session.
+     */
+    public static LoopingDecoder start(Playlist playlist, Surface surface,
+                                       int outputFps, int batchSize) {
+        LoopingDecoder decoder = new LoopingDecoder(playlist, surface, outputFps, batchSize);
+        DecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                decoder.openFirstClip();
+            }
+        });
+        return decoder;
+    }
+
+    /**
+     * Open the first clip on the blocking pool, loading samples may take a while, then set
+     * up the codec on the decoder thread.
+     */
+    private void openFirstClip() {
+        if (released) return;
+        File file = playlist.next();
+        Clip first;
+        try {
+            first = Clip.open(file);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Open clip " + file.getAbsolutePath() + " failed", e);
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                setUp(first);
+            }
+        });
+    }
+
+    private void setUp(Clip first) {
+        if (released) {
+            first.release();
+            return;
+        }
+        try {
+            clip = first;
+            sampleSelector.setStream(clip.getMime(), clip.maxTemporalId);
+            configuredClip = clip;
+            frameDurationUs = clip.getFrameDurationUs();
+            updateGovernorFrameDuration();
+            MediaFormat mediaFormat = clip.format;
+            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            if (outputFps > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                // Let the codec run ahead at the output rate instead of the clip rate.
+                mediaFormat.setInteger(MediaFormat.KEY_PRIORITY, 0);
+                mediaFormat.setInteger(MediaFormat.KEY_OPERATING_RATE, outputFps);
+            }
+            codec = MediaCodec.createDecoderByType(clip.getMime());
+            codec.setCallback(callback, handler);
+            codec.configure(mediaFormat, surface, null, 0);
+            codec.start();
+            prefetchNextClip();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "setUp - " + e.getClass().getSimpleName(), e);
+            if (codec != null) codec.release();
+            if (clip != null) clip.release();
+            codec = null;
+            clip = null;
+        }
+    }
+
+    public void release() {
+        released = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacksAndMessages(null);
+                if (codec != null) {
+                    try {
+                        codec.stop();
+                    } catch (IllegalStateException e) {
+                        Log.w(TAG, "release - codec already stopped");
+                    }
+                    codec.release();
+                }
+                if (clip != null) clip.release();
+                synchronized (LoopingDecoder.this) {
+                    if (prefetchedClip != null) {
+                        prefetchedClip.release();
+                        prefetchedClip = null;
+                    }
+                }
+                DecodeExecutor.release(handler);
+                Log.i(TAG, "Released after " + timeline.getLoopCount() +
+                        " loops, worst frame gap " + timeline.getWorstGapNs() / 1000 + " us");
+            }
+        });
+    }
+
+    /**
+     * Let governor decide which frames are delivered, and skip decoding disposable frames
+     * and GOP tails while the consumer falls behind.
+     */
+    public void setDeliveryGovernor(DeliveryGovernor governor) {
+        this.governor = governor;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateGovernorFrameDuration();
+            }
+        });
+    }
+
+    private void updateGovernorFrameDuration() {
+        DeliveryGovernor governor = this.governor;
+        if (governor != null && frameDurationUs > 0) {
+            governor.setFrameDurationUs(getOutputPeriodUs());
+        }
+    }
+
+    /**
+     * Worst wall-clock gap between two rendered frames, including loop boundaries.
+     */
+    public long getWorstFrameGapUs() {
+        return timeline.getWorstGapNs() / 1000;
+    }
+
+    public long getFrameDurationUs() {
+        return frameDurationUs;
+    }
+
+    public int getLoopCount() {
+        return timeline.getLoopCount();
+    }
+
+    /**
+     * Frames rendered since start, position of the preview in the looping video.
+     */
+    public long getRenderedFrameCount() {
+        return renderedFrames;
+    }
+
+    /**
+     * Frames rendered per second over the last full second.
+     */
+    public float getMeasuredFps() {
+        return measuredFps;
+    }
+
+    private long getOutputPeriodUs() {
+        return outputFps > 0 ? 1000000L / outputFps : frameDurationUs;
+    }
+
+    /**
+     * Open the next playlist clip in background, so switching clips never waits for I/O.
+     */
+    private void prefetchNextClip() {
+        if (playlist.size() <= 1) return;
+        DecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int attempt = 0; attempt < playlist.size() && !released; attempt++) {
+                    File file = playlist.next();
+                    Clip next;
+                    try {
+                        next = Clip.open(file);
+                    } catch (IOException | RuntimeException e) {
+                        Log.e(TAG, "Skip clip " + file.getAbsolutePath(), e);
+                        continue;
+                    }
+                    if (!configuredClip.isCompatible(next)) {
+                        Log.w(TAG, "Skip clip " + file.getAbsolutePath() +
+                                ", codec or size differs from the playing clip");
+                        next.release();
+                        continue;
+                    }
+                    synchronized (LoopingDecoder.this) {
+                        if (released) {
+                            next.release();
+                        } else {
+                            prefetchedClip = next;
+                        }
+                    }
+                    return;
+                }
+            }
+        });
+    }
+
+    private synchronized Clip takePrefetchedClip() {
+        Clip next = prefetchedClip;
+        prefetchedClip = null;
+        return next;
+    }
+
+    private void queueInput(MediaCodec codec, int index) {
+        ByteBuffer inputBuffer = codec.getInputBuffer(index);
+        int sampleSize = readDecodedSample(inputBuffer);
+        if (sampleSize < 0) {
+            Clip next = takePrefetchedClip();
+            if (next != null) {
+                // Switch to the next clip, its codec config goes in first.
+                timeline.startLoop(next.firstSampleTimeUs, frameDurationUs);
+                clip.release();
+                clip = next;
+                sampleSelector.setStream(clip.getMime(), clip.maxTemporalId);
+                frameDurationUs = clip.getFrameDurationUs();
+                updateGovernorFrameDuration();
+                Log.i(TAG, "Switch to clip " + clip.file.getAbsolutePath());
+                prefetchNextClip();
+                if (queueCodecConfig(codec, index, inputBuffer)) {
+                    return;
+                }
+            } else {
+                // Clip tail reached, continue with the clip head instead of queueing EOS.
+                clip.rewind();
+                timeline.startLoop(clip.firstSampleTimeUs, frameDurationUs);
+            }
+            sampleSize = readDecodedSample(inputBuffer);
+            if (sampleSize < 0) {
+                Log.e(TAG, "Video has no samples, stop looping");
+                codec.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return;
+            }
+        }
+        long presentationTimeUs = timeline.onInputSample(
+                sampleSelector.mapSampleTime(clip.getSampleTime()));
+        codec.queueInputBuffer(index, 0, sampleSize, presentationTimeUs, 0);
+        clip.advance();
+    }
+
+    /**
+     * Read the next sample worth decoding into inputBuffer, skipping the ones the consumer
+     * would not get anyway.
+     *
+     * @return sample size, or -1 at the end of the clip.
+     */
+    private int readDecodedSample(ByteBuffer inputBuffer) {
+        DeliveryGovernor governor = this.governor;
+        while (true) {
+            int sampleSize = clip.readSample(inputBuffer);
+            if (sampleSize < 0 || governor == null) {
+                return sampleSize;
+            }
+            if (clip.isGopStart()) {
+                // Forced rate releases frames one period apart whatever their times,
+                // thinned GOPs would play in fast forward there.
+                clip.startGop(sampleSelector, frameDurationUs,
+                        outputFps > 0 ? 1 : governor.getDecodeInterval());
+            }
+            if (sampleSelector.shouldDecode(inputBuffer, sampleSize, clip.getSampleTime(),
+                    governor)) {
+                return sampleSize;
+            }
+            timeline.onSkippedSample(clip.getSampleTime());
+            clip.advance();
+        }
+    }
+
+    /**
+     * Queue csd-0/csd-1/csd-2 of the current clip as one codec config buffer.
+     */
+    private boolean queueCodecConfig(MediaCodec codec, int index, ByteBuffer inputBuffer) {
+        inputBuffer.clear();
+        for (String key : new String[]{"csd-0", "csd-1", "csd-2"}) {
+            ByteBuffer csd = clip.format.getByteBuffer(key);
+            if (csd != null) {
+                inputBuffer.put(csd.duplicate());
+            }
+        }
+        int size = inputBuffer.position();
+        if (size == 0) {
+            return false;
+        }
+        codec.queueInputBuffer(index, 0, size, 0L, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        return true;
+    }
+
+    private void scheduleOutput(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 || info.size == 0) {
+            codec.releaseOutputBuffer(index, false);
+            return;
+        }
+        final long presentationTimeUs = info.presentationTimeUs;
+        long nowNs = System.nanoTime();
+        long periodNs = getOutputPeriodUs() * 1000;
+        long dueNs = timeline.getRenderTimeNs(presentationTimeUs, periodNs, outputFps > 0, nowNs);
+        final long renderTimeNs = dueNs;
+        // Frames due within the current batch are released together, each keeps its
+        // own render time, so a high-speed consumer is woken once per burst.
+        long batchWindowNs = outputFps > 0 ? (batchSize - 1) * periodNs : 0;
+        long delayMs = (dueNs - batchWindowNs - nowNs) / 1000000;
+        if (delayMs <= 0) {
+            render(codec, index, presentationTimeUs, renderTimeNs);
+        } else {
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    render(codec, index, presentationTimeUs, renderTimeNs);
+                }
+            }, delayMs);
+        }
+    }
+
+    private void render(MediaCodec codec, int index, long presentationTimeUs, long renderTimeNs) {
+        if (released) return;
+        long nowNs = System.nanoTime();
+        DeliveryGovernor governor = this.governor;
+        if (governor == null || governor.shouldDeliver(nowNs)) {
+            // Timestamp is rewritten to the monotonic render clock,
+            // consumers never see PTS jump back.
+            codec.releaseOutputBuffer(index, renderTimeNs);
+            timeline.onRendered(nowNs);
+            ++renderedFrames;
+            measureThroughput(nowNs);
+        } else {
+            // Consumer holds all of its images or is not ready yet, do not queue into it.
+            codec.releaseOutputBuffer(index, false);
+        }
+        long loopWorstGapNs = timeline.onOutput(presentationTimeUs);
+        if (loopWorstGapNs >= 0) {
+            Log.i(TAG, "Loop " + timeline.getLoopCount() + " worst frame gap " +
+                    loopWorstGapNs / 1000 + " us, frame period " + frameDurationUs + " us");
+        }
+    }
+
+    private void measureThroughput(long nowNs) {
+        if (throughputWindowStartNs < 0) {
+            throughputWindowStartNs = nowNs;
+        }
+        ++throughputWindowFrames;
+        long elapsedNs = nowNs - throughputWindowStartNs;
+        if (elapsedNs >= THROUGHPUT_WINDOW_NS) {
+            measuredFps = throughputWindowFrames * 1e9f / elapsedNs;
+            if (outputFps > 0 && measuredFps < outputFps * 0.95f) {
+                Log.w(TAG, "Output " + measuredFps + " fps, below target " + outputFps + " fps");
+            }
+            throughputWindowStartNs = nowNs;
+            throughputWindowFrames = 0;
+        }
+    }
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (released) return;
+            queueInput(codec, index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if (released) return;
+            scheduleOutput(codec, index, info);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "onError - CodecException", e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            Log.i(TAG, "onOutputFormatChanged: " + format);
+        }
+    };
+}
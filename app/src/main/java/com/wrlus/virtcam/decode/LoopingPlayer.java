@@ -0,0 +1,76 @@
+package com.wrlus.virtcam.decode;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * MediaPlayer playing a video muted in a loop into a surface. MediaPlayer posts its events
+ * to the looper of the creating thread, so it is created and driven on a decode pool
+ * thread, and the hooked caller never waits for it.
+ */
+public class LoopingPlayer {
+    private static final String TAG = "LoopingPlayer";
+    private final Handler handler;
+    private MediaPlayer mediaPlayer;
+    private boolean released = false;
+
+    private LoopingPlayer(Handler handler) {
+        this.handler = handler;
+    }
+
+    public static LoopingPlayer start(File videoFile, Surface surface) {
+        LoopingPlayer player = new LoopingPlayer(DecodeExecutor.obtainHandler());
+        player.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                player.play(videoFile, surface);
+            }
+        });
+        return player;
+    }
+
+    private void play(File videoFile, Surface surface) {
+        if (released) return;
+        mediaPlayer = new MediaPlayer();
+        mediaPlayer.setSurface(surface);
+        mediaPlayer.setVolume(0, 0);
+        mediaPlayer.setLooping(true);
+        mediaPlayer.setOnPreparedListener(
+                new MediaPlayer.OnPreparedListener() {
+                    @Override
+                    public void onPrepared(MediaPlayer mp) {
+                        mp.start();
+                    }
+                });
+        try {
+            mediaPlayer.setDataSource(videoFile.getAbsolutePath());
+            mediaPlayer.prepareAsync();
+        } catch (IOException e) {
+            Log.e(TAG, "play - IOException", e);
+        }
+    }
+
+    /**
+     * Stop playing, safe from any thread. The player is released on its own thread after
+     * it was created.
+     */
+    public void release() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (released) return;
+                released = true;
+                if (mediaPlayer != null) {
+                    mediaPlayer.release();
+                    mediaPlayer = null;
+                }
+                DecodeExecutor.release(handler);
+            }
+        });
+    }
+}
@@ -0,0 +1,81 @@
+package com.wrlus.virtcam.decode;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal Annex-B NAL header inspection of H.264 / HEVC samples.
+ */
+public class NalUnits {
+    private static final int HEVC_NAL_SPS = 33;
+
+    /**
+     * Whether no other frame references this sample, so it can be dropped before decoding.
+     * Only the first VCL NAL unit of the sample is inspected.
+     *
+     * @param maxTemporalId highest HEVC TemporalId of the stream, see
+     *                      {@link #getMaxTemporalId}. HEVC samples are never disposable if
+     *                      it is unknown (-1).
+     */
+    public static boolean isDisposable(ByteBuffer sample, int size, String mime,
+                                       int maxTemporalId) {
+        boolean avc = MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime);
+        boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+        if (!avc && !(hevc && maxTemporalId >= 0)) {
+            return false;
+        }
+        int i = 0;
+        while (i + 3 < size) {
+            if (sample.get(i) == 0 && sample.get(i + 1) == 0 && sample.get(i + 2) == 1) {
+                int header = sample.get(i + 3) & 0xff;
+                if (avc) {
+                    int type = header & 0x1f;
+                    if (type == 1 || type == 5) {
+                        // nal_ref_idc == 0 means non-reference picture.
+                        return (header >> 5) == 0;
+                    }
+                } else {
+                    int type = (header >> 1) & 0x3f;
+                    if (type <= 31) {
+                        // Even VCL types up to RSV_VCL_N14 are sub-layer non-reference,
+                        // higher sub-layers may still reference them unless they are in
+                        // the highest one.
+                        if (type > 14 || (type & 1) != 0 || i + 4 >= size) {
+                            return false;
+                        }
+                        int temporalId = (sample.get(i + 4) & 0x7) - 1;
+                        return temporalId == maxTemporalId;
+                    }
+                }
+                i += 3;
+            } else {
+                ++i;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Highest TemporalId of an HEVC stream, from sps_max_sub_layers_minus1 of the first SPS
+     * in its Annex-B codec config (csd-0).
+     *
+     * @return -1 if csd has no SPS.
+     */
+    public static int getMaxTemporalId(ByteBuffer csd) {
+        if (csd == null) {
+            return -1;
+        }
+        int start = csd.position();
+        int end = csd.limit();
+        for (int i = start; i + 5 < end; i++) {
+            if (csd.get(i) == 0 && csd.get(i + 1) == 0 && csd.get(i + 2) == 1 &&
+                    ((csd.get(i + 3) >> 1) & 0x3f) == HEVC_NAL_SPS) {
+                // Two byte NAL header, then sps_video_parameter_set_id u(4) and
+                // sps_max_sub_layers_minus1 u(3).
+                return (csd.get(i + 5) >> 1) & 0x7;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,105 @@
+package com.wrlus.virtcam.decode;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Endless sequence of clips from a directory or a manifest file, in order or shuffled.
+ * A manifest lists one clip per line, relative to the manifest directory, '#' starts a comment.
+ */
+public class Playlist {
+    private static final String[] VIDEO_EXTENSIONS = {".mp4", ".m4v", ".3gp", ".mkv", ".webm"};
+    private final List<File> clips;
+    private final boolean shuffle;
+    private final Random random = new Random();
+    private final int[] order;
+    private int position;
+
+    private Playlist(List<File> clips, boolean shuffle) {
+        this.clips = clips;
+        this.shuffle = shuffle;
+        order = new int[clips.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        position = order.length;
+    }
+
+    public static Playlist of(File clip) {
+        return new Playlist(Collections.singletonList(clip), false);
+    }
+
+    public static Playlist load(File path, boolean shuffle) throws IOException {
+        List<File> clips = new ArrayList<>();
+        if (path.isDirectory()) {
+            File[] files = path.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.isFile() && isVideoFile(file)) {
+                        clips.add(file);
+                    }
+                }
+            }
+        } else {
+            try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    File clip = new File(line);
+                    clips.add(clip.isAbsolute() ? clip : new File(path.getParentFile(), line));
+                }
+            }
+        }
+        if (clips.isEmpty()) {
+            throw new IOException("No clips found in playlist " + path.getAbsolutePath());
+        }
+        return new Playlist(clips, shuffle);
+    }
+
+    public int size() {
+        return clips.size();
+    }
+
+    /**
+     * Get the next clip, wrapping around at the end of the list.
+     */
+    public synchronized File next() {
+        if (position >= order.length) {
+            position = 0;
+            if (shuffle) reshuffle();
+        }
+        return clips.get(order[position++]);
+    }
+
+    private void reshuffle() {
+        int last = order[order.length - 1];
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        // Do not play the same clip twice in a row across cycles.
+        if (order.length > 1 && order[0] == last) {
+            order[0] = order[order.length - 1];
+            order[order.length - 1] = last;
+        }
+    }
+
+    private static boolean isVideoFile(File file) {
+        String name = file.getName().toLowerCase();
+        for (String extension : VIDEO_EXTENSIONS) {
+            if (name.endsWith(extension)) return true;
+        }
+        return false;
+    }
+}
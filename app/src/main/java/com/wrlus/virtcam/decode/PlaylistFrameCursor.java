@@ -0,0 +1,160 @@
+package com.wrlus.virtcam.decode;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.wrlus.virtcam.utils.FramePool;
+import com.wrlus.virtcam.utils.VideoUtils;
+
+import java.io.File;
+
+/**
+ * Serve pre-decoded NV21 frames of a playlist. While a clip is served the next clip
+ * is decoded in the background, and the cursor switches over at the end of the clip
+ * once the next clip is ready, otherwise the current clip loops once more.
+ * A clip which fails to decode is skipped, or decoded again later if it is the only one.
+ * Frames are decoded at the size given, or the clip size if it is 0.
+ * Only the current and next clip keep their frame files, the ones of clips left behind
+ * are deleted unless another cursor serves them.
+ * Frames are read from the preview callback thread.
+ */
+public class PlaylistFrameCursor {
+    private static final String TAG = "PlaylistFrameCursor";
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+    private final Playlist playlist;
+    private final File baseFile;
+    private final int width;
+    private final int height;
+    private volatile DecodeJob current;
+    private File currentClip;
+    private volatile DecodeJob next;
+    private File nextClip;
+    private volatile long frameIndex = 0;
+    private long retryTimeMs = 0;
+    private long retryDelayMs = MIN_RETRY_DELAY_MS;
+    private boolean released = false;
+
+    public PlaylistFrameCursor(Playlist playlist, File baseFile, int width, int height) {
+        this.playlist = playlist;
+        this.baseFile = baseFile;
+        this.width = width;
+        this.height = height;
+        currentClip = playlist.next();
+        current = decode(currentClip);
+        if (playlist.size() > 1) {
+            decodeNext();
+        }
+    }
+
+    /**
+     * Read the next frame into a pooled slot, release it when done.
+     */
+    public synchronized FramePool.Slot nextFrame() {
+        if (released) {
+            return null;
+        }
+        if (current.getState() == DecodeJob.State.FAILED) {
+            retryFailedClip();
+        }
+        String[] frames = current.getFrames();
+        if (frames == null) {
+            return null;
+        }
+        retryDelayMs = MIN_RETRY_DELAY_MS;
+        if (frameIndex >= frames.length) {
+            frameIndex = 0;
+            if (next != null && next.isReady()) {
+                DecodeJob previous = current;
+                current = next;
+                currentClip = nextClip;
+                decodeNext();
+                releaseJob(previous);
+            } else if (next != null && next.getState() == DecodeJob.State.FAILED) {
+                // Keep looping this clip while the one after the broken clip decodes.
+                DecodeJob failed = next;
+                decodeNext();
+                releaseJob(failed);
+            }
+        }
+        return VideoUtils.readReplacedPreviewFrame(current, frameIndex++);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Index of the frame served last in the current clip, -1 if none was served.
+     */
+    public long getFrameIndex() {
+        return frameIndex - 1;
+    }
+
+    /**
+     * Read frame of the current clip into a pooled slot without moving the cursor, safe
+     * from any thread. Release it when done.
+     */
+    public FramePool.Slot readFrame(long index) {
+        return VideoUtils.readReplacedPreviewFrame(current, Math.max(0, index));
+    }
+
+    /**
+     * Stop decodes of this cursor which are not done yet and delete its frames, they are
+     * not wanted any more. Safe from any thread.
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        releaseJob(current);
+        if (next != null) releaseJob(next);
+    }
+
+    /**
+     * Skip the failed current clip, or decode it again through the registry if it is the
+     * only one. Backs off while clips keep failing.
+     */
+    private void retryFailedClip() {
+        long nowMs = SystemClock.uptimeMillis();
+        if (nowMs < retryTimeMs) {
+            return;
+        }
+        retryTimeMs = nowMs + retryDelayMs;
+        retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        if (next != null) {
+            Log.w(TAG, "Skip clip " + currentClip.getAbsolutePath() + ", decode failed");
+            DecodeJob failed = current;
+            current = next;
+            currentClip = nextClip;
+            decodeNext();
+            releaseJob(failed);
+        } else {
+            Log.w(TAG, "Decode clip " + currentClip.getAbsolutePath() + " again");
+            current = decode(currentClip);
+        }
+    }
+
+    private void decodeNext() {
+        nextClip = playlist.next();
+        next = decode(nextClip);
+    }
+
+    /**
+     * Release after the job taking over was obtained, so a clip which stays in use keeps
+     * its frames.
+     */
+    private void releaseJob(DecodeJob job) {
+        VideoUtils.releaseDecodedFrames(baseFile, job);
+    }
+
+    private DecodeJob decode(File clip) {
+        return VideoUtils.decodeVideoAndSaveNV21(clip,
+                VideoUtils.getDecodeDir(baseFile, clip, width, height), width, height);
+    }
+}
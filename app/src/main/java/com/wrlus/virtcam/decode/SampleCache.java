@@ -0,0 +1,222 @@
+package com.wrlus.virtcam.decode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compressed samples of one video track held in a direct buffer, with per-sample
+ * offset/size/time/flags arrays and an index of sync samples.
+ * Samples are appended in decode order while loading, lookups are binary searches.
+ * Only depends on java.nio.
+ */
+public class SampleCache {
+    public static final int FLAG_SYNC = 1;
+    private static final int INITIAL_SAMPLES = 256;
+
+    private ByteBuffer data;
+    private int dataSize = 0;
+    private int count = 0;
+    private int[] offsets = new int[INITIAL_SAMPLES];
+    private int[] sizes = new int[INITIAL_SAMPLES];
+    private long[] timesUs = new long[INITIAL_SAMPLES];
+    private int[] flags = new int[INITIAL_SAMPLES];
+    private int syncCount = 0;
+    private int[] syncSamples = new int[16];
+    private long[] syncTimesUs = new long[16];
+
+    public SampleCache(int capacity) {
+        data = ByteBuffer.allocateDirect(Math.max(capacity, 1));
+    }
+
+    /**
+     * Wrap samples loaded elsewhere, e.g. a read-only mapping of {@link SharedSampleStore}.
+     * Arrays are taken over, data must not be appended to.
+     */
+    SampleCache(ByteBuffer data, int count, int[] offsets, int[] sizes,
+                long[] timesUs, int[] flags) {
+        this.data = data;
+        this.count = count;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.timesUs = timesUs;
+        this.flags = flags;
+        this.dataSize = data.capacity();
+        for (int i = 0; i < count; i++) {
+            if ((flags[i] & FLAG_SYNC) != 0) ++syncCount;
+        }
+        syncSamples = new int[Math.max(syncCount, 1)];
+        syncTimesUs = new long[Math.max(syncCount, 1)];
+        int k = 0;
+        for (int i = 0; i < count; i++) {
+            if ((flags[i] & FLAG_SYNC) != 0) {
+                syncSamples[k] = i;
+                syncTimesUs[k] = timesUs[i];
+                ++k;
+            }
+        }
+    }
+
+    /**
+     * Get data buffer with at least maxSampleSize bytes free after {@link #getDataSize()},
+     * write the next sample there and then call {@link #commitSample}.
+     */
+    public ByteBuffer prepareAppend(int maxSampleSize) {
+        ensureCapacity(maxSampleSize);
+        return data;
+    }
+
+    public void commitSample(int size, long timeUs, int sampleFlags) {
+        if (count == offsets.length) {
+            int newLength = count * 2;
+            offsets = Arrays.copyOf(offsets, newLength);
+            sizes = Arrays.copyOf(sizes, newLength);
+            timesUs = Arrays.copyOf(timesUs, newLength);
+            flags = Arrays.copyOf(flags, newLength);
+        }
+        offsets[count] = dataSize;
+        sizes[count] = size;
+        timesUs[count] = timeUs;
+        flags[count] = sampleFlags;
+        if ((sampleFlags & FLAG_SYNC) != 0) {
+            if (syncCount == syncSamples.length) {
+                syncSamples = Arrays.copyOf(syncSamples, syncCount * 2);
+                syncTimesUs = Arrays.copyOf(syncTimesUs, syncCount * 2);
+            }
+            syncSamples[syncCount] = count;
+            syncTimesUs[syncCount] = timeUs;
+            ++syncCount;
+        }
+        dataSize += size;
+        ++count;
+    }
+
+    public void addSample(ByteBuffer sample, long timeUs, int sampleFlags) {
+        int size = sample.remaining();
+        ByteBuffer target = prepareAppend(size).duplicate();
+        target.limit(target.capacity());
+        target.position(dataSize);
+        target.put(sample.duplicate());
+        commitSample(size, timeUs, sampleFlags);
+    }
+
+    /**
+     * Copy sample into dst from position 0, like MediaExtractor.readSampleData.
+     *
+     * @return sample size, or -1 if index is past the last sample.
+     */
+    public int readSample(int index, ByteBuffer dst) {
+        if (index < 0 || index >= count) {
+            return -1;
+        }
+        ByteBuffer sample = data.duplicate();
+        sample.limit(offsets[index] + sizes[index]);
+        sample.position(offsets[index]);
+        dst.clear();
+        dst.put(sample);
+        return sizes[index];
+    }
+
+    public int getSampleOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Read-only view of all sample data, position 0 and limit {@link #getDataSize()}.
+     */
+    public ByteBuffer getData() {
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.position(0);
+        view.limit(dataSize);
+        return view;
+    }
+
+    public int getSampleCount() {
+        return count;
+    }
+
+    public int getSyncSampleCount() {
+        return syncCount;
+    }
+
+    public int getSyncSample(int syncIndex) {
+        return syncSamples[syncIndex];
+    }
+
+    public long getSampleTimeUs(int index) {
+        return timesUs[index];
+    }
+
+    public int getSampleSize(int index) {
+        return sizes[index];
+    }
+
+    public int getSampleFlags(int index) {
+        return flags[index];
+    }
+
+    public boolean isSyncSample(int index) {
+        return (flags[index] & FLAG_SYNC) != 0;
+    }
+
+    public int getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * Size of the data buffer, samples fit until it is grown.
+     */
+    int getCapacity() {
+        return data.capacity();
+    }
+
+    public long getDurationUs() {
+        long max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, timesUs[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Index of the last sync sample at or before timeUs, the first sync sample if timeUs is
+     * before all of them, or -1 if there are no sync samples.
+     */
+    public int findSyncSample(long timeUs) {
+        if (syncCount == 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = syncCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (syncTimesUs[mid] <= timeUs) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return syncSamples[low];
+    }
+
+    /**
+     * Index of the sync sample following sample index, or -1 if there is none.
+     */
+    public int findNextSyncSample(int index) {
+        int position = Arrays.binarySearch(syncSamples, 0, syncCount, index + 1);
+        if (position < 0) position = -position - 1;
+        return position < syncCount ? syncSamples[position] : -1;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (data.capacity() - dataSize >= extra) {
+            return;
+        }
+        int newCapacity = Math.max(data.capacity() * 2, dataSize + extra);
+        ByteBuffer grown = ByteBuffer.allocateDirect(newCapacity);
+        ByteBuffer old = data.duplicate();
+        old.position(0);
+        old.limit(dataSize);
+        grown.put(old);
+        data = grown;
+    }
+}
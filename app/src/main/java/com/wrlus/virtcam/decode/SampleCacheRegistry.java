@@ -0,0 +1,125 @@
+package com.wrlus.virtcam.decode;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.wrlus.virtcam.utils.Config;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference counted sample caches keyed by source file, a video is read from disk once
+ * however many decoders play it, and its cache is dropped when the last one releases it.
+ */
+public class SampleCacheRegistry {
+    private static final String TAG = "SampleCacheRegistry";
+    private static final String VARIANT = "samples";
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 1024 * 1024;
+    private static final Map<String, Entry> caches = new HashMap<>();
+
+    private static class Entry {
+        SampleCache cache;
+        boolean loaded = false;
+        int refCount = 0;
+    }
+
+    /**
+     * Get cache of the video track selected in extractor, loading it with this extractor
+     * if nobody did yet. The extractor is consumed and must be released by the caller.
+     *
+     * @return null if the video is too large to cache or loading failed, no reference is
+     * held then and {@link #release} must not be called.
+     */
+    public static SampleCache obtain(File file, MediaExtractor extractor, MediaFormat format) {
+        if (file.length() > Config.sampleCacheMaxBytes) {
+            return null;
+        }
+        String key = DecodeJobRegistry.key(file, VARIANT);
+        Entry entry;
+        boolean owner = false;
+        synchronized (caches) {
+            entry = caches.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                caches.put(key, entry);
+                owner = true;
+            }
+            ++entry.refCount;
+        }
+        if (owner) {
+            SampleCache cache = Config.enableSharedSampleCache ?
+                    SharedSampleStore.obtain(Config.sharedCacheDir, file,
+                            () -> load(file, extractor, format)) :
+                    load(file, extractor, format);
+            synchronized (caches) {
+                entry.cache = cache;
+                entry.loaded = true;
+                caches.notifyAll();
+            }
+        }
+        synchronized (caches) {
+            while (!entry.loaded) {
+                try {
+                    caches.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (entry.cache == null) {
+                unref(key, entry);
+            }
+            return entry.cache;
+        }
+    }
+
+    public static void release(File file) {
+        String key = DecodeJobRegistry.key(file, VARIANT);
+        synchronized (caches) {
+            Entry entry = caches.get(key);
+            if (entry != null) {
+                unref(key, entry);
+            }
+        }
+    }
+
+    private static void unref(String key, Entry entry) {
+        if (--entry.refCount <= 0) {
+            caches.remove(key, entry);
+        }
+    }
+
+    static SampleCache load(File file, MediaExtractor extractor, MediaFormat format) {
+        long startNs = System.nanoTime();
+        int maxSampleSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ?
+                format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_MAX_SAMPLE_SIZE;
+        // Compressed samples can not be larger than the file which contains them, so the
+        // buffer is allocated once and never grows.
+        int fileSize = (int) file.length();
+        SampleCache cache = new SampleCache(fileSize);
+        try {
+            while (true) {
+                int offset = cache.getDataSize();
+                // Nor can a sample be larger than the rest of the file, asking for
+                // maxSampleSize near its end would double the buffer.
+                int free = Math.max(Math.min(maxSampleSize, fileSize - offset), 0);
+                int size = extractor.readSampleData(cache.prepareAppend(free), offset);
+                if (size < 0) break;
+                int flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ?
+                        SampleCache.FLAG_SYNC : 0;
+                cache.commitSample(size, extractor.getSampleTime(), flags);
+                extractor.advance();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Load samples failed: " + file.getAbsolutePath(), e);
+            return null;
+        }
+        Log.i(TAG, "Cached " + cache.getSampleCount() + " samples (" +
+                cache.getSyncSampleCount() + " sync, " + cache.getDataSize() + " bytes) of " +
+                file.getAbsolutePath() + " in " + (System.nanoTime() - startNs) / 1000000 + " ms");
+        return cache;
+    }
+}
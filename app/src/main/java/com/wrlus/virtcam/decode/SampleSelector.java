@@ -0,0 +1,62 @@
+package com.wrlus.virtcam.decode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pick the compressed samples worth decoding for a consumer paced by a
+ * {@link DeliveryGovernor}: GOP tails it can not take at all are left out by a
+ * {@link GopThinner}, and non-reference frames while it is throttling. Free of codec calls,
+ * so the replay harness runs the same decisions as {@link LoopingDecoder}.
+ * <p>
+ * Not thread safe, use from the decoder thread only.
+ */
+public class SampleSelector {
+    private final GopThinner gopThinner = new GopThinner();
+    private String mime;
+    private int maxTemporalId = -1;
+
+    /**
+     * Samples of another stream follow, GOP thinning stops until its next sync sample.
+     *
+     * @param maxTemporalId see {@link NalUnits#isDisposable}.
+     */
+    public void setStream(String mime, int maxTemporalId) {
+        this.mime = mime;
+        this.maxTemporalId = maxTemporalId;
+        gopThinner.reset();
+    }
+
+    /**
+     * Sample index of cache is a sync sample, thin its GOP by interval.
+     *
+     * @param interval video frames per frame the consumer takes, 1 to decode everything.
+     */
+    public void startGop(SampleCache cache, int index, long frameDurationUs, int interval) {
+        int next = cache.findNextSyncSample(index);
+        gopThinner.startGop(cache.getSampleTimeUs(index),
+                (next >= 0 ? next : cache.getSampleCount()) - index,
+                next >= 0 ? cache.getSampleTimeUs(next) : Long.MAX_VALUE,
+                frameDurationUs, interval);
+    }
+
+    /**
+     * Whether the sample read into sample should be decoded. A skipped one is reported to
+     * governor, nothing references it and the consumer would not take it anyway.
+     */
+    public boolean shouldDecode(ByteBuffer sample, int size, long sampleTimeUs,
+                                DeliveryGovernor governor) {
+        if (gopThinner.shouldDecode(sampleTimeUs) && !(governor.isThrottling() &&
+                NalUnits.isDisposable(sample, size, mime, maxTemporalId))) {
+            return true;
+        }
+        governor.onDecodeSkipped();
+        return false;
+    }
+
+    /**
+     * See {@link GopThinner#mapSampleTime}.
+     */
+    public long mapSampleTime(long sampleTimeUs) {
+        return gopThinner.mapSampleTime(sampleTimeUs);
+    }
+}
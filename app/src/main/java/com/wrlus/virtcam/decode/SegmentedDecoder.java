@@ -0,0 +1,253 @@
+package com.wrlus.virtcam.decode;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.polarxiong.videotoimages.VideoToFrames;
+import com.wrlus.virtcam.utils.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pre-decode a video to NV21 frame files with several codec instances in parallel.
+ * <p>
+ * The cached track is split at sync samples into N segments, each one is decoded from its
+ * sync sample to the next segment start on its own codec and pool thread, and writes into
+ * its own slots of the frame table. Segment frames come out in presentation order, so a
+ * frame's global index is the segment's first sample index plus its output rank.
+ * N is bounded by the codec instances of the device less the ones left for the app's own
+ * camera and recording codecs and the live decoder. If a codec can not be created, the
+ * video is decoded by a single one.
+ */
+public class SegmentedDecoder {
+    private static final String TAG = "SegmentedDecoder";
+    private static final long DEFAULT_TIMEOUT_US = 10000;
+    /**
+     * Codec instances segments never take, for the app and {@link LoopingDecoder}.
+     */
+    private static final int RESERVED_CODEC_INSTANCES = 2;
+
+    private final File videoFile;
+    private final File outputDir;
+    private final DecodeJob job;
+    private final int outputWidth;
+    private final int outputHeight;
+    private SampleCache cache;
+    private MediaFormat format;
+    private String[] frameSlots;
+    private final AtomicInteger remainingSegments = new AtomicInteger();
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+    private long startNs;
+
+    private SegmentedDecoder(File videoFile, File outputDir, DecodeJob job,
+                             int outputWidth, int outputHeight) {
+        this.videoFile = videoFile;
+        this.outputDir = outputDir;
+        this.job = job;
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+    }
+
+    /**
+     * Decode on the blocking decode pool and finish or fail job when done.
+     * Loads the sample cache, so call it from a blocking pool thread.
+     *
+     * Frames are decimated to outputWidth x outputHeight, 0 keeps the video size.
+     *
+     * @return false if the video can not be segmented or no codec can be created, caller
+     * should decode sequentially.
+     */
+    public static boolean decode(File videoFile, File outputDir, DecodeJob job,
+                                 int outputWidth, int outputHeight) {
+        SegmentedDecoder decoder = new SegmentedDecoder(videoFile, outputDir, job,
+                outputWidth, outputHeight);
+        return decoder.prepare() && decoder.start();
+    }
+
+    private boolean prepare() {
+        startNs = System.nanoTime();
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(videoFile.toString());
+            int trackIndex = VideoToFrames.selectTrack(extractor);
+            if (trackIndex < 0) return false;
+            extractor.selectTrack(trackIndex);
+            format = extractor.getTrackFormat(trackIndex);
+            cache = SampleCacheRegistry.obtain(videoFile, extractor, format);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "prepare - " + e.getClass().getSimpleName(), e);
+            return false;
+        } finally {
+            extractor.release();
+        }
+        if (cache == null) {
+            return false;
+        }
+        if (cache.getSyncSampleCount() < 2) {
+            SampleCacheRegistry.release(videoFile);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean start() {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int maxSegments = Math.min(Math.min(Config.segmentedDecodeMaxSegments,
+                DecodeExecutor.getBlockingThreadCount()), cache.getSyncSampleCount());
+        List<MediaCodec> codecs = new ArrayList<>();
+        // Create codecs up front. Once the device can not give us one, instances are
+        // short and the video is decoded by a single codec.
+        for (int i = 0; i < maxSegments; i++) {
+            try {
+                MediaCodec codec = MediaCodec.createDecoderByType(mime);
+                if (i == 0) {
+                    MediaCodecInfo.CodecCapabilities caps =
+                            codec.getCodecInfo().getCapabilitiesForType(mime);
+                    maxSegments = Math.min(maxSegments,
+                            caps.getMaxSupportedInstances() - RESERVED_CODEC_INSTANCES);
+                }
+                codecs.add(codec);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Create codec " + i + " failed, decode with a single codec", e);
+                maxSegments = 1;
+                break;
+            }
+        }
+        while (codecs.size() > Math.max(maxSegments, 1)) {
+            codecs.remove(codecs.size() - 1).release();
+        }
+        if (codecs.isEmpty()) {
+            // Leave it to the sequential decoder, which retries creating its codec.
+            SampleCacheRegistry.release(videoFile);
+            return false;
+        }
+        int segments = codecs.size();
+        frameSlots = new String[cache.getSampleCount()];
+        remainingSegments.set(segments);
+        int syncCount = cache.getSyncSampleCount();
+        Log.i(TAG, "Decode " + videoFile.getAbsolutePath() + " in " + segments + " segments");
+        for (int i = 0; i < segments; i++) {
+            int firstSample = cache.getSyncSample(i * syncCount / segments);
+            int endSample = i == segments - 1 ? cache.getSampleCount() :
+                    cache.getSyncSample((i + 1) * syncCount / segments);
+            MediaCodec codec = codecs.get(i);
+            DecodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decodeSegment(codec, firstSample, endSample);
+                }
+            });
+        }
+        return true;
+    }
+
+    private void decodeSegment(MediaCodec codec, int firstSample, int endSample) {
+        try {
+            if (!failed.get()) {
+                MediaFormat segmentFormat = MediaFormat.createVideoFormat(
+                        format.getString(MediaFormat.KEY_MIME),
+                        format.getInteger(MediaFormat.KEY_WIDTH),
+                        format.getInteger(MediaFormat.KEY_HEIGHT));
+                for (String key : new String[]{"csd-0", "csd-1", "csd-2"}) {
+                    ByteBuffer csd = format.getByteBuffer(key);
+                    if (csd != null) segmentFormat.setByteBuffer(key, csd.duplicate());
+                }
+                segmentFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                        MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+                codec.configure(segmentFormat, null, null, 0);
+                codec.start();
+                decodeSamples(codec, firstSample, endSample);
+                codec.stop();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Decode segment [" + firstSample + ", " + endSample + ") failed", e);
+            failed.set(true);
+        } finally {
+            codec.release();
+            if (remainingSegments.decrementAndGet() == 0) {
+                onAllSegmentsFinished();
+            }
+        }
+    }
+
+    private void decodeSamples(MediaCodec codec, int firstSample, int endSample) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int nextSample = firstSample;
+        int outputRank = 0;
+        boolean sawInputEOS = false;
+        boolean sawOutputEOS = false;
+        while (!sawOutputEOS && !failed.get() && !job.isCancelled()) {
+            if (!sawInputEOS) {
+                int inputBufferId = codec.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
+                if (inputBufferId >= 0) {
+                    if (nextSample < endSample) {
+                        ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferId);
+                        int size = cache.readSample(nextSample, inputBuffer);
+                        codec.queueInputBuffer(inputBufferId, 0, size,
+                                cache.getSampleTimeUs(nextSample), 0);
+                        ++nextSample;
+                    } else {
+                        codec.queueInputBuffer(inputBufferId, 0, 0, 0L,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        sawInputEOS = true;
+                    }
+                }
+            }
+            int outputBufferId = codec.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
+            if (outputBufferId < 0) continue;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                sawOutputEOS = true;
+            }
+            if (info.size != 0) {
+                int frameIndex = firstSample + outputRank;
+                Image image = codec.getOutputImage(outputBufferId);
+                if (image != null && frameIndex < endSample) {
+                    frameSlots[frameIndex] = saveFrame(image, frameIndex);
+                    ++outputRank;
+                }
+                if (image != null) image.close();
+            }
+            codec.releaseOutputBuffer(outputBufferId, false);
+        }
+    }
+
+    private String saveFrame(Image image, int frameIndex) {
+        int width = outputWidth > 0 ? outputWidth : image.getCropRect().width();
+        int height = outputHeight > 0 ? outputHeight : image.getCropRect().height();
+        String fileName = new File(outputDir, String.format(Locale.getDefault(),
+                "frame_%05d_NV21_%dx%d.yuv", frameIndex + 1, width, height)).getAbsolutePath();
+        VideoToFrames.dumpImage(fileName, image, VideoToFrames.COLOR_FormatNV21,
+                outputWidth, outputHeight);
+        return fileName;
+    }
+
+    private void onAllSegmentsFinished() {
+        SampleCacheRegistry.release(videoFile);
+        if (failed.get() || job.isCancelled()) {
+            if (job.isCancelled()) {
+                Log.i(TAG, "Decode of " + videoFile.getAbsolutePath() + " cancelled");
+            }
+            job.fail();
+            return;
+        }
+        // Restore frame order, segments may have produced fewer frames than samples.
+        List<String> frames = new ArrayList<>(frameSlots.length);
+        for (String frame : frameSlots) {
+            if (frame != null) frames.add(frame);
+        }
+        job.finish(frames);
+        Log.i(TAG, "Decoded " + frames.size() + " frames of " + videoFile.getAbsolutePath() +
+                " in " + (System.nanoTime() - startNs) / 1000000 + " ms");
+    }
+}
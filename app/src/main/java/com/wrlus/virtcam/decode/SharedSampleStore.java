@@ -0,0 +1,307 @@
+package com.wrlus.virtcam.decode;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Sample caches shared by all hooked processes through memory-mapped files keyed by source
+ * content, so a video used by several apps is loaded once and its pages are shared.
+ * <p>
+ * The first process takes an exclusive file lock, loads the samples, writes them to a
+ * temporary file and renames it in place once complete. Others wait on the lock and map
+ * the published file read-only. The kernel drops the lock of a crashed producer, and a
+ * half-written temporary file is never visible under the published name, so the next
+ * process just loads again. Published files are validated by magic, version, sizes and
+ * checksums of index and sample data before use.
+ * <p>
+ * Checksums catch damaged files, not planted ones: anyone who can write the directory can
+ * publish samples every hooked app then feeds to its decoder.
+ */
+public class SharedSampleStore {
+    private static final String TAG = "SharedSampleStore";
+    private static final int MAGIC = 0x56435343; // "VCSC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int INDEX_ENTRY_SIZE = 20;
+    private static final int PAGE_SIZE = 4096;
+    private static final int KEY_BUFFER_BYTES = 1024 * 1024;
+    private static final ConcurrentHashMap<String, Object> processLocks =
+            new ConcurrentHashMap<>();
+    /**
+     * Content keys hashed by this process, by source path, length and mtime.
+     */
+    private static final ConcurrentHashMap<String, String> contentKeys =
+            new ConcurrentHashMap<>();
+
+    // Header layout, all big endian.
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_COUNT = 8;
+    private static final int OFF_DATA_OFFSET = 12;
+    private static final int OFF_DATA_SIZE = 16;
+    private static final int OFF_SOURCE_LENGTH = 20;
+    private static final int OFF_INDEX_CRC = 28;
+    private static final int OFF_PUBLISHED = 36;
+    private static final int OFF_DATA_CRC = 40;
+
+    public interface Loader {
+        /**
+         * Load samples in this process, null on failure.
+         */
+        SampleCache load();
+    }
+
+    /**
+     * Get shared samples of source, loading and publishing them with loader if no process
+     * did yet. Falls back to a process-local load if dir is not usable.
+     */
+    public static SampleCache obtain(File dir, File source, Loader loader) {
+        String key;
+        try {
+            key = contentKey(source);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot hash " + source.getAbsolutePath() + ", load locally", e);
+            return loader.load();
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Shared cache dir not usable: " + dir.getAbsolutePath());
+            return loader.load();
+        }
+        File published = new File(dir, key + ".v" + VERSION + ".vsc");
+        SampleCache cache = map(published, source.length());
+        if (cache != null) {
+            return cache;
+        }
+        // File locks are held per process, threads of this process queue up here first.
+        Object processLock = processLocks.computeIfAbsent(key, k -> new Object());
+        synchronized (processLock) {
+            return loadLocked(dir, key, published, source, loader);
+        }
+    }
+
+    private static SampleCache loadLocked(File dir, String key, File published, File source,
+                                          Loader loader) {
+        File lockFile = new File(dir, key + ".lock");
+        // Loader consumes its extractor, it must run at most once.
+        boolean loadAttempted = false;
+        SampleCache loaded = null;
+        try (RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw")) {
+            FileLock lock = lockRaf.getChannel().lock();
+            try {
+                // Another process may have published while we waited.
+                SampleCache cache = map(published, source.length());
+                if (cache != null) {
+                    return cache;
+                }
+                if (published.exists()) {
+                    Log.w(TAG, "Discard invalid shared cache " + published.getName());
+                    published.delete();
+                }
+                loadAttempted = true;
+                loaded = loader.load();
+                cache = loaded;
+                if (cache == null) {
+                    return null;
+                }
+                File temp = new File(dir, key + ".tmp");
+                try {
+                    write(cache, temp, source.length());
+                } catch (IOException e) {
+                    Log.e(TAG, "Publish shared cache failed: " + published.getName(), e);
+                    temp.delete();
+                    return cache;
+                }
+                if (!temp.renameTo(published)) {
+                    Log.e(TAG, "Rename shared cache failed: " + published.getName());
+                    temp.delete();
+                    return cache;
+                }
+                // Serve from the mapping, so the local copy can be dropped.
+                SampleCache shared = map(published, source.length());
+                Log.i(TAG, "Published " + cache.getSampleCount() + " samples to " +
+                        published.getAbsolutePath());
+                return shared != null ? shared : cache;
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            if (loadAttempted) {
+                // Unlocking failed after loading, the local copy is still good.
+                Log.w(TAG, "Release shared cache lock failed: " + lockFile.getAbsolutePath(), e);
+                return loaded;
+            }
+            Log.w(TAG, "Cannot lock shared cache " + lockFile.getAbsolutePath() +
+                    ", load locally", e);
+            return loader.load();
+        }
+    }
+
+    private static void write(SampleCache cache, File temp, long sourceLength)
+            throws IOException {
+        int count = cache.getSampleCount();
+        int indexSize = count * INDEX_ENTRY_SIZE;
+        int dataOffset = alignToPage(HEADER_SIZE + indexSize);
+        ByteBuffer index = ByteBuffer.allocate(indexSize);
+        for (int i = 0; i < count; i++) {
+            index.putInt(cache.getSampleOffset(i));
+            index.putInt(cache.getSampleSize(i));
+            index.putLong(cache.getSampleTimeUs(i));
+            index.putInt(cache.getSampleFlags(i));
+        }
+        index.flip();
+        CRC32 crc = new CRC32();
+        crc.update(index.array(), 0, indexSize);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(OFF_MAGIC, MAGIC);
+        header.putInt(OFF_VERSION, VERSION);
+        header.putInt(OFF_COUNT, count);
+        header.putInt(OFF_DATA_OFFSET, dataOffset);
+        header.putInt(OFF_DATA_SIZE, cache.getDataSize());
+        header.putLong(OFF_SOURCE_LENGTH, sourceLength);
+        header.putLong(OFF_INDEX_CRC, crc.getValue());
+        header.putLong(OFF_DATA_CRC, dataCrc(cache.getData()));
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            writeFully(channel, index, HEADER_SIZE);
+            writeFully(channel, cache.getData(), dataOffset);
+            channel.force(false);
+            // Header last, published flag only lands once everything else is on disk.
+            header.putInt(OFF_PUBLISHED, 1);
+            writeFully(channel, header, 0);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Map published file read-only, null if it is missing, incomplete or of other version.
+     */
+    private static SampleCache map(File file, long sourceLength) {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long fileSize = channel.size();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            if (mapped.getInt(OFF_MAGIC) != MAGIC || mapped.getInt(OFF_VERSION) != VERSION ||
+                    mapped.getInt(OFF_PUBLISHED) != 1 ||
+                    mapped.getLong(OFF_SOURCE_LENGTH) != sourceLength) {
+                return null;
+            }
+            int count = mapped.getInt(OFF_COUNT);
+            int dataOffset = mapped.getInt(OFF_DATA_OFFSET);
+            int dataSize = mapped.getInt(OFF_DATA_SIZE);
+            long indexEnd = HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE;
+            if (count < 0 || dataSize < 0 || dataOffset < indexEnd ||
+                    (long) dataOffset + dataSize > fileSize) {
+                return null;
+            }
+            ByteBuffer index = mapped.duplicate();
+            index.position(HEADER_SIZE);
+            index.limit((int) indexEnd);
+            CRC32 crc = new CRC32();
+            byte[] indexBytes = new byte[index.remaining()];
+            index.duplicate().get(indexBytes);
+            crc.update(indexBytes, 0, indexBytes.length);
+            if (crc.getValue() != mapped.getLong(OFF_INDEX_CRC)) {
+                return null;
+            }
+            int[] offsets = new int[count];
+            int[] sizes = new int[count];
+            long[] timesUs = new long[count];
+            int[] flags = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = index.getInt();
+                sizes[i] = index.getInt();
+                timesUs[i] = index.getLong();
+                flags[i] = index.getInt();
+                if (offsets[i] < 0 || sizes[i] < 0 || (long) offsets[i] + sizes[i] > dataSize) {
+                    return null;
+                }
+            }
+            ByteBuffer data = mapped.duplicate();
+            data.position(dataOffset);
+            data.limit(dataOffset + dataSize);
+            data = data.slice();
+            if (dataCrc(data) != mapped.getLong(OFF_DATA_CRC)) {
+                Log.w(TAG, "Sample data checksum mismatch: " + file.getAbsolutePath());
+                return null;
+            }
+            return new SampleCache(data, count, offsets, sizes, timesUs, flags);
+        } catch (IOException e) {
+            Log.w(TAG, "Map shared cache failed: " + file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Hex SHA-1 of the whole source, so copies of one video in different app directories
+     * share the key while any change to a video gives a new one. Hashed once per process
+     * and version of the file.
+     */
+    static String contentKey(File source) throws IOException {
+        String fileKey = DecodeJobRegistry.key(source, "SHA-1");
+        String key = contentKeys.get(fileKey);
+        if (key == null) {
+            key = hashContent(source);
+            contentKeys.put(fileKey, key);
+        }
+        return key;
+    }
+
+    private static String hashContent(File source) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(KEY_BUFFER_BYTES);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static long dataCrc(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        ByteBuffer src = buffer.duplicate();
+        src.position(0);
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    private static int alignToPage(int size) {
+        return (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+}
@@ -6,21 +6,40 @@ import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.SessionConfiguration;
+import android.media.Image;
 import android.media.ImageReader;
+import android.media.ImageWriter;
 import android.os.Build;
 import android.os.Handler;
 import android.util.Log;
+import android.util.Range;
+import android.util.Size;
 import android.view.Surface;
 
+import com.wrlus.virtcam.decode.DecodeExecutor;
+import com.wrlus.virtcam.decode.DecodeJob;
+import com.wrlus.virtcam.decode.DecodeSizeNegotiator;
+import com.wrlus.virtcam.decode.DeliveryGovernor;
+import com.wrlus.virtcam.decode.Playlist;
+import com.wrlus.virtcam.source.FrameSources;
+import com.wrlus.virtcam.source.LastFrameSource;
+import com.wrlus.virtcam.source.LatencyProbe;
+import com.wrlus.virtcam.source.StillCaptureCache;
+import com.wrlus.virtcam.source.SurfaceFrameInjector;
 import com.wrlus.virtcam.utils.Config;
+import com.wrlus.virtcam.utils.FramePool;
+import com.wrlus.virtcam.utils.TraceLog;
 import com.wrlus.virtcam.utils.VideoUtils;
 import com.wrlus.xposed.framework.HookInterface;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import de.robv.android.xposed.XC_MethodHook;
 import de.robv.android.xposed.XposedHelpers;
@@ -31,17 +50,28 @@ import de.robv.android.xposed.callbacks.XC_LoadPackage;
  */
 public class Camera2Hooker implements HookInterface {
     private static final String TAG = "VirtCamera-2";
+    /**
+     * How long the first capture of a video session waits for the still pre-decode.
+     */
+    private static final long STILL_DECODE_TIMEOUT_MS = 3000;
     private int addTargetSurfaceCount = 0;
+    /**
+     * Current session is a constrained high-speed session.
+     */
+    private volatile boolean highSpeedSession = false;
+    /**
+     * Pre-encoded stills for JPEG outputs, started once a JPEG output is configured. Video
+     * frames are only pre-decoded from the first capture on.
+     */
+    private volatile StillCaptureCache stillCaptureCache;
     private final Map<Surface, CameraHookResource> hookTextureMap =
             new ConcurrentHashMap<>();
     private final File baseFile;
     private final File videoFile;
-    private final File rotatedVideoFile;
 
     public Camera2Hooker(File baseFile) {
         this.baseFile = baseFile;
         videoFile = new File(baseFile, Config.videoPath);
-        rotatedVideoFile = new File(baseFile, Config.rotatedVideoPath);
     }
 
     @Override
@@ -50,9 +80,9 @@ public class Camera2Hooker implements HookInterface {
     }
 
     private void startHook(ClassLoader classLoader) {
-        if (!videoFile.exists()) {
-            Log.e(TAG, "Cannot find virtual video, please put in " +
-                    videoFile.getAbsolutePath());
+        if (!FrameSources.isAvailable(baseFile)) {
+            Log.e(TAG, "Cannot find virtual source, please put in " +
+                    FrameSources.getSourceFile(baseFile).getAbsolutePath());
             return;
         }
         XposedHelpers.findAndHookMethod("android.hardware.camera2.impl.CameraDeviceImpl",
@@ -60,45 +90,17 @@ public class Camera2Hooker implements HookInterface {
                 CameraCaptureSession.StateCallback.class, Handler.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "Before createCaptureSession");
-                        List<Surface> outputs = (List<Surface>) param.args[0];
-                        List<Surface> fakeOutputs = new ArrayList<>();
-                        int i = 1;
-                        for (Surface output : outputs) {
-                            Log.e(TAG, "Output surface: " + output);
-                            if (!hookTextureMap.containsKey(output)) {
-                                Surface fakeSurface;
-                                if (isCreateBySurfaceTexture(output)) {
-                                    SurfaceTexture fakeSurfaceTexture =
-                                            createFakeSurfaceTexture(10 + i);
-                                    fakeSurface = new Surface(fakeSurfaceTexture);
-                                    hookTextureMap.put(output,
-                                            new CameraHookResource(fakeSurface, fakeSurfaceTexture));
-                                } else {
-                                    ImageReader imageReader = createFakeImageReader();
-                                    fakeSurface = imageReader.getSurface();
-                                    hookTextureMap.put(output,
-                                            new CameraHookResource(fakeSurface, imageReader));
-                                }
-                                fakeOutputs.add(fakeSurface);
-                                Log.w(TAG, "Create fakeSurface in createCaptureSession: " +
-                                        output + " -> " + fakeSurface);
-                            } else {
-                                // If surface is exist in hookTextureQueue,
-                                // this means it has been already hooked in addTarget method.
-                                CameraHookResource resource = hookTextureMap.get(output);
-                                if (resource != null) {
-                                    fakeOutputs.add(resource.fakeSurface);
-                                    resource.isConfigured = true;
-                                    Log.w(TAG, "Reuse fakeSurface in createCaptureSession: " +
-                                            output + " -> " + resource.fakeSurface);
-                                }
-                            }
-                            ++i;
-                        }
-                        param.args[0] = fakeOutputs;
-                        Log.w(TAG, "createCaptureSession: " +
-                                "replaced with " + (i - 1) + " fake surfaces !!!");
+                        highSpeedSession = false;
+                        param.args[0] = replaceOutputs((List<Surface>) param.args[0], false);
+                    }
+                });
+        XposedHelpers.findAndHookMethod("android.hardware.camera2.impl.CameraDeviceImpl",
+                classLoader, "createConstrainedHighSpeedCaptureSession", List.class,
+                CameraCaptureSession.StateCallback.class, Handler.class, new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(MethodHookParam param) {
+                        highSpeedSession = true;
+                        param.args[0] = replaceOutputs((List<Surface>) param.args[0], true);
                     }
                 });
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
@@ -107,28 +109,18 @@ public class Camera2Hooker implements HookInterface {
                     new XC_MethodHook() {
                         @Override
                         protected void beforeHookedMethod(MethodHookParam param) {
-                            Log.w(TAG, "Before createCaptureSession");
                             SessionConfiguration config = (SessionConfiguration) param.args[0];
+                            boolean highSpeed = config.getSessionType() ==
+                                    SessionConfiguration.SESSION_HIGH_SPEED;
+                            highSpeedSession = highSpeed;
                             List<OutputConfiguration> outputConfigs = config.getOutputConfigurations();
                             List<OutputConfiguration> fakeOutputConfigs = new ArrayList<>();
                             int i = 1;
                             for (OutputConfiguration outputConfig : outputConfigs) {
-                                Log.w(TAG, "Output config: " + outputConfig);
                                 Surface output = outputConfig.getSurface();
                                 if (!hookTextureMap.containsKey(output)) {
-                                    Surface fakeSurface;
-                                    if (isCreateBySurfaceTexture(output)) {
-                                        SurfaceTexture fakeSurfaceTexture =
-                                                createFakeSurfaceTexture(10 + i);
-                                        fakeSurface = new Surface(fakeSurfaceTexture);
-                                        hookTextureMap.put(output,
-                                                new CameraHookResource(fakeSurface, fakeSurfaceTexture));
-                                    } else {
-                                        ImageReader imageReader = createFakeImageReader();
-                                        fakeSurface = imageReader.getSurface();
-                                        hookTextureMap.put(output,
-                                                new CameraHookResource(fakeSurface, imageReader));
-                                    }
+                                    Surface fakeSurface =
+                                            createFakeOutput(output, 10 + i, highSpeed);
                                     OutputConfiguration fakeConfig = new OutputConfiguration(fakeSurface);
                                     fakeOutputConfigs.add(fakeConfig);
                                     Log.w(TAG, "Create fakeSurface in createCaptureSession: " +
@@ -142,8 +134,6 @@ public class Camera2Hooker implements HookInterface {
                                                 new OutputConfiguration(resource.fakeSurface);
                                         fakeOutputConfigs.add(fakeConfig);
                                         resource.isConfigured = true;
-                                        Log.w(TAG, "Reuse fakeSurface in createCaptureSession: " +
-                                                output + " -> " + resource.fakeSurface);
                                     }
                                 }
                                 ++i;
@@ -152,8 +142,8 @@ public class Camera2Hooker implements HookInterface {
                                     config.getSessionType(), fakeOutputConfigs, config.getExecutor(),
                                     config.getStateCallback());
                             param.args[0] = fakeConfig;
-                            Log.w(TAG, "createCaptureSession (SessionConfiguration): " +
-                                    "replaced with " + (i - 1) + " fake surfaces !!!");
+                            TraceLog.event(TraceLog.Event.CAMERA2_CREATE_SESSION, i - 1,
+                                    config.getSessionType());
                         }
                     });
         }
@@ -161,36 +151,26 @@ public class Camera2Hooker implements HookInterface {
                 "addTarget", Surface.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "Before addTarget");
                         Surface target = (Surface) param.args[0];
                         if (!hookTextureMap.containsKey(target)) {
                             // In some cases, addTarget will be called BEFORE createCaptureSession.
                             // So we need to generate fake surface in this hook callback.
-                            Surface fakeSurface;
-                            if (isCreateBySurfaceTexture(target)) {
-                                SurfaceTexture fakeSurfaceTexture =
-                                        createFakeSurfaceTexture(20 + addTargetSurfaceCount);
-                                fakeSurface = new Surface(fakeSurfaceTexture);
-                                hookTextureMap.put(target,
-                                        new CameraHookResource(fakeSurface, fakeSurfaceTexture));
-                            } else {
-                                ImageReader imageReader = createFakeImageReader();
-                                fakeSurface = imageReader.getSurface();
-                                hookTextureMap.put(target,
-                                        new CameraHookResource(fakeSurface, imageReader));
-                            }
+                            Surface fakeSurface = createFakeOutput(target,
+                                    20 + addTargetSurfaceCount, highSpeedSession);
                             param.args[0] = fakeSurface;
                             ++addTargetSurfaceCount;
                             Log.w(TAG, "Create fakeSurface in addTarget: " +
                                     target + " -> " + fakeSurface);
+                            TraceLog.event(TraceLog.Event.CAMERA2_ADD_TARGET,
+                                    System.identityHashCode(target), 0);
                         } else {
                             // Already hooked in createCaptureSession.
                             CameraHookResource resource = hookTextureMap.get(target);
                             if (resource != null) {
                                 param.args[0] = resource.fakeSurface;
                                 resource.isConfigured = true;
-                                Log.w(TAG, "Reuse fakeSurface in addTarget: " +
-                                        target + " -> " + resource.fakeSurface);
+                                TraceLog.event(TraceLog.Event.CAMERA2_ADD_TARGET,
+                                        System.identityHashCode(target), 1);
                             }
                         }
                     }
@@ -200,45 +180,473 @@ public class Camera2Hooker implements HookInterface {
                 CameraCaptureSession.CaptureCallback.class, Handler.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "Before setRepeatingRequest");
-                        for (Surface output : hookTextureMap.keySet()) {
-                            if (output != null && output.isValid()) {
-                                CameraHookResource resource = hookTextureMap.get(output);
-                                // Use MediaPlayer to inject SurfaceTexture.
-                                if (isCreateBySurfaceTexture(output) &&
-                                        resource.mediaPlayer == null && resource.isConfigured) {
-                                    resource.mediaPlayer =
-                                            VideoUtils.playVideo(videoFile, output);
-                                    Log.d(TAG, "Start playing video on output surface: " + output);
-                                }
-                                // Use MediaCodec to inject ImageReader.
-                                if (!isCreateBySurfaceTexture(output) &&
-                                        resource.mediaCodec == null && resource.isConfigured) {
-                                    if (rotatedVideoFile.exists()) {
-                                        resource.mediaCodec = VideoUtils.decodeVideoToSurface(
-                                                rotatedVideoFile, output);
-                                        Log.d(TAG, "Start decode video on output surface: " + output);
-                                    }
-                                }
-                            }
-                        }
+                        TraceLog.event(TraceLog.Event.CAMERA2_SET_REPEATING_REQUEST,
+                                hookTextureMap.size());
+                        startInjection(0, 1);
+                    }
+                });
+        XposedHelpers.findAndHookMethod("android.hardware.camera2.impl.CameraCaptureSessionImpl",
+                classLoader, "setRepeatingBurst", List.class,
+                CameraCaptureSession.CaptureCallback.class, Handler.class, new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(MethodHookParam param) {
+                        List<CaptureRequest> requests = (List<CaptureRequest>) param.args[0];
+                        TraceLog.event(TraceLog.Event.CAMERA2_SET_REPEATING_BURST,
+                                requests.size());
+                        startInjection(getTargetFps(requests), requests.size());
+                    }
+                });
+        XposedHelpers.findAndHookMethod("android.hardware.camera2.impl.CameraCaptureSessionImpl",
+                classLoader, "captureBurst", List.class,
+                CameraCaptureSession.CaptureCallback.class, Handler.class, new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(MethodHookParam param) {
+                        List<CaptureRequest> requests = (List<CaptureRequest>) param.args[0];
+                        TraceLog.event(TraceLog.Event.CAMERA2_CAPTURE_BURST, requests.size());
+                        startInjection(getTargetFps(requests), requests.size());
+                        deliverStills(requests);
+                    }
+                });
+        XposedHelpers.findAndHookMethod("android.hardware.camera2.impl.CameraCaptureSessionImpl",
+                classLoader, "capture", CaptureRequest.class,
+                CameraCaptureSession.CaptureCallback.class, Handler.class, new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(MethodHookParam param) {
+                        TraceLog.event(TraceLog.Event.CAMERA2_CAPTURE);
+                        // Single captures target outputs which may never had a repeating request.
+                        startInjection(0, 1);
+                        deliverStills(Collections.singletonList((CaptureRequest) param.args[0]));
                     }
                 });
         XposedHelpers.findAndHookMethod("android.hardware.camera2.impl.CameraDeviceImpl",
                 classLoader, "close", new XC_MethodHook() {
                     @Override
                     protected void afterHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "After close");
+                        TraceLog.event(TraceLog.Event.CAMERA2_CLOSE, hookTextureMap.size());
+                        if (Config.enableTraceDumpOnClose) {
+                            TraceLog.dump("camera2 close");
+                        }
+                        for (Surface output : hookTextureMap.keySet()) {
+                            DecodeSizeNegotiator.removeConsumer(output);
+                        }
                         for (CameraHookResource resource : hookTextureMap.values()) {
                             if (resource.fakeSurfaceTexture != null) resource.fakeSurfaceTexture.release();
                             if (resource.fakeImageReader != null) resource.fakeImageReader.close();
                             if (resource.mediaPlayer != null) resource.mediaPlayer.release();
-                            if (resource.mediaCodec != null) resource.mediaCodec.release();
+                            if (resource.videoDecoder != null) resource.videoDecoder.release();
+                            if (resource.frameInjector != null) resource.frameInjector.release();
+                            if (resource.jpegWriter != null) resource.jpegWriter.close();
+                        }
+                        if (stillCaptureCache != null) {
+                            stillCaptureCache.release();
+                            stillCaptureCache = null;
                         }
                         addTargetSurfaceCount = 0;
+                        highSpeedSession = false;
                         hookTextureMap.clear();
                     }
                 });
+        if (Config.enableDeliveryGovernor || Config.enableLatencyProbe) {
+            try {
+                hookImageReaderConsumer(classLoader);
+            } catch (NoSuchMethodError | XposedHelpers.ClassNotFoundError e) {
+                // Private ImageReader internals differ on this ROM, deliver every frame.
+                Log.w(TAG, "Cannot hook ImageReader consumer, delivery governor and " +
+                        "latency probe disabled", e);
+            }
+        }
+    }
+
+    /**
+     * Track images held by app ImageReaders we feed, both acquireNextImage and
+     * acquireLatestImage go through acquireNextSurfaceImage.
+     */
+    private void hookImageReaderConsumer(ClassLoader classLoader) {
+        Class<?> surfaceImageClass = XposedHelpers.findClass(
+                "android.media.ImageReader$SurfaceImage", classLoader);
+        XposedHelpers.findAndHookMethod(ImageReader.class, "acquireNextSurfaceImage",
+                surfaceImageClass, new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        // ImageReader.ACQUIRE_SUCCESS
+                        if (!Integer.valueOf(0).equals(param.getResult())) return;
+                        ImageReader reader = (ImageReader) param.thisObject;
+                        CameraHookResource resource = getHookResource(reader);
+                        if (resource == null) return;
+                        long nowNs = System.nanoTime();
+                        if (resource.deliveryGovernor != null) {
+                            resource.deliveryGovernor.onConsumerAcquire(
+                                    reader.getMaxImages(), nowNs);
+                        }
+                        if (Config.enableLatencyProbe &&
+                                reader.getImageFormat() == ImageFormat.YUV_420_888) {
+                            readProbeMarker(resource, (Image) param.args[0], nowNs);
+                        }
+                    }
+                });
+        XposedHelpers.findAndHookMethod(ImageReader.class, "releaseImage",
+                Image.class, new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(MethodHookParam param) {
+                        DeliveryGovernor governor =
+                                getDeliveryGovernor((ImageReader) param.thisObject);
+                        if (governor == null) return;
+                        // Closing an image twice must not free the slot twice.
+                        if (!XposedHelpers.getBooleanField(param.args[0], "mIsImageValid")) return;
+                        governor.onConsumerRelease(System.nanoTime());
+                    }
+                });
+    }
+
+    private CameraHookResource getHookResource(ImageReader reader) {
+        if (hookTextureMap.isEmpty()) return null;
+        return hookTextureMap.get(reader.getSurface());
+    }
+
+    private DeliveryGovernor getDeliveryGovernor(ImageReader reader) {
+        CameraHookResource resource = getHookResource(reader);
+        return resource != null ? resource.deliveryGovernor : null;
+    }
+
+    /**
+     * Read the latency probe marker of an image the app just acquired, and note frames
+     * the app never acquired or got twice.
+     */
+    private void readProbeMarker(CameraHookResource resource, Image image, long nowNs) {
+        Image.Plane luma = image.getPlanes()[0];
+        LatencyProbe.Marker marker = resource.probeMarker;
+        if (!LatencyProbe.decode(luma.getBuffer(), luma.getRowStride(),
+                image.getWidth(), image.getHeight(), marker)) {
+            return;
+        }
+        TraceLog.event(TraceLog.Event.PROBE_CONSUMED, marker.frameIndex,
+                marker.getLatencyUs(nowNs));
+        long expected = resource.lastProbeFrameIndex + 1;
+        if (resource.lastProbeFrameIndex >= 0 && marker.frameIndex != expected) {
+            TraceLog.event(TraceLog.Event.PROBE_FRAME_GAP, expected, marker.frameIndex);
+        }
+        resource.lastProbeFrameIndex = marker.frameIndex;
+    }
+
+    /**
+     * Replace session outputs with fake surfaces, reusing those created in addTarget.
+     */
+    private List<Surface> replaceOutputs(List<Surface> outputs, boolean highSpeed) {
+        List<Surface> fakeOutputs = new ArrayList<>();
+        int i = 1;
+        for (Surface output : outputs) {
+            if (!hookTextureMap.containsKey(output)) {
+                Surface fakeSurface = createFakeOutput(output, 10 + i, highSpeed);
+                fakeOutputs.add(fakeSurface);
+                Log.w(TAG, "Create fakeSurface in createCaptureSession: " +
+                        output + " -> " + fakeSurface);
+            } else {
+                // If surface is exist in hookTextureQueue,
+                // this means it has been already hooked in addTarget method.
+                CameraHookResource resource = hookTextureMap.get(output);
+                if (resource != null) {
+                    fakeOutputs.add(resource.fakeSurface);
+                    resource.isConfigured = true;
+                }
+            }
+            ++i;
+        }
+        TraceLog.event(TraceLog.Event.CAMERA2_CREATE_SESSION, i - 1, highSpeed ? 1 : 0);
+        return fakeOutputs;
+    }
+
+    /**
+     * Create fake surface for output and remember it. High-speed sessions only accept
+     * preview or encoder surfaces of a supported high-speed size, so they always get a
+     * SurfaceTexture of the output size.
+     */
+    private Surface createFakeOutput(Surface output, int texName, boolean highSpeed) {
+        CameraHookResource resource;
+        // ImageReader size or SurfaceTexture default buffer size set by the app.
+        Size size = getSurfaceSize(output);
+        if (size != null) {
+            DecodeSizeNegotiator.addConsumer(output, size.getWidth(), size.getHeight());
+        }
+        if (highSpeed || isCreateBySurfaceTexture(output)) {
+            SurfaceTexture fakeSurfaceTexture = createFakeSurfaceTexture(texName);
+            if (highSpeed && size != null) {
+                fakeSurfaceTexture.setDefaultBufferSize(size.getWidth(), size.getHeight());
+            }
+            resource = new CameraHookResource(new Surface(fakeSurfaceTexture),
+                    fakeSurfaceTexture);
+        } else {
+            ImageReader imageReader = createFakeImageReader();
+            resource = new CameraHookResource(imageReader.getSurface(), imageReader);
+            resource.isJpegOutput = isJpegSurface(output);
+        }
+        hookTextureMap.put(output, resource);
+        return resource.fakeSurface;
+    }
+
+    /**
+     * Start feeding every configured output which is not fed yet.
+     *
+     * @param targetFps forced output rate of a high-speed session, 0 for the normal rate.
+     * @param burstSize requests per burst, frames are queued in batches of this size.
+     */
+    private void startInjection(int targetFps, int burstSize) {
+        for (Surface output : hookTextureMap.keySet()) {
+            if (output != null && output.isValid()) {
+                CameraHookResource resource = hookTextureMap.get(output);
+                // JPEG outputs only get stills on capture.
+                if (resource.isJpegOutput) {
+                    if (resource.isConfigured && Config.enableStillCapture &&
+                            stillCaptureCache == null) {
+                        stillCaptureCache = StillCaptureCache.start(
+                                createStillFrameProvider());
+                    }
+                    continue;
+                }
+                // Use ImageWriter or Canvas to inject still image and pattern.
+                if (!FrameSources.isVideoSource()) {
+                    if (resource.frameInjector == null && resource.isConfigured) {
+                        resource.frameSource = new LastFrameSource(
+                                FrameSources.create(baseFile));
+                        resource.frameInjector = SurfaceFrameInjector.start(output,
+                                resource.frameSource, !isCreateBySurfaceTexture(output),
+                                targetFps);
+                        Log.d(TAG, "Start inject frames on output surface: " + output);
+                    }
+                    continue;
+                }
+                // Use gapless decoder or MediaPlayer to inject SurfaceTexture.
+                if (isCreateBySurfaceTexture(output) && resource.isConfigured &&
+                        resource.mediaPlayer == null && resource.videoDecoder == null) {
+                    // MediaPlayer can not be driven at a high-speed rate.
+                    if (FrameSources.useLoopingDecoder() || targetFps > 0) {
+                        Playlist playlist = FrameSources.createPlaylist(
+                                baseFile, Config.videoPath);
+                        if (playlist != null) {
+                            resource.videoDecoder = VideoUtils.decodeVideoToSurface(
+                                    playlist, output, targetFps, burstSize);
+                        }
+                    } else {
+                        resource.mediaPlayer =
+                                VideoUtils.playVideo(videoFile, output);
+                    }
+                    Log.d(TAG, "Start playing video on output surface: " + output);
+                }
+                // Use MediaCodec to inject ImageReader.
+                if (!isCreateBySurfaceTexture(output) &&
+                        resource.videoDecoder == null && resource.isConfigured) {
+                    Playlist playlist = FrameSources.createPlaylist(
+                            baseFile, Config.rotatedVideoPath);
+                    if (playlist != null) {
+                        resource.videoDecoder = VideoUtils.decodeVideoToSurface(
+                                playlist, output, targetFps, burstSize);
+                        if (Config.enableDeliveryGovernor) {
+                            resource.deliveryGovernor =
+                                    new DeliveryGovernor(output.toString());
+                            resource.videoDecoder.setDeliveryGovernor(
+                                    resource.deliveryGovernor);
+                        }
+                        Log.d(TAG, "Start decode video on output surface: " + output);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the still of the current preview frame into every JPEG output targeted by
+     * requests, off the calling thread.
+     */
+    private void deliverStills(List<CaptureRequest> requests) {
+        StillCaptureCache cache = stillCaptureCache;
+        if (cache == null) return;
+        for (CaptureRequest request : requests) {
+            Collection<Surface> targets = getTargets(request);
+            if (targets == null) continue;
+            Integer jpegOrientation = request.get(CaptureRequest.JPEG_ORIENTATION);
+            int orientation = jpegOrientation != null ? jpegOrientation : 0;
+            for (Map.Entry<Surface, CameraHookResource> entry : hookTextureMap.entrySet()) {
+                Surface output = entry.getKey();
+                CameraHookResource resource = entry.getValue();
+                if (!resource.isJpegOutput || !targets.contains(resource.fakeSurface)) continue;
+                DecodeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        byte[] jpeg = cache.capture(orientation);
+                        if (jpeg != null) {
+                            writeStill(output, resource, jpeg);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static void writeStill(Surface output, CameraHookResource resource, byte[] jpeg) {
+        synchronized (resource) {
+            try {
+                if (resource.jpegWriter == null) {
+                    resource.jpegWriter = ImageWriter.newInstance(output, 2);
+                }
+                Image image = resource.jpegWriter.dequeueInputImage();
+                if (!VideoUtils.copyJpegToImage(jpeg, image)) {
+                    Log.w(TAG, "JPEG output buffer too small for still of " + jpeg.length);
+                    image.close();
+                    return;
+                }
+                image.setTimestamp(System.nanoTime());
+                resource.jpegWriter.queueInputImage(image);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Write still to " + output + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stills follow the rotated video like other ImageReader outputs, or show the frame
+     * a generated source last served to the session's other outputs. The video is
+     * pre-decoded on the first capture only, most sessions with a JPEG output never take a
+     * picture.
+     */
+    private StillCaptureCache.FrameProvider createStillFrameProvider() {
+        if (!FrameSources.isVideoSource()) {
+            return StillCaptureCache.sourceProvider(new StillCaptureCache.SourceLookup() {
+                @Override
+                public LastFrameSource getPreviewSource() {
+                    for (CameraHookResource resource : hookTextureMap.values()) {
+                        if (resource.frameSource != null) return resource.frameSource;
+                    }
+                    return null;
+                }
+            });
+        }
+        File video = new File(baseFile, Config.rotatedVideoPath);
+        return new StillCaptureCache.FrameProvider() {
+            private DecodeJob job;
+            private FramePool.Slot frame;
+
+            @Override
+            public void onCapture() {
+                DecodeJob decodeJob = obtainJob();
+                try {
+                    if (!decodeJob.await(STILL_DECODE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        Log.w(TAG, "Still pre-decode not ready after " +
+                                STILL_DECODE_TIMEOUT_MS + " ms");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            /**
+             * Start the pre-decode, again if it failed. The registry hands out the frames
+             * of an earlier session if they were decoded already.
+             */
+            private synchronized DecodeJob obtainJob() {
+                if (job == null || job.getState() == DecodeJob.State.FAILED) {
+                    // Sizes of this session's outputs are in by now, stills cover the
+                    // largest one.
+                    int[] decodeSize = new int[2];
+                    if (VideoUtils.getVideoSize(video, decodeSize)) {
+                        DecodeSizeNegotiator.getDecodeSize(decodeSize[0], decodeSize[1],
+                                decodeSize);
+                    }
+                    job = VideoUtils.decodeVideoAndSaveNV21(video,
+                            VideoUtils.getDecodeDir(baseFile, video,
+                                    decodeSize[0], decodeSize[1]),
+                            decodeSize[0], decodeSize[1]);
+                }
+                return job;
+            }
+
+            private synchronized String[] getFrames() {
+                return job != null ? job.getFrames() : null;
+            }
+
+            @Override
+            public long getCurrentIndex() {
+                String[] frames = getFrames();
+                if (frames == null || frames.length == 0) return -1;
+                long rendered = 0;
+                for (CameraHookResource resource : hookTextureMap.values()) {
+                    if (resource.videoDecoder != null) {
+                        rendered = Math.max(rendered,
+                                resource.videoDecoder.getRenderedFrameCount());
+                    }
+                }
+                return rendered % frames.length;
+            }
+
+            @Override
+            public byte[] getFrame(long index, int[] size) {
+                DecodeJob decodeJob;
+                synchronized (this) {
+                    decodeJob = job;
+                }
+                String[] frames = decodeJob != null ? decodeJob.getFrames() : null;
+                if (frames == null || frames.length == 0 ||
+                        !VideoUtils.parseFrameSize(frames[(int) (index % frames.length)], size)) {
+                    return null;
+                }
+                // Frame of the previous still is done with.
+                release();
+                frame = VideoUtils.readReplacedPreviewFrame(decodeJob, index);
+                return frame != null ? frame.array() : null;
+            }
+
+            @Override
+            public void release() {
+                if (frame != null) {
+                    frame.release();
+                    frame = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Upper bound of the AE target fps range of a high-speed burst, 0 otherwise.
+     */
+    private int getTargetFps(List<CaptureRequest> requests) {
+        if (!highSpeedSession || requests.isEmpty()) return 0;
+        Range<Integer> range = requests.get(0).get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
+        if (range == null) return 0;
+        Log.i(TAG, "High-speed burst of " + requests.size() + " requests, target fps " + range);
+        return range.getUpper();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<Surface> getTargets(CaptureRequest request) {
+        try {
+            return (Collection<Surface>) XposedHelpers.callMethod(request, "getTargets");
+        } catch (RuntimeException | NoSuchMethodError e) {
+            Log.w(TAG, "Cannot get targets of capture request", e);
+            return null;
+        }
+    }
+
+    /**
+     * JPEG ImageReader surfaces have BLOB format (HAL_PIXEL_FORMAT_BLOB).
+     */
+    private static boolean isJpegSurface(Surface surface) {
+        try {
+            int format = (int) XposedHelpers.callStaticMethod(XposedHelpers.findClass(
+                    "android.hardware.camera2.utils.SurfaceUtils", null),
+                    "getSurfaceFormat", surface);
+            return format == 0x21 || format == ImageFormat.JPEG;
+        } catch (RuntimeException | NoSuchMethodError | XposedHelpers.ClassNotFoundError e) {
+            return false;
+        }
+    }
+
+    private static Size getSurfaceSize(Surface surface) {
+        try {
+            return (Size) XposedHelpers.callStaticMethod(XposedHelpers.findClass(
+                    "android.hardware.camera2.utils.SurfaceUtils", null),
+                    "getSurfaceSize", surface);
+        } catch (RuntimeException | NoSuchMethodError | XposedHelpers.ClassNotFoundError e) {
+            Log.w(TAG, "Cannot get surface size of " + surface, e);
+            return null;
+        }
     }
 
     private static SurfaceTexture createFakeSurfaceTexture(int texName) {
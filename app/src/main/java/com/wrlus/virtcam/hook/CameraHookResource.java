@@ -3,10 +3,15 @@ package com.wrlus.virtcam.hook;
 import android.graphics.SurfaceTexture;
 import android.media.ImageReader;
 import android.media.ImageWriter;
-import android.media.MediaCodec;
-import android.media.MediaPlayer;
 import android.view.Surface;
 
+import com.wrlus.virtcam.decode.DeliveryGovernor;
+import com.wrlus.virtcam.decode.LoopingDecoder;
+import com.wrlus.virtcam.decode.LoopingPlayer;
+import com.wrlus.virtcam.source.LastFrameSource;
+import com.wrlus.virtcam.source.LatencyProbe;
+import com.wrlus.virtcam.source.SurfaceFrameInjector;
+
 public class CameraHookResource {
     public CameraHookResource(Surface surface, SurfaceTexture surfaceTexture) {
         fakeSurface = surface;
@@ -35,11 +40,36 @@ public class CameraHookResource {
     /**
      * MediaPlayer to play inject video.
      */
-    public MediaPlayer mediaPlayer;
+    public LoopingPlayer mediaPlayer;
+    /**
+     * Looping MediaCodec decoder to inject video.
+     */
+    public LoopingDecoder videoDecoder;
+    /**
+     * Backpressure of app ImageReader fed by videoDecoder.
+     */
+    public DeliveryGovernor deliveryGovernor;
+    /**
+     * Latency probe marker last read from the app ImageReader.
+     */
+    public final LatencyProbe.Marker probeMarker = new LatencyProbe.Marker();
+    public long lastProbeFrameIndex = -1;
+    /**
+     * Injector to push still image or pattern frames.
+     */
+    public SurfaceFrameInjector frameInjector;
+    /**
+     * Source of frameInjector, stills are taken from the frame it served last.
+     */
+    public LastFrameSource frameSource;
+    /**
+     * Output is a JPEG ImageReader, fed with stills on capture instead of a stream.
+     */
+    public boolean isJpegOutput;
     /**
-     * MediaCodec to decode inject video.
+     * Writer of virtual stills into the JPEG output.
      */
-    public MediaCodec mediaCodec;
+    public ImageWriter jpegWriter;
     /**
      * Surface is configured by addTarget and createCaptureSession.
      */
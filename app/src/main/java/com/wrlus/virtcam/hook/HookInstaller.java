@@ -0,0 +1,116 @@
+package com.wrlus.virtcam.hook;
+
+import android.hardware.Camera;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import com.wrlus.virtcam.utils.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedHelpers;
+import de.robv.android.xposed.callbacks.XC_LoadPackage;
+
+/**
+ * Install camera hooks of one package, either eagerly or lazily: lazy mode only hooks
+ * camera open methods, the full hook set is installed when a camera is opened first time.
+ */
+public class HookInstaller {
+    private static final String TAG = "VirtCamera-Installer";
+    private final XC_LoadPackage.LoadPackageParam loadPackageParam;
+    private final File baseFile;
+    private final AtomicBoolean installed = new AtomicBoolean(false);
+    private final List<XC_MethodHook.Unhook> sentinelHooks = new ArrayList<>();
+    private LegacyCameraHooker legacyCameraHooker;
+
+    public HookInstaller(XC_LoadPackage.LoadPackageParam loadPackageParam, File baseFile) {
+        this.loadPackageParam = loadPackageParam;
+        this.baseFile = baseFile;
+    }
+
+    public void installEager() {
+        long startNs = System.nanoTime();
+        installed.set(true);
+        installHooks();
+        Log.i(TAG, "Install camera hooks for " + loadPackageParam.packageName +
+                " took " + (System.nanoTime() - startNs) / 1000 + " us");
+    }
+
+    @SuppressWarnings({"deprecation"})
+    public void installLazy() {
+        long startNs = System.nanoTime();
+        if (Config.enableLegacyCameraHook) {
+            XC_MethodHook legacySentinel = new XC_MethodHook() {
+                @Override
+                protected void beforeHookedMethod(MethodHookParam param) {
+                    onCameraOpen();
+                }
+
+                @Override
+                protected void afterHookedMethod(MethodHookParam param) {
+                    // Hooks installed during this call only apply to later opens, warm up
+                    // in place of the legacy hooker's open hook.
+                    if (!param.hasThrowable() && legacyCameraHooker != null) {
+                        legacyCameraHooker.warmUp((Camera) param.getResult());
+                    }
+                }
+            };
+            sentinelHooks.add(XposedHelpers.findAndHookMethod(Camera.class,
+                    "open", legacySentinel));
+            sentinelHooks.add(XposedHelpers.findAndHookMethod(Camera.class,
+                    "open", int.class, legacySentinel));
+        }
+        if (Config.enableCamera2Hook) {
+            XC_MethodHook camera2Sentinel = new XC_MethodHook() {
+                @Override
+                protected void beforeHookedMethod(MethodHookParam param) {
+                    onCameraOpen();
+                }
+            };
+            sentinelHooks.add(XposedHelpers.findAndHookMethod(CameraManager.class,
+                    "openCamera", String.class, CameraDevice.StateCallback.class,
+                    Handler.class, camera2Sentinel));
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                sentinelHooks.add(XposedHelpers.findAndHookMethod(CameraManager.class,
+                        "openCamera", String.class, Executor.class,
+                        CameraDevice.StateCallback.class, camera2Sentinel));
+            }
+        }
+        Log.i(TAG, "Install sentinel hooks for " + loadPackageParam.packageName +
+                " took " + (System.nanoTime() - startNs) / 1000 + " us");
+    }
+
+    private void onCameraOpen() {
+        if (!installed.compareAndSet(false, true)) {
+            return;
+        }
+        long startNs = System.nanoTime();
+        installHooks();
+        for (XC_MethodHook.Unhook unhook : sentinelHooks) {
+            unhook.unhook();
+        }
+        sentinelHooks.clear();
+        Log.i(TAG, "Install camera hooks on first camera open for " +
+                loadPackageParam.packageName + " took " +
+                (System.nanoTime() - startNs) / 1000 + " us");
+    }
+
+    private void installHooks() {
+        if (Config.enableCamera2Hook) {
+            Camera2Hooker hooker = new Camera2Hooker(baseFile);
+            hooker.onHookPackage(loadPackageParam);
+        }
+        if (Config.enableLegacyCameraHook) {
+            legacyCameraHooker = new LegacyCameraHooker(baseFile);
+            legacyCameraHooker.onHookPackage(loadPackageParam);
+        }
+    }
+}
@@ -2,12 +2,26 @@ package com.wrlus.virtcam.hook;
 
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
+import com.wrlus.virtcam.decode.DecodeExecutor;
+import com.wrlus.virtcam.decode.Playlist;
+import com.wrlus.virtcam.decode.PlaylistFrameCursor;
+import com.wrlus.virtcam.source.FrameSources;
+import com.wrlus.virtcam.source.LastFrameSource;
+import com.wrlus.virtcam.source.LatencyProbe;
+import com.wrlus.virtcam.source.StillCaptureCache;
+import com.wrlus.virtcam.source.SurfaceFrameInjector;
 import com.wrlus.virtcam.utils.Config;
+import com.wrlus.virtcam.utils.FramePool;
+import com.wrlus.virtcam.utils.FrameRecorder;
+import com.wrlus.virtcam.utils.TraceLog;
 import com.wrlus.virtcam.utils.VideoUtils;
+import com.wrlus.virtcam.utils.YuvUtils;
 import com.wrlus.xposed.framework.HookInterface;
 
 import java.io.File;
@@ -17,6 +31,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import de.robv.android.xposed.XC_MethodHook;
 import de.robv.android.xposed.XC_MethodReplacement;
+import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 import de.robv.android.xposed.callbacks.XC_LoadPackage;
 
@@ -29,6 +44,28 @@ public class LegacyCameraHooker implements HookInterface {
     private final Map<Surface, CameraHookResource> hookTextureQueue =
             new ConcurrentHashMap<>();
     private SurfaceTexture fakeSurfaceTexture;
+    private LastFrameSource previewFrameSource;
+    private volatile PlaylistFrameCursor decodedFrames;
+    /**
+     * onPreviewFrame hooks installed per callback class.
+     */
+    private final Map<Class<?>, XC_MethodHook.Unhook> previewCallbackHooks =
+            new ConcurrentHashMap<>();
+    /**
+     * Class of the registered preview callback, camera keeps it across stopPreview.
+     */
+    private volatile Class<?> activeCallbackClass;
+    private volatile File dumpFrameOutput;
+    private volatile FrameRecorder dumpRecorder;
+    private volatile StillCaptureCache stillCaptureCache;
+    private volatile int previewWidth;
+    private volatile int previewHeight;
+    /**
+     * Preview callbacks run on one thread at a time, probe state needs no lock.
+     */
+    private final LatencyProbe.Marker probeMarker = new LatencyProbe.Marker();
+    private final PreviewFrameReplacer frameReplacer =
+            new PreviewFrameReplacer(Config.enableLatencyProbe);
 
     private final File baseFile;
     private final File videoFile;
@@ -46,16 +83,39 @@ public class LegacyCameraHooker implements HookInterface {
 
     @SuppressWarnings({"deprecation"})
     private void startHook(ClassLoader classLoader) {
-        if (!videoFile.exists()) {
-            Log.e(TAG, "Cannot find virtual video, please put in " +
-                    videoFile.getAbsolutePath());
+        if (!FrameSources.isAvailable(baseFile)) {
+            Log.e(TAG, "Cannot find virtual source, please put in " +
+                    FrameSources.getSourceFile(baseFile).getAbsolutePath());
             return;
         }
+        XC_MethodHook openHook = new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) {
+                if (!param.hasThrowable()) warmUp((Camera) param.getResult());
+            }
+        };
+        XposedHelpers.findAndHookMethod(Camera.class, "open", openHook);
+        XposedHelpers.findAndHookMethod(Camera.class, "open", int.class, openHook);
+        XposedHelpers.findAndHookMethod(Camera.class,
+                "setParameters", Camera.Parameters.class, new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        if (param.hasThrowable() || !FrameSources.isVideoSource()) return;
+                        // Decode at the app's preview size before it starts the preview.
+                        Camera.Size previewSize =
+                                ((Camera.Parameters) param.args[0]).getPreviewSize();
+                        if (previewSize != null) {
+                            previewWidth = previewSize.width;
+                            previewHeight = previewSize.height;
+                            startDecodeFrames();
+                        }
+                    }
+                });
         XposedHelpers.findAndHookMethod(Camera.class,
                 "setPreviewTexture", SurfaceTexture.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "Before setPreviewTexture");
+                        TraceLog.event(TraceLog.Event.CAMERA1_SET_PREVIEW_TEXTURE);
                         SurfaceTexture surfaceTexture = (SurfaceTexture) param.args[0];
                         if (surfaceTexture != null && !fakeSurfaceTexture.equals(surfaceTexture)) {
                             Surface textureSurface = new Surface(surfaceTexture);
@@ -71,7 +131,7 @@ public class LegacyCameraHooker implements HookInterface {
                 "setPreviewDisplay", SurfaceHolder.class, new XC_MethodReplacement() {
                     @Override
                     protected Object replaceHookedMethod(MethodHookParam param) throws Throwable {
-                        Log.w(TAG, "Replace setPreviewDisplay");
+                        TraceLog.event(TraceLog.Event.CAMERA1_SET_PREVIEW_DISPLAY);
                         Camera thisCamera = (Camera) param.thisObject;
                         SurfaceHolder surfaceHolder = (SurfaceHolder) param.args[0];
                         if (surfaceHolder != null) {
@@ -90,11 +150,50 @@ public class LegacyCameraHooker implements HookInterface {
                 "startPreview", new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "Before startPreview");
+                        TraceLog.event(TraceLog.Event.CAMERA1_START_PREVIEW,
+                                hookTextureQueue.size());
+                        Camera.Size previewSize = ((Camera) param.thisObject)
+                                .getParameters().getPreviewSize();
+                        previewWidth = previewSize.width;
+                        previewHeight = previewSize.height;
+                        if (FrameSources.isVideoSource() && activeCallbackClass != null) {
+                            // Preview size may have changed since the callback was set.
+                            startDecodeFrames();
+                        }
+                        if (Config.enableStillCapture && stillCaptureCache == null) {
+                            stillCaptureCache = StillCaptureCache.start(createStillFrameProvider());
+                        }
+                        // Re-arm preview callback hook removed by last stopPreview.
+                        Class<?> callbackClass = activeCallbackClass;
+                        if (callbackClass != null) {
+                            bindDumpFrameOutput();
+                            hookPreviewCallbackClass(callbackClass);
+                        }
                         for (Surface output : hookTextureQueue.keySet()) {
                             if (output != null && output.isValid()) {
-                                hookTextureQueue.get(output).mediaPlayer =
-                                        VideoUtils.playVideo(videoFile, output);
+                                CameraHookResource resource = hookTextureQueue.get(output);
+                                // Preview keeps running across takePicture, apps restart it.
+                                if (resource.videoDecoder != null || resource.mediaPlayer != null ||
+                                        resource.frameInjector != null) {
+                                    continue;
+                                }
+                                if (FrameSources.isVideoSource() &&
+                                        FrameSources.useLoopingDecoder()) {
+                                    Playlist playlist = FrameSources.createPlaylist(
+                                            baseFile, Config.videoPath);
+                                    if (playlist != null) {
+                                        resource.videoDecoder =
+                                                VideoUtils.decodeVideoToSurface(playlist, output);
+                                    }
+                                } else if (FrameSources.isVideoSource()) {
+                                    resource.mediaPlayer =
+                                            VideoUtils.playVideo(videoFile, output);
+                                } else {
+                                    resource.frameSource = new LastFrameSource(
+                                            FrameSources.create(baseFile));
+                                    resource.frameInjector = SurfaceFrameInjector.start(output,
+                                            resource.frameSource, false);
+                                }
                             }
                         }
                     }
@@ -103,88 +202,371 @@ public class LegacyCameraHooker implements HookInterface {
                 "stopPreview", new XC_MethodHook() {
                     @Override
                     protected void afterHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "After stopPreview");
+                        TraceLog.event(TraceLog.Event.CAMERA1_STOP_PREVIEW, frameCount);
                         for (CameraHookResource texture : hookTextureQueue.values()) {
                             if (texture.fakeSurface != null) texture.fakeSurface.release();
                             if (texture.mediaPlayer != null) texture.mediaPlayer.release();
+                            if (texture.videoDecoder != null) texture.videoDecoder.release();
+                            if (texture.frameInjector != null) texture.frameInjector.release();
                         }
                         hookTextureQueue.clear();
+                        if (previewFrameSource != null) {
+                            previewFrameSource.release();
+                            previewFrameSource = null;
+                        }
                         fakeSurfaceTexture.release();
                         fakeSurfaceTexture = null;
                         frameCount = 0;
+                        if (dumpRecorder != null) {
+                            dumpRecorder.stop();
+                            dumpRecorder = null;
+                        }
+                        dumpFrameOutput = null;
+                        unhookPreviewCallbacks();
+                    }
+                });
+        XposedHelpers.findAndHookMethod(Camera.class,
+                "release", new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        TraceLog.event(TraceLog.Event.CAMERA1_RELEASE);
+                        if (stillCaptureCache != null) {
+                            stillCaptureCache.release();
+                            stillCaptureCache = null;
+                        }
+                        if (Config.enableTraceDumpOnClose) {
+                            TraceLog.dump("camera1 release");
+                        }
+                        activeCallbackClass = null;
+                        unhookPreviewCallbacks();
+                        frameReplacer.releaseCallbackFrames();
+                        FramePool.trim();
+                    }
+                });
+        // All takePicture overloads end up here.
+        XposedHelpers.findAndHookMethod(Camera.class, "takePicture",
+                Camera.ShutterCallback.class, Camera.PictureCallback.class,
+                Camera.PictureCallback.class, Camera.PictureCallback.class,
+                new XC_MethodReplacement() {
+                    @Override
+                    protected Object replaceHookedMethod(MethodHookParam param) throws Throwable {
+                        StillCaptureCache cache = stillCaptureCache;
+                        if (cache == null) {
+                            return XposedBridge.invokeOriginalMethod(param.method,
+                                    param.thisObject, param.args);
+                        }
+                        TraceLog.event(TraceLog.Event.CAMERA1_TAKE_PICTURE);
+                        takePicture((Camera) param.thisObject, cache,
+                                (Camera.ShutterCallback) param.args[0],
+                                (Camera.PictureCallback) param.args[1],
+                                (Camera.PictureCallback) param.args[2],
+                                (Camera.PictureCallback) param.args[3]);
+                        return null;
                     }
                 });
         XposedHelpers.findAndHookMethod(Camera.class,
                 "setPreviewCallback", Camera.PreviewCallback.class, new XC_MethodHook() {
                     @Override
                     protected void beforeHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "Before setPreviewCallback");
+                        TraceLog.event(TraceLog.Event.CAMERA1_SET_PREVIEW_CALLBACK);
                         Camera.PreviewCallback callback = (Camera.PreviewCallback) param.args[0];
-                        if (VideoUtils.getDecodeToFileStatus() == VideoUtils.DecodeStatus.NOT_START) {
-                            File outputDir = new File(baseFile,
-                                    "files/decode_video_" + UUID.randomUUID());
-                            VideoUtils.decodeVideoAndSaveNV21(videoFile, outputDir);
+                        if (FrameSources.isVideoSource()) {
+                            Camera.Size previewSize = ((Camera) param.thisObject)
+                                    .getParameters().getPreviewSize();
+                            previewWidth = previewSize.width;
+                            previewHeight = previewSize.height;
+                            startDecodeFrames();
                         }
                         // Hook the real preview callback method.
                         if (callback != null) {
                             hookPreviewCallback(callback);
+                        } else {
+                            activeCallbackClass = null;
                         }
                     }
                 });
     }
 
+    /**
+     * Answer takePicture with the pre-encoded still of the preview, the real camera is not
+     * asked so its preview keeps running. Callbacks run on the caller looper, or the main
+     * looper if it has none.
+     */
     @SuppressWarnings({"deprecation"})
-    private void hookPreviewCallback(Camera.PreviewCallback callback) {
-        File dumpFrameOutput = new File(
-                baseFile, "files/dump_frame_" + UUID.randomUUID() + "/");
-        if (Config.enableLegacyCameraDumpFrame) {
-            if (!dumpFrameOutput.exists()) {
-                Log.e(TAG, "dump frame output mkdir: " +
-                        dumpFrameOutput.mkdir());
-            }
+    private static void takePicture(Camera camera, StillCaptureCache cache,
+                                    Camera.ShutterCallback shutter, Camera.PictureCallback raw,
+                                    Camera.PictureCallback postview,
+                                    Camera.PictureCallback jpeg) {
+        int rotation = 0;
+        try {
+            String value = camera.getParameters().get("rotation");
+            if (value != null) rotation = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid picture rotation", e);
         }
-        Class<? extends Camera.PreviewCallback> callbackClass = callback.getClass();
-        Log.e(TAG, "Callback class name: " + callbackClass.getName());
-        XposedHelpers.findAndHookMethod(callbackClass, "onPreviewFrame",
-                byte[].class, Camera.class,
-                new XC_MethodHook() {
-                    @Override
-                    protected void beforeHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "Before onPreviewFrame");
-                        Camera camera = (Camera) param.args[1];
-                        Camera.Size previewSize = camera
-                                .getParameters().getPreviewSize();
-                        byte[] newData = VideoUtils.getReplacedPreviewFrame();
-                        if (newData != null) {
-                            // We need exchange width and height for rotation.
-                            int videoWidth = previewSize.height; // 480
-                            int videoHeight = previewSize.width; // 640
-                            byte[] rotateData = VideoUtils.rotateNV21(newData,
-                                    videoWidth, videoHeight, 90);
-                            param.args[0] = rotateData;
-                        } else {
-                            // We do not want to leak real camera data here.
-                            param.args[0] = null;
-                            Log.w(TAG, "Replace " +
-                                    "onPreviewFrame data failed !!!");
-                        }
-                    }
+        final int orientation = rotation;
+        Looper looper = Looper.myLooper() != null ? Looper.myLooper() : Looper.getMainLooper();
+        Handler callbackHandler = new Handler(looper);
+        DecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = cache.capture(orientation);
+                callbackHandler.post(new Runnable() {
                     @Override
-                    protected void afterHookedMethod(MethodHookParam param) {
-                        Log.w(TAG, "After onPreviewFrame");
-                        if (Config.enableLegacyCameraDumpFrame) {
-                            byte[] data = (byte[]) param.args[0];
-                            Camera camera = (Camera) param.args[1];
-                            Camera.Size previewSize = camera
-                                    .getParameters().getPreviewSize();
-                            VideoUtils.savePreviewFrameImage(data,
-                                    previewSize.width, previewSize.height,
-                                    dumpFrameOutput, frameCount);
-                            ++frameCount;
-                        }
+                    public void run() {
+                        if (shutter != null) shutter.onShutter();
+                        // No raw or postview data, like most real cameras.
+                        if (raw != null) raw.onPictureTaken(null, camera);
+                        if (postview != null) postview.onPictureTaken(null, camera);
+                        if (jpeg != null) jpeg.onPictureTaken(data, camera);
                     }
                 });
+            }
+        });
     }
 
+    /**
+     * Stills of the frame last served to the preview callback, rotated like it, or of the
+     * frame last served to the preview surface.
+     */
+    private StillCaptureCache.FrameProvider createStillFrameProvider() {
+        if (!FrameSources.isVideoSource()) {
+            return StillCaptureCache.sourceProvider(new StillCaptureCache.SourceLookup() {
+                @Override
+                public LastFrameSource getPreviewSource() {
+                    return getStillSource();
+                }
+            });
+        }
+        return new StillCaptureCache.FrameProvider() {
+            private byte[] rotated;
+
+            @Override
+            public long getCurrentIndex() {
+                PlaylistFrameCursor frames = decodedFrames;
+                return frames == null ? -1 : Math.max(0, frames.getFrameIndex());
+            }
+
+            @Override
+            public byte[] getFrame(long index, int[] size) {
+                PlaylistFrameCursor frames = decodedFrames;
+                FramePool.Slot data = frames == null ? null : frames.readFrame(index);
+                if (data == null) {
+                    return null;
+                }
+                try {
+                    int width = previewWidth;
+                    int height = previewHeight;
+                    if (data.size() != width * height * 3 / 2) {
+                        // Decoded for another preview size, like the preview callback
+                        // frames.
+                        return null;
+                    }
+                    if (rotated == null || rotated.length != data.size()) {
+                        rotated = new byte[data.size()];
+                    }
+                    size[0] = width;
+                    size[1] = height;
+                    return YuvUtils.rotateNV21(data.array(), height, width, 90, rotated);
+                } finally {
+                    data.release();
+                }
+            }
+
+            @Override
+            public void release() {
+                rotated = null;
+            }
+        };
+    }
+
+    @SuppressWarnings({"deprecation"})
+    private void hookPreviewCallback(Camera.PreviewCallback callback) {
+        Class<? extends Camera.PreviewCallback> callbackClass = callback.getClass();
+        activeCallbackClass = callbackClass;
+        bindDumpFrameOutput();
+        hookPreviewCallbackClass(callbackClass);
+    }
+
+    /**
+     * Hook onPreviewFrame of callback class at most once, hooks would stack otherwise
+     * and every frame would be fetched and rotated once per hook.
+     */
+    private synchronized void hookPreviewCallbackClass(Class<?> callbackClass) {
+        if (previewCallbackHooks.containsKey(callbackClass)) {
+            return;
+        }
+        Log.e(TAG, "Callback class name: " + callbackClass.getName());
+        previewCallbackHooks.put(callbackClass, XposedHelpers.findAndHookMethod(callbackClass,
+                "onPreviewFrame", byte[].class, Camera.class, previewFrameHook));
+    }
+
+    private synchronized void unhookPreviewCallbacks() {
+        for (XC_MethodHook.Unhook unhook : previewCallbackHooks.values()) {
+            unhook.unhook();
+        }
+        previewCallbackHooks.clear();
+    }
+
+    /**
+     * Create dump frame directory once per preview session.
+     */
+    private synchronized void bindDumpFrameOutput() {
+        if (!Config.enableLegacyCameraDumpFrame || dumpFrameOutput != null) {
+            return;
+        }
+        File output = new File(
+                baseFile, "files/dump_frame_" + UUID.randomUUID() + "/");
+        if (!output.exists()) {
+            Log.e(TAG, "dump frame output mkdir: " +
+                    output.mkdir());
+        }
+        dumpFrameOutput = output;
+    }
+
+    /**
+     * Shared by all hooked callback classes, per-session state lives in the hooker.
+     */
+    @SuppressWarnings({"deprecation"})
+    private final XC_MethodHook previewFrameHook = new XC_MethodHook() {
+        @Override
+        protected void beforeHookedMethod(MethodHookParam param) {
+            TraceLog.event(TraceLog.Event.PREVIEW_FRAME_BEFORE, frameCount);
+            Camera camera = (Camera) param.args[1];
+            Camera.Size previewSize = camera
+                    .getParameters().getPreviewSize();
+            if (!FrameSources.isVideoSource()) {
+                // Still image and pattern are generated at preview size,
+                // no rotation needed.
+                byte[] sourceData = getSourcePreviewFrame(
+                        previewSize.width, previewSize.height);
+                param.args[0] = frameReplacer.replaceWithSourceFrame(param.args[0],
+                        sourceData, previewSize.width, previewSize.height);
+                return;
+            }
+            PlaylistFrameCursor frames = decodedFrames;
+            FramePool.Slot newData = frames == null ? null : frames.nextFrame();
+            param.args[0] = frameReplacer.replaceWithVideoFrame(param.args[0],
+                    newData != null ? newData.array() : null,
+                    newData != null ? newData.size() : 0,
+                    previewSize.width, previewSize.height);
+            if (newData != null) newData.release();
+        }
+
+        @Override
+        protected void afterHookedMethod(MethodHookParam param) {
+            TraceLog.event(TraceLog.Event.PREVIEW_FRAME_AFTER, frameCount);
+            if (Config.enableLatencyProbe && param.args[0] != null &&
+                    LatencyProbe.decode((byte[]) param.args[0], previewWidth,
+                            previewWidth, previewHeight, probeMarker)) {
+                // The app is done with the frame once its callback returns.
+                TraceLog.event(TraceLog.Event.PROBE_CONSUMED, probeMarker.frameIndex,
+                        probeMarker.getLatencyUs(System.nanoTime()));
+            }
+            File output = dumpFrameOutput;
+            if (Config.enableLegacyCameraDumpFrame && output != null) {
+                byte[] data = (byte[]) param.args[0];
+                if (Config.enableDumpRecording) {
+                    recordPreviewFrame(data, output);
+                } else {
+                    Camera camera = (Camera) param.args[1];
+                    Camera.Size previewSize = camera
+                            .getParameters().getPreviewSize();
+                    VideoUtils.savePreviewFrameImage(data,
+                            previewSize.width, previewSize.height,
+                            output, frameCount);
+                }
+                ++frameCount;
+            }
+        }
+    };
+
+    /**
+     * Warm up virtual source when a camera was opened, before the app gets it. Frames are
+     * decoded at the default preview size of the camera. If the app sets another size,
+     * that decode is cancelled and frames are decoded at its size instead, frames of the
+     * default size are deleted.
+     */
+    public void warmUp(Camera camera) {
+        if (!FrameSources.isVideoSource()) return;
+        if (camera != null) {
+            try {
+                Camera.Size previewSize = camera.getParameters().getPreviewSize();
+                previewWidth = previewSize.width;
+                previewHeight = previewSize.height;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Cannot get default preview size", e);
+            }
+        }
+        startDecodeFrames();
+    }
+
+    /**
+     * Pre-decode callback frames at the preview size, or at the video size without size
+     * negotiation or while the preview size is unknown. Restarts decoding when the preview
+     * size changed, a decode of the old size still running is cancelled and its frames
+     * are deleted.
+     */
+    private synchronized void startDecodeFrames() {
+        int width = 0;
+        int height = 0;
+        if (Config.enableDecodeSizeNegotiation && previewWidth > 0 && previewHeight > 0) {
+            // Decoded video is rotated by 90 degrees into the preview.
+            width = previewHeight;
+            height = previewWidth;
+        }
+        PlaylistFrameCursor frames = decodedFrames;
+        if (frames != null && frames.getWidth() == width && frames.getHeight() == height) {
+            return;
+        }
+        Playlist playlist = FrameSources.createPlaylist(baseFile, Config.videoPath);
+        if (playlist != null) {
+            // E.g. the warm-up at the default preview size, the app set its own.
+            if (frames != null) frames.release();
+            decodedFrames = new PlaylistFrameCursor(playlist, baseFile, width, height);
+        }
+    }
+
+    /**
+     * Feed what the app received into the session's MP4, the encoder drops frames
+     * instead of holding up the preview callback.
+     */
+    private void recordPreviewFrame(byte[] data, File output) {
+        int width = previewWidth;
+        int height = previewHeight;
+        FrameRecorder recorder = dumpRecorder;
+        if (recorder == null || recorder.getWidth() != width ||
+                recorder.getHeight() != height) {
+            if (recorder != null) recorder.stop();
+            recorder = FrameRecorder.start(new File(output,
+                    "preview_" + width + "x" + height + ".mp4"), width, height);
+            dumpRecorder = recorder;
+        }
+        recorder.offer(data, System.nanoTime() / 1000);
+    }
+
+    /**
+     * Source of the frames the app sees: callback frames if it takes them, otherwise the
+     * preview surface.
+     */
+    private LastFrameSource getStillSource() {
+        synchronized (this) {
+            if (previewFrameSource != null && previewFrameSource.getServedCount() > 0) {
+                return previewFrameSource;
+            }
+        }
+        for (CameraHookResource resource : hookTextureQueue.values()) {
+            if (resource.frameSource != null) return resource.frameSource;
+        }
+        return null;
+    }
+
+    private synchronized byte[] getSourcePreviewFrame(int width, int height) {
+        if (previewFrameSource == null) {
+            previewFrameSource = new LastFrameSource(FrameSources.create(baseFile));
+        }
+        previewFrameSource.prepare(width, height);
+        return previewFrameSource.nextFrame();
+    }
 }
 
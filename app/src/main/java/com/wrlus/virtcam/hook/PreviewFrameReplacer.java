@@ -0,0 +1,123 @@
+package com.wrlus.virtcam.hook;
+
+import com.wrlus.virtcam.source.LatencyProbe;
+import com.wrlus.virtcam.utils.Config;
+import com.wrlus.virtcam.utils.FramePool;
+import com.wrlus.virtcam.utils.TraceLog;
+import com.wrlus.virtcam.utils.YuvUtils;
+
+/**
+ * What the onPreviewFrame hook does to a frame before the app gets it: copy or rotate the
+ * virtual frame into the callback array and stamp the latency probe. Free of Android and
+ * Xposed calls, so the replay harness measures this very code.
+ * <p>
+ * Preview callbacks run on one thread at a time, only the callback frames need a lock.
+ */
+public class PreviewFrameReplacer {
+    /**
+     * With {@link Config#enableCallbackFrameReuse}, frames given to the preview callback stay
+     * untouched for this many more frames, apps may still read one shortly after their
+     * callback returned.
+     */
+    private static final int CALLBACK_FRAME_DEPTH = 3;
+    private final boolean stampProbe;
+    private final LatencyProbe latencyProbe = new LatencyProbe();
+    private long probeFrameIndex = 0;
+    private final FramePool.Slot[] callbackFrames = new FramePool.Slot[CALLBACK_FRAME_DEPTH];
+    private int callbackFrameIndex = 0;
+
+    /**
+     * @param stampProbe stamp latency probe markers into replaced frames.
+     */
+    public PreviewFrameReplacer(boolean stampProbe) {
+        this.stampProbe = stampProbe;
+    }
+
+    /**
+     * Frame of a still image or pattern source, generated at the preview size. Source frames
+     * are shared and must not be modified, the app gets a copy it may write to.
+     *
+     * @return frame for the app, null if there is none.
+     */
+    public byte[] replaceWithSourceFrame(Object cameraData, byte[] sourceData,
+                                         int previewWidth, int previewHeight) {
+        if (sourceData == null) {
+            TraceLog.event(TraceLog.Event.PREVIEW_FRAME_REPLACE_FAILED, 0);
+            return null;
+        }
+        byte[] newData = obtainCallbackFrame(cameraData, sourceData.length);
+        System.arraycopy(sourceData, 0, newData, 0, sourceData.length);
+        if (stampProbe) {
+            stamp(newData, previewWidth, previewHeight);
+        }
+        return newData;
+    }
+
+    /**
+     * Decoded video frame of size bytes, portrait and rotated by 90 degrees into the
+     * preview. A frame decoded for another preview size is not served, frames of this one
+     * are on the way.
+     *
+     * @return frame for the app, null if there is none.
+     */
+    public byte[] replaceWithVideoFrame(Object cameraData, byte[] videoData, int size,
+                                        int previewWidth, int previewHeight) {
+        if (videoData == null || size != previewWidth * previewHeight * 3 / 2) {
+            // We do not want to leak real camera data here.
+            TraceLog.event(TraceLog.Event.PREVIEW_FRAME_REPLACE_FAILED, 1);
+            return null;
+        }
+        // We need exchange width and height for rotation.
+        byte[] rotateData = YuvUtils.rotateNV21(videoData, previewHeight, previewWidth, 90,
+                obtainCallbackFrame(cameraData, size));
+        if (stampProbe) {
+            stamp(rotateData, previewWidth, previewHeight);
+        }
+        return rotateData;
+    }
+
+    /**
+     * Give back the callback frames held for the app, once preview stopped.
+     */
+    public synchronized void releaseCallbackFrames() {
+        for (int i = 0; i < CALLBACK_FRAME_DEPTH; i++) {
+            if (callbackFrames[i] != null) {
+                callbackFrames[i].release();
+                callbackFrames[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Array for the frame of this callback. The app owns whatever its callback gets, so the
+     * array camera passed is overwritten when it fits (camera allocates it per frame, or it
+     * came from addCallbackBuffer), otherwise a new one is allocated. Pooled arrays are only
+     * recycled behind the app's back with {@link Config#enableCallbackFrameReuse}.
+     */
+    private byte[] obtainCallbackFrame(Object cameraData, int size) {
+        if (cameraData instanceof byte[] && ((byte[]) cameraData).length == size) {
+            return (byte[]) cameraData;
+        }
+        if (!Config.enableCallbackFrameReuse) {
+            return new byte[size];
+        }
+        FramePool.Slot frame = FramePool.acquire(size);
+        holdCallbackFrame(frame);
+        return frame.array();
+    }
+
+    /**
+     * Keep the frame of this callback, release the one handed out
+     * {@link #CALLBACK_FRAME_DEPTH} frames ago.
+     */
+    private synchronized void holdCallbackFrame(FramePool.Slot frame) {
+        FramePool.Slot oldFrame = callbackFrames[callbackFrameIndex];
+        callbackFrames[callbackFrameIndex] = frame;
+        callbackFrameIndex = (callbackFrameIndex + 1) % CALLBACK_FRAME_DEPTH;
+        if (oldFrame != null) oldFrame.release();
+    }
+
+    private void stamp(byte[] frame, int width, int height) {
+        latencyProbe.stamp(frame, width, height, probeFrameIndex++, System.nanoTime());
+    }
+}
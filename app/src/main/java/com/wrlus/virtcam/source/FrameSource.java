@@ -0,0 +1,28 @@
+package com.wrlus.virtcam.source;
+
+/**
+ * A source of NV21 frames which does not need a video decoder.
+ */
+public interface FrameSource {
+    /**
+     * Prepare frames of the given size, may be called again when the consumer size changes.
+     */
+    void prepare(int width, int height);
+
+    /**
+     * Get next NV21 frame of the prepared size, or null if no frame is available.
+     * The returned buffer may be shared between calls, callers must not modify it.
+     */
+    byte[] nextFrame();
+
+    /**
+     * Whether every frame returned by nextFrame has the same content.
+     */
+    boolean isStatic();
+
+    int getWidth();
+
+    int getHeight();
+
+    void release();
+}
@@ -0,0 +1,91 @@
+package com.wrlus.virtcam.source;
+
+import android.util.Log;
+
+import com.wrlus.virtcam.decode.Playlist;
+import com.wrlus.virtcam.utils.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Create frame sources configured by {@link Config#sourceType}.
+ */
+public class FrameSources {
+    private static final String TAG = "FrameSources";
+
+    /**
+     * Whether the configured source is decoded by MediaCodec, a single video or a playlist.
+     */
+    public static boolean isVideoSource() {
+        return Config.sourceType == Config.SourceType.VIDEO ||
+                Config.sourceType == Config.SourceType.PLAYLIST;
+    }
+
+    /**
+     * Whether video sources are looped by LoopingDecoder rather than MediaPlayer. MediaPlayer
+     * plays a single file, so playlists always use the decoder.
+     */
+    public static boolean useLoopingDecoder() {
+        return Config.enableGaplessLoop || Config.sourceType == Config.SourceType.PLAYLIST;
+    }
+
+    /**
+     * Create playlist of the configured video source, a single video is a one clip playlist.
+     *
+     * @param videoPath video to play if source is not a playlist.
+     * @return null if there is nothing to play.
+     */
+    public static Playlist createPlaylist(File baseFile, String videoPath) {
+        if (Config.sourceType == Config.SourceType.PLAYLIST) {
+            try {
+                return Playlist.load(new File(baseFile, Config.playlistPath),
+                        Config.playlistShuffle);
+            } catch (IOException e) {
+                Log.e(TAG, "createPlaylist - IOException", e);
+                return null;
+            }
+        }
+        File videoFile = new File(baseFile, videoPath);
+        return videoFile.exists() ? Playlist.of(videoFile) : null;
+    }
+
+    /**
+     * Get the file which the configured source reads, or null if the source needs no file.
+     */
+    public static File getSourceFile(File baseFile) {
+        switch (Config.sourceType) {
+            case VIDEO:
+                return new File(baseFile, Config.videoPath);
+            case STILL_IMAGE:
+                return new File(baseFile, Config.stillImagePath);
+            case YUV_FILE:
+                return new File(baseFile, Config.yuvFilePath);
+            case PLAYLIST:
+                return new File(baseFile, Config.playlistPath);
+            default:
+                return null;
+        }
+    }
+
+    public static boolean isAvailable(File baseFile) {
+        File sourceFile = getSourceFile(baseFile);
+        return sourceFile == null || sourceFile.exists();
+    }
+
+    /**
+     * Create a new decoder-free frame source, return null for video source.
+     */
+    public static FrameSource create(File baseFile) {
+        switch (Config.sourceType) {
+            case STILL_IMAGE:
+                return new StillImageSource(getSourceFile(baseFile));
+            case PATTERN:
+                return new PatternSource(Config.pattern);
+            case YUV_FILE:
+                return new YuvFileSource(getSourceFile(baseFile));
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.wrlus.virtcam.source;
+
+/**
+ * Wrap a {@link FrameSource} and remember the frame it served last, so stills show the frame
+ * the preview shows without advancing the source.
+ */
+public class LastFrameSource implements FrameSource {
+    private final FrameSource source;
+    private byte[] lastFrame;
+    private int lastWidth;
+    private int lastHeight;
+    private long servedCount = 0;
+
+    public LastFrameSource(FrameSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public synchronized void prepare(int width, int height) {
+        source.prepare(width, height);
+    }
+
+    @Override
+    public synchronized byte[] nextFrame() {
+        byte[] frame = source.nextFrame();
+        if (frame != null) {
+            // Sources only rewrite their buffers in nextFrame, which holds our lock.
+            lastFrame = frame;
+            lastWidth = source.getWidth();
+            lastHeight = source.getHeight();
+            ++servedCount;
+        }
+        return frame;
+    }
+
+    /**
+     * Frames served so far, the last one has index servedCount - 1.
+     */
+    public synchronized long getServedCount() {
+        return servedCount;
+    }
+
+    /**
+     * Copy of the frame served last, its width and height are stored to size[0] and size[1].
+     *
+     * @param reuse array to copy into if it has the frame size, may be null.
+     * @return null if no frame was served yet.
+     */
+    public synchronized byte[] copyLastFrame(byte[] reuse, int[] size) {
+        if (lastFrame == null) {
+            return null;
+        }
+        size[0] = lastWidth;
+        size[1] = lastHeight;
+        byte[] copy = reuse != null && reuse.length == lastFrame.length ?
+                reuse : new byte[lastFrame.length];
+        System.arraycopy(lastFrame, 0, copy, 0, lastFrame.length);
+        return copy;
+    }
+
+    @Override
+    public boolean isStatic() {
+        return source.isStatic();
+    }
+
+    @Override
+    public int getWidth() {
+        return source.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return source.getHeight();
+    }
+
+    @Override
+    public synchronized void release() {
+        source.release();
+        lastFrame = null;
+    }
+}
@@ -0,0 +1,253 @@
+package com.wrlus.virtcam.source;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stamp frame index and serve time into the luma plane of served frames, and read them
+ * back where the frame is consumed or from dumped and recorded frames.
+ * <p>
+ * The marker sits in the top left corner: a grid of {@link #COLUMNS} x {@link #ROWS} black
+ * or white cells holding 8 sync bits, a 32 bit frame index, 48 bits of
+ * {@link System#nanoTime} in microseconds and an 8 bit check, most significant bit first,
+ * row by row. The frame index is also drawn as decimal digits below the grid for humans.
+ * Cells are large enough to survive JPEG and video encoding, their size only depends on
+ * frame width so a decoder can find them again.
+ * <p>
+ * Stamping and decoding do not allocate. A probe instance is not thread safe, use one per
+ * stream.
+ */
+public class LatencyProbe {
+    public static final int COLUMNS = 24;
+    public static final int ROWS = 4;
+    private static final int BITS = COLUMNS * ROWS;
+    private static final int SYNC = 0xb2;
+    private static final int CHECK_SEED = 0x5a;
+    private static final int DIGITS = 8;
+    private static final long TIME_MASK = (1L << 48) - 1;
+    private static final int MAX_CELL = 16;
+    private static final byte LUMA_BLACK = 16;
+    private static final byte LUMA_WHITE = (byte) 235;
+    /**
+     * Midway between black and white luma.
+     */
+    private static final int LUMA_THRESHOLD = 126;
+    private static final byte[] BLACK_SPAN = new byte[COLUMNS * MAX_CELL + MAX_CELL];
+    private static final byte[] WHITE_SPAN = new byte[MAX_CELL];
+
+    static {
+        Arrays.fill(BLACK_SPAN, LUMA_BLACK);
+        Arrays.fill(WHITE_SPAN, LUMA_WHITE);
+    }
+
+    public static final class Marker {
+        public long frameIndex;
+        /**
+         * {@link System#nanoTime} in microseconds when the frame was served, lower 48 bits.
+         */
+        public long timeUs;
+
+        /**
+         * Microseconds from serving the frame to nowNs.
+         */
+        public long getLatencyUs(long nowNs) {
+            return ((nowNs / 1000) - timeUs) & TIME_MASK;
+        }
+    }
+
+    private final int[] digits = new int[DIGITS];
+    private byte[] targetArray;
+    private ByteBuffer targetBuffer;
+    private int rowStride;
+
+    /**
+     * Cell edge in pixels for frames of width, 0 if the marker does not fit.
+     */
+    public static int getCellSize(int width, int height) {
+        int cell = Math.min(MAX_CELL, width / 80) & ~1;
+        if (cell < 2) cell = 2;
+        // Margin, grid, gap and digit row below it.
+        if ((COLUMNS + 2) * cell > width || (ROWS + 6) * cell > height) {
+            return 0;
+        }
+        return cell;
+    }
+
+    /**
+     * Stamp into the luma plane of an NV21 frame.
+     *
+     * @return false if the frame is too small for the marker.
+     */
+    public boolean stamp(byte[] nv21, int width, int height, long frameIndex, long timeNs) {
+        targetArray = nv21;
+        rowStride = width;
+        try {
+            return draw(width, height, frameIndex, timeNs);
+        } finally {
+            targetArray = null;
+        }
+    }
+
+    /**
+     * Stamp into a luma plane buffer with pixel stride 1, like plane 0 of YUV_420_888.
+     *
+     * @return false if the frame is too small for the marker.
+     */
+    public boolean stamp(ByteBuffer luma, int rowStride, int width, int height,
+                         long frameIndex, long timeNs) {
+        int position = luma.position();
+        targetBuffer = luma;
+        this.rowStride = rowStride;
+        try {
+            return draw(width, height, frameIndex, timeNs);
+        } finally {
+            targetBuffer = null;
+            luma.position(position);
+        }
+    }
+
+    private boolean draw(int width, int height, long frameIndex, long timeNs) {
+        int cell = getCellSize(width, height);
+        if (cell == 0) {
+            return false;
+        }
+        long timeUs = (timeNs / 1000) & TIME_MASK;
+        int check = checkOf(frameIndex, timeUs);
+        // Grid with a black border of half a cell, so the outer cells have an edge.
+        int border = cell / 2;
+        int boxLeft = cell - border;
+        int boxWidth = COLUMNS * cell + 2 * border;
+        for (int y = cell - border; y < cell; y++) {
+            put(y * rowStride + boxLeft, BLACK_SPAN, boxWidth);
+        }
+        for (int row = 0; row < ROWS; row++) {
+            for (int y = 0; y < cell; y++) {
+                int rowStart = (cell + row * cell + y) * rowStride;
+                put(rowStart + boxLeft, BLACK_SPAN, border);
+                for (int column = 0; column < COLUMNS; column++) {
+                    int bit = bitAt(row * COLUMNS + column, frameIndex, timeUs, check);
+                    put(rowStart + cell + column * cell, bit != 0 ? WHITE_SPAN : BLACK_SPAN,
+                            cell);
+                }
+                put(rowStart + cell + COLUMNS * cell, BLACK_SPAN, border);
+            }
+        }
+        // Decimal frame index below the grid, 3x5 glyphs at half the cell size.
+        int scale = Math.max(1, cell / 2);
+        int glyphTop = cell + ROWS * cell;
+        long value = frameIndex & 0xffffffffL;
+        for (int digit = DIGITS - 1; digit >= 0; digit--) {
+            digits[digit] = (int) (value % 10);
+            value /= 10;
+        }
+        for (int y = 0; y < 7 * scale; y++) {
+            int rowStart = (glyphTop + y) * rowStride;
+            put(rowStart + boxLeft, BLACK_SPAN, boxWidth);
+            int glyphRow = y / scale - 1;
+            if (glyphRow < 0 || glyphRow >= 5) continue;
+            for (int digit = 0; digit < DIGITS; digit++) {
+                int bits = PatternSource.DIGIT_GLYPHS[digits[digit]][glyphRow];
+                int glyphLeft = cell + digit * 4 * scale;
+                for (int col = 0; col < 3; col++) {
+                    if ((bits & (4 >> col)) != 0) {
+                        put(rowStart + glyphLeft + col * scale, WHITE_SPAN, scale);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void put(int offset, byte[] span, int length) {
+        if (targetArray != null) {
+            System.arraycopy(span, 0, targetArray, offset, length);
+        } else {
+            targetBuffer.position(offset);
+            targetBuffer.put(span, 0, length);
+        }
+    }
+
+    /**
+     * Read the marker of an NV21 frame or any luma plane with pixel stride 1.
+     *
+     * @return false if there is no valid marker.
+     */
+    public static boolean decode(byte[] luma, int rowStride, int width, int height,
+                                 Marker marker) {
+        return decode(luma, null, rowStride, width, height, marker);
+    }
+
+    public static boolean decode(ByteBuffer luma, int rowStride, int width, int height,
+                                 Marker marker) {
+        return decode(null, luma, rowStride, width, height, marker);
+    }
+
+    private static boolean decode(byte[] array, ByteBuffer buffer, int rowStride,
+                                  int width, int height, Marker marker) {
+        int cell = getCellSize(width, height);
+        if (cell == 0) {
+            return false;
+        }
+        int sync = 0;
+        long frameIndex = 0;
+        long timeUs = 0;
+        int check = 0;
+        for (int i = 0; i < BITS; i++) {
+            int row = i / COLUMNS;
+            int column = i % COLUMNS;
+            int bit = readCell(array, buffer, rowStride,
+                    cell + column * cell, cell + row * cell, cell);
+            if (i < 8) {
+                sync = (sync << 1) | bit;
+            } else if (i < 40) {
+                frameIndex = (frameIndex << 1) | bit;
+            } else if (i < 88) {
+                timeUs = (timeUs << 1) | bit;
+            } else {
+                check = (check << 1) | bit;
+            }
+        }
+        if (sync != SYNC || check != checkOf(frameIndex, timeUs)) {
+            return false;
+        }
+        marker.frameIndex = frameIndex;
+        marker.timeUs = timeUs;
+        return true;
+    }
+
+    /**
+     * Average the inner half of a cell, edges blur most in encoded frames.
+     */
+    private static int readCell(byte[] array, ByteBuffer buffer, int rowStride,
+                                int left, int top, int cell) {
+        int inset = cell / 4;
+        int size = Math.max(1, cell - 2 * inset);
+        int sum = 0;
+        for (int y = top + inset; y < top + inset + size; y++) {
+            int rowStart = y * rowStride;
+            for (int x = left + inset; x < left + inset + size; x++) {
+                sum += (array != null ? array[rowStart + x] : buffer.get(rowStart + x)) & 0xff;
+            }
+        }
+        return sum / (size * size) > LUMA_THRESHOLD ? 1 : 0;
+    }
+
+    private static int bitAt(int i, long frameIndex, long timeUs, int check) {
+        if (i < 8) return (SYNC >> (7 - i)) & 1;
+        if (i < 40) return (int) (frameIndex >>> (39 - i)) & 1;
+        if (i < 88) return (int) (timeUs >>> (87 - i)) & 1;
+        return (check >> (95 - i)) & 1;
+    }
+
+    private static int checkOf(long frameIndex, long timeUs) {
+        int check = CHECK_SEED;
+        for (int shift = 0; shift < 32; shift += 8) {
+            check ^= (int) (frameIndex >>> shift) & 0xff;
+        }
+        for (int shift = 0; shift < 48; shift += 8) {
+            check = ((check << 1) | (check >>> 7)) & 0xff;
+            check ^= (int) (timeUs >>> shift) & 0xff;
+        }
+        return check;
+    }
+}
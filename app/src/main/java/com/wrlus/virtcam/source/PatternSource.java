@@ -0,0 +1,223 @@
+package com.wrlus.virtcam.source;
+
+/**
+ * Generate test patterns straight into NV21, all rows are precomputed in prepare.
+ */
+public class PatternSource implements FrameSource {
+    public enum Pattern {
+        COLOR_BARS,
+        MOVING_GRADIENT,
+        FRAME_COUNTER,
+    }
+
+    /**
+     * 75% color bars in BT.601 limited range, {Y, U, V}.
+     */
+    private static final int[][] BARS_YUV = {
+            {180, 128, 128}, // White
+            {162, 44, 142},  // Yellow
+            {131, 156, 44},  // Cyan
+            {112, 72, 58},   // Green
+            {84, 184, 198},  // Magenta
+            {65, 100, 212},  // Red
+            {35, 212, 114},  // Blue
+    };
+    /**
+     * 3x5 digit glyphs, each row is 3 bits with MSB on the left.
+     */
+    static final int[][] DIGIT_GLYPHS = {
+            {7, 5, 5, 5, 7}, {2, 6, 2, 2, 7}, {7, 1, 7, 4, 7}, {7, 1, 7, 1, 7},
+            {5, 5, 7, 1, 1}, {7, 4, 7, 1, 7}, {7, 4, 7, 5, 7}, {7, 1, 1, 1, 1},
+            {7, 5, 7, 5, 7}, {7, 5, 7, 1, 7},
+    };
+    private static final int COUNTER_DIGITS = 8;
+    private static final int GRADIENT_STEP = 4;
+    private static final byte LUMA_BLACK = 16;
+    private static final byte LUMA_WHITE = (byte) 235;
+
+    private final Pattern pattern;
+    private int width;
+    private int height;
+    private long frameIndex;
+    /**
+     * Frame content shared by all output frames.
+     */
+    private byte[] baseFrame;
+    /**
+     * Double buffer for animated patterns, consumers may still read the previous frame.
+     */
+    private byte[][] frames;
+    private int currentFrame;
+    /**
+     * Luma ramp of 2 * width, each output row is a slice of it.
+     */
+    private byte[] gradientRow;
+    private int counterScale;
+    private int counterLeft;
+    private int counterTop;
+    private int counterWidth;
+    private int counterHeight;
+
+    public PatternSource(Pattern pattern) {
+        this.pattern = pattern;
+    }
+
+    @Override
+    public synchronized void prepare(int width, int height) {
+        if (baseFrame != null && this.width == width && this.height == height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        frameIndex = 0;
+        switch (pattern) {
+            case MOVING_GRADIENT:
+                baseFrame = new byte[width * height * 3 / 2];
+                fillChroma(baseFrame, width, height, 0, width, (byte) 128, (byte) 128);
+                gradientRow = new byte[width * 2];
+                for (int i = 0; i < gradientRow.length; i++) {
+                    gradientRow[i] = (byte) (16 + (i % width) * 219 / width);
+                }
+                break;
+            case FRAME_COUNTER:
+                baseFrame = createColorBars(width, height);
+                counterScale = Math.max(2, height / 60);
+                counterLeft = counterScale * 2;
+                counterTop = counterScale * 2;
+                counterWidth = Math.min(COUNTER_DIGITS * 4 * counterScale + counterScale,
+                        width - counterLeft) & ~1;
+                counterHeight = Math.min(7 * counterScale, height - counterTop) & ~1;
+                // Black box with neutral chroma behind the digits.
+                for (int y = counterTop; y < counterTop + counterHeight; y++) {
+                    int rowStart = y * width + counterLeft;
+                    for (int x = 0; x < counterWidth; x++) {
+                        baseFrame[rowStart + x] = LUMA_BLACK;
+                    }
+                }
+                int frameSize = width * height;
+                for (int y = counterTop >> 1; y < (counterTop + counterHeight) >> 1; y++) {
+                    int rowStart = frameSize + y * width + (counterLeft & ~1);
+                    for (int x = 0; x < counterWidth; x++) {
+                        baseFrame[rowStart + x] = (byte) 128;
+                    }
+                }
+                break;
+            default:
+                baseFrame = createColorBars(width, height);
+                break;
+        }
+        frames = new byte[][]{baseFrame.clone(), baseFrame.clone()};
+    }
+
+    @Override
+    public synchronized byte[] nextFrame() {
+        if (baseFrame == null) {
+            return null;
+        }
+        if (pattern == Pattern.COLOR_BARS) {
+            return baseFrame;
+        }
+        currentFrame ^= 1;
+        byte[] frame = frames[currentFrame];
+        if (pattern == Pattern.MOVING_GRADIENT) {
+            int offset = (int) ((frameIndex * GRADIENT_STEP) % width);
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(gradientRow, (offset + y) % width, frame, y * width, width);
+            }
+        } else {
+            drawCounter(frame, frameIndex);
+        }
+        ++frameIndex;
+        return frame;
+    }
+
+    @Override
+    public boolean isStatic() {
+        return pattern == Pattern.COLOR_BARS;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public synchronized void release() {
+        baseFrame = null;
+        frames = null;
+        gradientRow = null;
+    }
+
+    private void drawCounter(byte[] frame, long value) {
+        // Restore counter box from the base frame, then draw digits from right to left.
+        for (int y = counterTop; y < counterTop + counterHeight; y++) {
+            int rowStart = y * width + counterLeft;
+            System.arraycopy(baseFrame, rowStart, frame, rowStart, counterWidth);
+        }
+        int glyphTop = counterTop + counterScale;
+        for (int digit = COUNTER_DIGITS - 1; digit >= 0; digit--) {
+            int[] glyph = DIGIT_GLYPHS[(int) (value % 10)];
+            value /= 10;
+            int glyphLeft = counterLeft + counterScale + digit * 4 * counterScale;
+            for (int row = 0; row < 5; row++) {
+                for (int col = 0; col < 3; col++) {
+                    if ((glyph[row] & (4 >> col)) != 0) {
+                        fillLuma(frame, glyphLeft + col * counterScale,
+                                glyphTop + row * counterScale);
+                    }
+                }
+            }
+        }
+    }
+
+    private void fillLuma(byte[] frame, int left, int top) {
+        int right = Math.min(left + counterScale, counterLeft + counterWidth);
+        int bottom = Math.min(top + counterScale, counterTop + counterHeight);
+        for (int y = top; y < bottom; y++) {
+            int rowStart = y * width;
+            for (int x = left; x < right; x++) {
+                frame[rowStart + x] = LUMA_WHITE;
+            }
+        }
+    }
+
+    private static byte[] createColorBars(int width, int height) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        byte[] lumaRow = new byte[width];
+        for (int x = 0; x < width; x++) {
+            lumaRow[x] = (byte) BARS_YUV[x * BARS_YUV.length / width][0];
+        }
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(lumaRow, 0, frame, y * width, width);
+        }
+        // NV21 chroma row is V/U interleaved, one row per two luma rows.
+        byte[] chromaRow = new byte[width];
+        for (int x = 0; x < width; x += 2) {
+            int[] bar = BARS_YUV[x * BARS_YUV.length / width];
+            chromaRow[x] = (byte) bar[2];
+            chromaRow[x + 1] = (byte) bar[1];
+        }
+        int frameSize = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            System.arraycopy(chromaRow, 0, frame, frameSize + y * width, width);
+        }
+        return frame;
+    }
+
+    private static void fillChroma(byte[] frame, int width, int height,
+                                   int left, int right, byte u, byte v) {
+        int frameSize = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            int rowStart = frameSize + y * width;
+            for (int x = left; x < right; x += 2) {
+                frame[rowStart + x] = v;
+                frame[rowStart + x + 1] = u;
+            }
+        }
+    }
+}
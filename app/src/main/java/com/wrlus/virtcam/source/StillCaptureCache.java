@@ -0,0 +1,269 @@
+package com.wrlus.virtcam.source;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.wrlus.virtcam.decode.DecodeExecutor;
+import com.wrlus.virtcam.utils.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * JPEG stills of the frame the preview currently shows, encoded ahead of time on the
+ * blocking decode pool and kept in a small LRU keyed by frame index and size, so taking a
+ * picture is a cache lookup instead of a synchronous JPEG encode.
+ * <p>
+ * Nothing is encoded before the first capture, which encodes right away, most apps never
+ * take a picture. Stills are pre-encoded from then on.
+ */
+public class StillCaptureCache {
+    private static final String TAG = "StillCaptureCache";
+
+    /**
+     * Where the preview is and what it shows.
+     */
+    public interface FrameProvider {
+        /**
+         * Index of the frame the preview shows now, -1 if nothing is shown yet.
+         */
+        long getCurrentIndex();
+
+        /**
+         * NV21 frame at index, its width and height are stored to size[0] and size[1].
+         * Calls are serialized, the array is only read until the next call or release and
+         * may be reused for the next frame.
+         *
+         * @return null if the frame is not available (yet).
+         */
+        byte[] getFrame(long index, int[] size);
+
+        /**
+         * A still is about to be captured, called on the capturing thread. Providers which
+         * prepare frames lazily start now and may wait a while for the first ones.
+         */
+        default void onCapture() {}
+
+        default void release() {}
+    }
+
+    /**
+     * Finds the source the preview is served from, it may change while the camera runs.
+     */
+    public interface SourceLookup {
+        /**
+         * @return null if no preview is served from a source right now.
+         */
+        LastFrameSource getPreviewSource();
+    }
+
+    /**
+     * Provider of the frame a generated or static source served to the preview last, so
+     * stills of animated sources match the preview. Sources stay owned by the preview.
+     */
+    public static FrameProvider sourceProvider(SourceLookup lookup) {
+        return new FrameProvider() {
+            private byte[] frame;
+
+            @Override
+            public long getCurrentIndex() {
+                LastFrameSource source = lookup.getPreviewSource();
+                long served = source != null ? source.getServedCount() : 0;
+                if (served == 0) return -1;
+                return source.isStatic() ? 0 : served - 1;
+            }
+
+            @Override
+            public byte[] getFrame(long index, int[] size) {
+                LastFrameSource source = lookup.getPreviewSource();
+                if (source == null) return null;
+                byte[] copy = source.copyLastFrame(frame, size);
+                if (copy != null) frame = copy;
+                return copy;
+            }
+
+            @Override
+            public void release() {
+                frame = null;
+            }
+        };
+    }
+
+    private final FrameProvider provider;
+    private final Handler handler;
+    private final LruCache<String, byte[]> stills;
+    private final int[] frameSize = new int[2];
+    private final ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
+    private volatile boolean running = true;
+    private final AtomicBoolean preEncoding = new AtomicBoolean();
+    private volatile String latestKey;
+    private long encodedIndex = -1;
+
+    /**
+     * Runs on the blocking pool, the handler only times the next run.
+     */
+    private final Runnable preEncode = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            try {
+                long index = provider.getCurrentIndex();
+                if (index >= 0 && index != encodedIndex) {
+                    encode(index);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Pre-encode still failed", e);
+            }
+            handler.postDelayed(schedulePreEncode, Config.stillPreEncodeIntervalMs);
+        }
+    };
+
+    private final Runnable schedulePreEncode = new Runnable() {
+        @Override
+        public void run() {
+            if (running) DecodeExecutor.execute(preEncode);
+        }
+    };
+
+    private StillCaptureCache(FrameProvider provider) {
+        this.provider = provider;
+        this.handler = DecodeExecutor.obtainHandler();
+        this.stills = new LruCache<String, byte[]>(Config.stillCacheMaxBytes) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    public static StillCaptureCache start(FrameProvider provider) {
+        return new StillCaptureCache(provider);
+    }
+
+    /**
+     * Get the still of the current preview frame, the latest pre-encoded one if the current
+     * frame is not encoded yet, or encode it right away if there is none. May block for
+     * the provider's first frames, call it off the app threads.
+     *
+     * @param orientation clockwise degrees written to EXIF, 0 for none.
+     * @return null if no frame is available or encoding failed.
+     */
+    public byte[] capture(int orientation) {
+        try {
+            return captureStill(orientation);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Capture still failed", e);
+            return null;
+        } finally {
+            if (running && preEncoding.compareAndSet(false, true)) {
+                handler.post(schedulePreEncode);
+            }
+        }
+    }
+
+    private byte[] captureStill(int orientation) {
+        long startNs = System.nanoTime();
+        provider.onCapture();
+        String source = "cache";
+        long index = provider.getCurrentIndex();
+        byte[] jpeg = null;
+        synchronized (this) {
+            if (index >= 0 && encodedIndex == index) {
+                jpeg = stills.get(latestKey);
+            }
+        }
+        if (jpeg == null && latestKey != null) {
+            jpeg = stills.get(latestKey);
+            source = "latest";
+        }
+        if (jpeg == null && index >= 0) {
+            jpeg = encode(index);
+            source = "encode";
+        }
+        if (jpeg != null && orientation != 0 && Config.enableStillExifOrientation) {
+            jpeg = withExifOrientation(jpeg, orientation);
+        }
+        Log.i(TAG, "Capture still of frame " + index + " from " + source + " in " +
+                (System.nanoTime() - startNs) / 1000 + " us");
+        return jpeg;
+    }
+
+    public void release() {
+        running = false;
+        handler.removeCallbacks(schedulePreEncode);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // After a pre-encode still running on the blocking pool.
+                synchronized (StillCaptureCache.this) {
+                    stills.evictAll();
+                    provider.release();
+                }
+                DecodeExecutor.release(handler);
+            }
+        });
+    }
+
+    private synchronized byte[] encode(long index) {
+        // Provider may be released already.
+        if (!running) return null;
+        byte[] frame = provider.getFrame(index, frameSize);
+        if (frame == null) {
+            return null;
+        }
+        int width = frameSize[0];
+        int height = frameSize[1];
+        String key = index + ":" + width + "x" + height;
+        byte[] jpeg = stills.get(key);
+        if (jpeg == null) {
+            YuvImage yuvImage = new YuvImage(frame, ImageFormat.NV21, width, height, null);
+            jpegOut.reset();
+            if (!yuvImage.compressToJpeg(new Rect(0, 0, width, height),
+                    Config.stillJpegQuality, jpegOut)) {
+                return null;
+            }
+            jpeg = jpegOut.toByteArray();
+            stills.put(key, jpeg);
+        }
+        encodedIndex = index;
+        latestKey = key;
+        return jpeg;
+    }
+
+    /**
+     * Insert an EXIF APP1 segment with only the orientation tag right after SOI.
+     */
+    static byte[] withExifOrientation(byte[] jpeg, int degrees) {
+        int orientation;
+        switch ((degrees % 360 + 360) % 360) {
+            case 90: orientation = 6; break;
+            case 180: orientation = 3; break;
+            case 270: orientation = 8; break;
+            default: return jpeg;
+        }
+        if (jpeg.length < 2 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8) {
+            return jpeg;
+        }
+        byte[] app1 = {
+                (byte) 0xff, (byte) 0xe1, 0, 34,
+                'E', 'x', 'i', 'f', 0, 0,
+                // TIFF header, big endian, IFD0 at offset 8.
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                // One entry: Orientation (0x0112), SHORT, count 1.
+                0, 1,
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                // No next IFD.
+                0, 0, 0, 0,
+        };
+        byte[] out = new byte[jpeg.length + app1.length];
+        out[0] = jpeg[0];
+        out[1] = jpeg[1];
+        System.arraycopy(app1, 0, out, 2, app1.length);
+        System.arraycopy(jpeg, 2, out, 2 + app1.length, jpeg.length - 2);
+        return out;
+    }
+}
@@ -0,0 +1,107 @@
+package com.wrlus.virtcam.source;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.wrlus.virtcam.utils.YuvUtils;
+
+import java.io.File;
+
+/**
+ * Decode a JPEG/PNG image once into NV21 at the prepared size, then serve the same buffer.
+ */
+public class StillImageSource implements FrameSource {
+    private static final String TAG = "StillImageSource";
+    private final File imageFile;
+    private byte[] frame;
+    private int width;
+    private int height;
+
+    public StillImageSource(File imageFile) {
+        this.imageFile = imageFile;
+    }
+
+    @Override
+    public synchronized void prepare(int width, int height) {
+        if (frame != null && this.width == width && this.height == height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        frame = decodeImage(imageFile, width, height);
+    }
+
+    @Override
+    public synchronized byte[] nextFrame() {
+        return frame;
+    }
+
+    @Override
+    public boolean isStatic() {
+        return true;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public synchronized void release() {
+        frame = null;
+    }
+
+    private static byte[] decodeImage(File imageFile, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.e(TAG, "Cannot decode still image: " + imageFile.getAbsolutePath());
+            return null;
+        }
+        // Subsample large images while decoding, we only need the preview size.
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width &&
+                options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap decoded = BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
+        if (decoded == null) {
+            Log.e(TAG, "Cannot decode still image: " + imageFile.getAbsolutePath());
+            return null;
+        }
+        // Center crop to the target aspect ratio, then scale to the target size.
+        int srcWidth = decoded.getWidth();
+        int srcHeight = decoded.getHeight();
+        int cropWidth = srcWidth;
+        int cropHeight = srcHeight;
+        if ((long) srcWidth * height > (long) srcHeight * width) {
+            cropWidth = (int) ((long) srcHeight * width / height);
+        } else {
+            cropHeight = (int) ((long) srcWidth * height / width);
+        }
+        Bitmap cropped = Bitmap.createBitmap(decoded, (srcWidth - cropWidth) / 2,
+                (srcHeight - cropHeight) / 2, cropWidth, cropHeight);
+        Bitmap scaled = Bitmap.createScaledBitmap(cropped, width, height, true);
+        int[] argb = new int[width * height];
+        scaled.getPixels(argb, 0, width, 0, 0, width, height);
+        if (scaled != cropped) scaled.recycle();
+        if (cropped != decoded) cropped.recycle();
+        decoded.recycle();
+
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        YuvUtils.argbToNV21(argb, width, height, nv21);
+        Log.i(TAG, "Decoded still image " + imageFile.getAbsolutePath() +
+                " to " + width + "x" + height);
+        return nv21;
+    }
+}
@@ -0,0 +1,152 @@
+package com.wrlus.virtcam.source;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.media.Image;
+import android.media.ImageWriter;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import com.wrlus.virtcam.decode.DecodeExecutor;
+import com.wrlus.virtcam.utils.Config;
+import com.wrlus.virtcam.utils.VideoUtils;
+import com.wrlus.virtcam.utils.YuvUtils;
+
+/**
+ * Push frames of a {@link FrameSource} into an output surface at {@link Config#virtualFps},
+ * or at the rate of a high-speed session.
+ * YUV consumers (ImageReader) are fed by ImageWriter, other consumers
+ * (SurfaceTexture, SurfaceView) are drawn by Canvas.
+ */
+public class SurfaceFrameInjector {
+    private static final String TAG = "SurfaceFrameInjector";
+    private final Surface surface;
+    private final FrameSource source;
+    private final boolean yuvConsumer;
+    private final long frameIntervalNs;
+    private long nextFrameTimeNs;
+    private final Handler handler;
+    private volatile boolean running = true;
+
+    private ImageWriter imageWriter;
+    private Bitmap bitmap;
+    private int[] argb;
+    private byte[] lastFrame;
+    private LatencyProbe latencyProbe;
+    private long probeFrameIndex = 0;
+
+    private final Runnable drawFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            // Accumulate in nanoseconds, millisecond intervals drift at 120/240 fps.
+            long nowNs = SystemClock.uptimeMillis() * 1000000;
+            nextFrameTimeNs = nextFrameTimeNs == 0 ? nowNs + frameIntervalNs :
+                    Math.max(nextFrameTimeNs + frameIntervalNs, nowNs);
+            try {
+                if (yuvConsumer) {
+                    writeImage();
+                } else {
+                    drawCanvas();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Inject frame failed", e);
+            }
+            handler.postAtTime(this, nextFrameTimeNs / 1000000);
+        }
+    };
+
+    private SurfaceFrameInjector(Surface surface, FrameSource source, boolean yuvConsumer,
+                                 int fps) {
+        this.surface = surface;
+        this.source = source;
+        this.yuvConsumer = yuvConsumer;
+        frameIntervalNs = 1000000000L / fps;
+        handler = DecodeExecutor.obtainHandler();
+    }
+
+    public static SurfaceFrameInjector start(Surface surface, FrameSource source,
+                                             boolean yuvConsumer) {
+        return start(surface, source, yuvConsumer, Config.virtualFps);
+    }
+
+    public static SurfaceFrameInjector start(Surface surface, FrameSource source,
+                                             boolean yuvConsumer, int fps) {
+        SurfaceFrameInjector injector = new SurfaceFrameInjector(surface, source, yuvConsumer,
+                fps > 0 ? fps : Config.virtualFps);
+        injector.handler.post(injector.drawFrame);
+        return injector;
+    }
+
+    public void release() {
+        running = false;
+        handler.removeCallbacks(drawFrame);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (imageWriter != null) imageWriter.close();
+                if (bitmap != null) bitmap.recycle();
+                source.release();
+                DecodeExecutor.release(handler);
+            }
+        });
+    }
+
+    private void writeImage() {
+        if (imageWriter == null) {
+            imageWriter = ImageWriter.newInstance(surface, 2);
+        }
+        Image image;
+        try {
+            image = imageWriter.dequeueInputImage();
+        } catch (IllegalStateException e) {
+            // Consumer still holds all buffers, drop this frame.
+            return;
+        }
+        source.prepare(image.getWidth(), image.getHeight());
+        byte[] frame = source.nextFrame();
+        if (frame == null) {
+            image.close();
+            return;
+        }
+        VideoUtils.copyNV21ToImage(frame, image.getWidth(), image.getHeight(), image);
+        long timeNs = System.nanoTime();
+        if (Config.enableLatencyProbe) {
+            if (latencyProbe == null) latencyProbe = new LatencyProbe();
+            Image.Plane luma = image.getPlanes()[0];
+            latencyProbe.stamp(luma.getBuffer(), luma.getRowStride(), image.getWidth(),
+                    image.getHeight(), probeFrameIndex++, timeNs);
+        }
+        image.setTimestamp(timeNs);
+        imageWriter.queueInputImage(image);
+    }
+
+    private void drawCanvas() {
+        Canvas canvas = surface.lockCanvas(null);
+        if (canvas == null) return;
+        try {
+            int width = canvas.getWidth() & ~1;
+            int height = canvas.getHeight() & ~1;
+            source.prepare(width, height);
+            byte[] frame = source.nextFrame();
+            if (frame == null) return;
+            if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                if (bitmap != null) bitmap.recycle();
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                argb = new int[width * height];
+                lastFrame = null;
+            }
+            // Static sources keep serving the same buffer, convert it only once.
+            if (frame != lastFrame || !source.isStatic()) {
+                YuvUtils.nv21ToArgb(frame, width, height, argb);
+                bitmap.setPixels(argb, 0, width, 0, 0, width, height);
+                lastFrame = frame;
+            }
+            canvas.drawBitmap(bitmap, 0, 0, null);
+        } finally {
+            surface.unlockCanvasAndPost(canvas);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.wrlus.virtcam.source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * Frame offset index of an uncompressed YUV file, either YUV4MPEG2 (.y4m)
+ * or headerless raw YUV described by a sidecar descriptor.
+ * Only depends on java.nio, parsing is done once when the index is built.
+ */
+public class YuvFileIndex {
+    private static final String Y4M_MAGIC = "YUV4MPEG2 ";
+    private static final String Y4M_FRAME = "FRAME";
+    private static final int MAX_HEADER_LENGTH = 1024;
+
+    public enum Layout {
+        /**
+         * Planar Y, U, V. Used by all 4:2:0 Y4M color spaces.
+         */
+        I420,
+        /**
+         * Y plane followed by interleaved V/U.
+         */
+        NV21,
+        /**
+         * Y plane followed by interleaved U/V.
+         */
+        NV12,
+    }
+
+    private final int width;
+    private final int height;
+    private final Layout layout;
+    private final int fpsNum;
+    private final int fpsDen;
+    private final int[] frameOffsets;
+
+    private YuvFileIndex(int width, int height, Layout layout,
+                         int fpsNum, int fpsDen, int[] frameOffsets) {
+        this.width = width;
+        this.height = height;
+        this.layout = layout;
+        this.fpsNum = fpsNum;
+        this.fpsDen = fpsDen;
+        this.frameOffsets = frameOffsets;
+    }
+
+    /**
+     * Parse a YUV4MPEG2 stream header and index every FRAME in the buffer.
+     */
+    public static YuvFileIndex parseY4m(ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        int headerEnd = indexOf(buffer, 0, (byte) '\n', Math.min(limit, MAX_HEADER_LENGTH));
+        if (headerEnd < 0) {
+            throw new IOException("Y4M header is not terminated");
+        }
+        String header = readAscii(buffer, 0, headerEnd);
+        if (!header.startsWith(Y4M_MAGIC)) {
+            throw new IOException("Not a YUV4MPEG2 stream");
+        }
+        int width = 0;
+        int height = 0;
+        int fpsNum = 30;
+        int fpsDen = 1;
+        for (String token : header.substring(Y4M_MAGIC.length()).split(" ")) {
+            if (token.isEmpty()) continue;
+            String value = token.substring(1);
+            switch (token.charAt(0)) {
+                case 'W':
+                    width = parseInt(value, "width");
+                    break;
+                case 'H':
+                    height = parseInt(value, "height");
+                    break;
+                case 'F':
+                    String[] rate = value.split(":");
+                    if (rate.length == 2) {
+                        fpsNum = parseInt(rate[0], "frame rate");
+                        fpsDen = parseInt(rate[1], "frame rate");
+                    }
+                    break;
+                case 'C':
+                    if (!value.startsWith("420")) {
+                        throw new IOException("Unsupported Y4M color space: " + value);
+                    }
+                    break;
+                default:
+                    // Interlacing, aspect ratio and extensions do not affect frame layout.
+                    break;
+            }
+        }
+        checkSize(width, height);
+        int frameSize = frameSize(width, height);
+        int[] offsets = new int[16];
+        int count = 0;
+        int position = headerEnd + 1;
+        while (position + Y4M_FRAME.length() <= limit) {
+            if (!readAscii(buffer, position, position + Y4M_FRAME.length()).equals(Y4M_FRAME)) {
+                throw new IOException("Missing FRAME marker at offset " + position);
+            }
+            int frameHeaderEnd = indexOf(buffer, position, (byte) '\n',
+                    Math.min(limit, position + MAX_HEADER_LENGTH));
+            if (frameHeaderEnd < 0) {
+                throw new IOException("FRAME header is not terminated at offset " + position);
+            }
+            int dataOffset = frameHeaderEnd + 1;
+            if ((long) dataOffset + frameSize > limit) {
+                // Truncated trailing frame.
+                break;
+            }
+            if (count == offsets.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(offsets, 0, grown, 0, count);
+                offsets = grown;
+            }
+            offsets[count++] = dataOffset;
+            position = dataOffset + frameSize;
+        }
+        int[] frameOffsets = new int[count];
+        System.arraycopy(offsets, 0, frameOffsets, 0, count);
+        return new YuvFileIndex(width, height, Layout.I420, fpsNum, fpsDen, frameOffsets);
+    }
+
+    /**
+     * Index a headerless raw YUV stream, the descriptor is a properties file like:
+     * <pre>
+     * width=640
+     * height=480
+     * format=NV21
+     * fps=30
+     * </pre>
+     */
+    public static YuvFileIndex parseRaw(Properties descriptor, long length) throws IOException {
+        int width = parseInt(descriptor.getProperty("width"), "width");
+        int height = parseInt(descriptor.getProperty("height"), "height");
+        checkSize(width, height);
+        Layout layout;
+        try {
+            layout = Layout.valueOf(descriptor.getProperty("format", "I420").trim());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unsupported raw YUV format: " + descriptor.getProperty("format"));
+        }
+        int fps = parseInt(descriptor.getProperty("fps", "30"), "fps");
+        int frameSize = frameSize(width, height);
+        int count = (int) Math.min(length / frameSize, Integer.MAX_VALUE);
+        int[] frameOffsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            frameOffsets[i] = i * frameSize;
+        }
+        return new YuvFileIndex(width, height, layout, fps, 1, frameOffsets);
+    }
+
+    public static int frameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public int getFrameCount() {
+        return frameOffsets.length;
+    }
+
+    public int getFrameSize() {
+        return frameSize(width, height);
+    }
+
+    public long getFrameDurationUs() {
+        return fpsNum > 0 ? 1000000L * fpsDen / fpsNum : 0;
+    }
+
+    /**
+     * Byte offset of frame data in the file.
+     */
+    public int getFrameOffset(int index) {
+        return frameOffsets[index];
+    }
+
+    private static void checkSize(int width, int height) throws IOException {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IOException("Invalid YUV frame size: " + width + "x" + height);
+        }
+        if ((long) width * height * 3 / 2 > Integer.MAX_VALUE) {
+            throw new IOException("YUV frame is too large: " + width + "x" + height);
+        }
+    }
+
+    private static int parseInt(String value, String name) throws IOException {
+        try {
+            return Integer.parseInt(value == null ? "" : value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, byte target, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == target) return i;
+        }
+        return -1;
+    }
+
+    private static String readAscii(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buffer.get(i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
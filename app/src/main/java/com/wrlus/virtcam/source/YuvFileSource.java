@@ -0,0 +1,217 @@
+package com.wrlus.virtcam.source;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Serve frames of an uncompressed Y4M or raw YUV file from a memory-mapped buffer,
+ * no decoder is involved so frames are bit-exact with the file.
+ */
+public class YuvFileSource implements FrameSource {
+    private static final String TAG = "YuvFileSource";
+    public static final String DESCRIPTOR_SUFFIX = ".desc";
+    private final File yuvFile;
+    private MappedByteBuffer mappedBuffer;
+    private YuvFileIndex index;
+    private int width;
+    private int height;
+    private int frameIndex;
+    private byte[][] frames;
+    private int currentFrame;
+    /**
+     * Nearest-neighbor maps from output to source pixels, null if sizes match.
+     */
+    private int[] columnMap;
+    private int[] rowMap;
+    private byte[] sourceFrame;
+
+    public YuvFileSource(File yuvFile) {
+        this.yuvFile = yuvFile;
+    }
+
+    public static boolean isY4m(File file) {
+        return file.getName().toLowerCase().endsWith(".y4m");
+    }
+
+    public static File getDescriptorFile(File rawFile) {
+        return new File(rawFile.getPath() + DESCRIPTOR_SUFFIX);
+    }
+
+    @Override
+    public synchronized void prepare(int width, int height) {
+        if (frames != null && this.width == width && this.height == height) {
+            return;
+        }
+        if (index == null && !open()) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        int frameSize = YuvFileIndex.frameSize(width, height);
+        frames = new byte[][]{new byte[frameSize], new byte[frameSize]};
+        if (width == index.getWidth() && height == index.getHeight()) {
+            columnMap = null;
+            rowMap = null;
+            sourceFrame = null;
+        } else {
+            Log.w(TAG, "YUV file size " + index.getWidth() + "x" + index.getHeight() +
+                    " does not match " + width + "x" + height + ", scaling frames");
+            columnMap = new int[width];
+            for (int x = 0; x < width; x++) {
+                columnMap[x] = x * index.getWidth() / width;
+            }
+            rowMap = new int[height];
+            for (int y = 0; y < height; y++) {
+                rowMap[y] = y * index.getHeight() / height;
+            }
+            sourceFrame = new byte[index.getFrameSize()];
+        }
+    }
+
+    @Override
+    public synchronized byte[] nextFrame() {
+        if (frames == null || index.getFrameCount() == 0) {
+            return null;
+        }
+        currentFrame ^= 1;
+        byte[] frame = frames[currentFrame];
+        ByteBuffer slice = getFrameBuffer(frameIndex);
+        frameIndex = (frameIndex + 1) % index.getFrameCount();
+        if (columnMap == null) {
+            toNV21(slice, index.getLayout(), width, height, frame);
+        } else {
+            toNV21(slice, index.getLayout(), index.getWidth(), index.getHeight(), sourceFrame);
+            scaleNV21(sourceFrame, index.getWidth(), frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Read-only view of frame data in the mapped file, in the file's own layout.
+     */
+    public synchronized ByteBuffer getFrameBuffer(int frame) {
+        ByteBuffer slice = mappedBuffer.duplicate();
+        int offset = index.getFrameOffset(frame);
+        slice.limit(offset + index.getFrameSize());
+        slice.position(offset);
+        return slice.slice();
+    }
+
+    public synchronized YuvFileIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean isStatic() {
+        return false;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public synchronized void release() {
+        // Mapped buffer is unmapped by GC, drop all references.
+        mappedBuffer = null;
+        index = null;
+        frames = null;
+        sourceFrame = null;
+    }
+
+    private boolean open() {
+        try (RandomAccessFile file = new RandomAccessFile(yuvFile, "r")) {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                Log.e(TAG, "YUV file is too large to map: " + yuvFile.getAbsolutePath());
+                return false;
+            }
+            mappedBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (isY4m(yuvFile)) {
+                index = YuvFileIndex.parseY4m(mappedBuffer);
+            } else {
+                Properties descriptor = new Properties();
+                try (InputStream is = new FileInputStream(getDescriptorFile(yuvFile))) {
+                    descriptor.load(is);
+                }
+                index = YuvFileIndex.parseRaw(descriptor, length);
+            }
+            Log.i(TAG, "Indexed " + index.getFrameCount() + " frames " +
+                    index.getWidth() + "x" + index.getHeight() + " " + index.getLayout() +
+                    " from " + yuvFile.getAbsolutePath());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "open - IOException", e);
+            mappedBuffer = null;
+            return false;
+        }
+    }
+
+    /**
+     * Copy one frame from the file layout into NV21.
+     */
+    static void toNV21(ByteBuffer src, YuvFileIndex.Layout layout,
+                       int width, int height, byte[] nv21) {
+        final int frameSize = width * height;
+        final int chromaSize = frameSize / 4;
+        switch (layout) {
+            case NV21:
+                src.get(nv21, 0, frameSize * 3 / 2);
+                break;
+            case NV12:
+                src.get(nv21, 0, frameSize * 3 / 2);
+                for (int i = frameSize; i < nv21.length - 1; i += 2) {
+                    byte u = nv21[i];
+                    nv21[i] = nv21[i + 1];
+                    nv21[i + 1] = u;
+                }
+                break;
+            default:
+                src.get(nv21, 0, frameSize);
+                final int uBase = frameSize;
+                final int vBase = frameSize + chromaSize;
+                int dst = frameSize;
+                for (int i = 0; i < chromaSize; i++) {
+                    nv21[dst++] = src.get(vBase + i);
+                    nv21[dst++] = src.get(uBase + i);
+                }
+                break;
+        }
+    }
+
+    private void scaleNV21(byte[] src, int srcWidth, byte[] dst) {
+        final int srcFrameSize = srcWidth * index.getHeight();
+        final int dstFrameSize = width * height;
+        for (int y = 0; y < height; y++) {
+            int srcRow = rowMap[y] * srcWidth;
+            int dstRow = y * width;
+            for (int x = 0; x < width; x++) {
+                dst[dstRow + x] = src[srcRow + columnMap[x]];
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            int srcRow = srcFrameSize + (rowMap[y * 2] >> 1) * srcWidth;
+            int dstRow = dstFrameSize + y * width;
+            for (int x = 0; x < width; x += 2) {
+                int srcColumn = columnMap[x] & ~1;
+                dst[dstRow + x] = src[srcRow + srcColumn];
+                dst[dstRow + x + 1] = src[srcRow + srcColumn + 1];
+            }
+        }
+    }
+}
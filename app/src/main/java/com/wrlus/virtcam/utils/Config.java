@@ -1,22 +1,202 @@
 package com.wrlus.virtcam.utils;
 
 import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+
+import com.wrlus.virtcam.source.PatternSource;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 public class Config {
     public static final File baseStorage = Default.EXTERNAL_STORAGE;
     public static final String videoPath = Default.VIDEO_PATH;
     public static final String rotatedVideoPath = Default.ROTATED_VIDEO_PATH;
+    public static final String stillImagePath = Default.STILL_IMAGE_PATH;
+    public static final String yuvFilePath = Default.YUV_FILE_PATH;
+    public static final String playlistPath = Default.PLAYLIST_PATH;
+    public static final boolean playlistShuffle = false;
+    public static final SourceType sourceType = Default.SOURCE_TYPE;
+    public static final PatternSource.Pattern pattern = Default.PATTERN;
+    public static final int virtualFps = Default.VIRTUAL_FPS;
+    /**
+     * Decode thread pool size, 0 means half of CPU cores, clamped to [2, 4].
+     */
+    public static final int decodeThreadCount = 0;
+    /**
+     * Priority of the streaming decode threads, not above the app's own UI and render
+     * threads.
+     */
+    public static final int decodeThreadPriority = Process.THREAD_PRIORITY_DEFAULT;
+    /**
+     * Thread count of the pool for blocking one-shot work (pre-decode, sample loading, JPEG
+     * encode), 0 means half of CPU cores, clamped to [2, 4].
+     */
+    public static final int decodeBlockingThreadCount = 0;
+    public static final int decodeBlockingThreadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+    /**
+     * Read all compressed video samples into memory once, loops never touch disk again.
+     */
+    public static final boolean enableSampleCache = true;
+    public static final long sampleCacheMaxBytes = 64L * 1024 * 1024;
+    /**
+     * Share sample caches between hooked processes through mapped files in sharedCacheDir,
+     * processes which can not access it keep a private cache. Off by default: the directory
+     * is on shared storage, any app which can write there can plant samples every hooked
+     * app decodes. Only enable it on devices where all such apps are trusted.
+     */
+    public static final boolean enableSharedSampleCache = false;
+    public static final File sharedCacheDir = Default.SHARED_CACHE_DIR;
+    /**
+     * Pre-decode NV21 frames with several codec instances in parallel, one per segment.
+     */
+    public static final boolean enableSegmentedDecode = true;
+    /**
+     * Upper bound of parallel segments, also limited by decode threads and by codec
+     * instances, of which some are left to the app and the live decoder.
+     */
+    public static final int segmentedDecodeMaxSegments = 2;
+    /**
+     * Pre-decode NV21 frames at the size apps consume them at (preview size, output
+     * surface sizes) rather than the video size, frames are decimated while converting.
+     */
+    public static final boolean enableDecodeSizeNegotiation = true;
+    /**
+     * Watch app ImageReader consumers and drop frames they can not take, for slow consumers
+     * before decoding them.
+     */
+    public static final boolean enableDeliveryGovernor = true;
+    /**
+     * Serve Camera.takePicture and Camera2 JPEG captures from pre-encoded virtual stills.
+     */
+    public static final boolean enableStillCapture = true;
+    public static final int stillJpegQuality = 90;
+    public static final int stillCacheMaxBytes = 8 * 1024 * 1024;
+    /**
+     * How often the still of the current preview frame is encoded ahead of capture.
+     */
+    public static final long stillPreEncodeIntervalMs = 100;
+    public static final boolean enableStillExifOrientation = true;
+    /**
+     * Trace events at or above this level also go to logcat, see {@link TraceLog}.
+     */
+    public static final int traceLogcatLevel = Log.WARN;
+    /**
+     * Events kept per thread, 32 bytes each.
+     */
+    public static final int traceRingEvents = 1024;
+    /**
+     * Dump trace rings to logcat when the camera is closed.
+     */
+    public static final boolean enableTraceDumpOnClose = false;
+    /**
+     * Stamp frame index and serve time into served frames and read them back where apps
+     * consume frames, see {@link com.wrlus.virtcam.source.LatencyProbe}. Frames rendered
+     * by the video decoder straight into surfaces are not stamped.
+     */
+    public static final boolean enableLatencyProbe = false;
+    /**
+     * Free frame buffers kept for reuse, see {@link FramePool}.
+     */
+    public static final int framePoolMaxBytes = 32 * 1024 * 1024;
+    public static final int framePoolMaxFreePerSize = 4;
+    /**
+     * Log frame buffers dropped without release with the stack that acquired them, for
+     * debug builds: every acquire records a stack trace.
+     */
+    public static final boolean enableFramePoolLeakCheck = false;
+    /**
+     * Recycle arrays given to Camera1 preview callbacks through {@link FramePool} when camera
+     * did not pass one to overwrite. Apps own every array their callback gets and may keep it
+     * (e.g. hand it to a worker thread), a recycled array is overwritten a few frames later
+     * while they still read it. Only for apps known to copy frames out in the callback.
+     */
+    public static final boolean enableCallbackFrameReuse = false;
     public static final boolean enableCamera2Hook = true;
     public static final boolean enableLegacyCameraHook = true;
     public static final boolean enableLegacyCameraDumpFrame = false;
+    /**
+     * Record dumped frames into one MP4 with a hardware encoder instead of a JPEG per frame,
+     * see {@link FrameRecorder}.
+     */
+    public static final boolean enableDumpRecording = true;
+    /**
+     * "video/avc" or "video/hevc".
+     */
+    public static final String recordMime = "video/avc";
+    public static final int recordBitRate = 4 * 1024 * 1024;
+    /**
+     * Frames waiting for the encoder, more are dropped.
+     */
+    public static final int recordQueueFrames = 4;
+    /**
+     * Use gapless looping decoder instead of MediaPlayer for SurfaceTexture outputs.
+     */
+    public static final boolean enableGaplessLoop = true;
+    /**
+     * Only hook camera open methods at startup, install full hooks on first camera open.
+     */
+    public static final boolean enableLazyHook = true;
+    /**
+     * Packages to hook, empty means all packages not in deny list.
+     */
+    public static final Set<String> hookPackageAllowList = Collections.emptySet();
+    public static final Set<String> hookPackageDenyList = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList(Default.HOOK_PACKAGE_DENY_LIST)));
+
+    public static boolean isHookPackage(String packageName) {
+        if (hookPackageDenyList.contains(packageName)) {
+            return false;
+        }
+        return hookPackageAllowList.isEmpty() || hookPackageAllowList.contains(packageName);
+    }
+
+    public enum SourceType {
+        /**
+         * Decode virtual video with MediaPlayer / MediaCodec.
+         */
+        VIDEO,
+        /**
+         * Decode a JPEG/PNG image once and serve it forever.
+         */
+        STILL_IMAGE,
+        /**
+         * Generate a test pattern, no file or decoder needed.
+         */
+        PATTERN,
+        /**
+         * Memory-map an uncompressed Y4M or raw YUV file, no decoder needed.
+         */
+        YUV_FILE,
+        /**
+         * Play clips of a directory or manifest file one after another.
+         */
+        PLAYLIST,
+    }
 
     static final class Default {
         public static final File EXTERNAL_STORAGE =
                 new File(Environment.getExternalStorageDirectory(), "Android/data");
         public static final File INTERNAL_STORAGE = new File("/data/data");
+        public static final File SHARED_CACHE_DIR =
+                new File(Environment.getExternalStorageDirectory(), "VirtCam/cache");
         public static final String VIDEO_PATH = "files/ccc/virtual.mp4";
         public static final String ROTATED_VIDEO_PATH = "files/ccc/virtual_r.mp4";
+        public static final String STILL_IMAGE_PATH = "files/ccc/virtual.jpg";
+        public static final String YUV_FILE_PATH = "files/ccc/virtual.y4m";
+        public static final String PLAYLIST_PATH = "files/ccc/playlist";
+        public static final SourceType SOURCE_TYPE = SourceType.VIDEO;
+        public static final PatternSource.Pattern PATTERN = PatternSource.Pattern.COLOR_BARS;
+        public static final int VIRTUAL_FPS = 30;
+        public static final String[] HOOK_PACKAGE_DENY_LIST = {
+                "android",
+                "com.android.systemui",
+                "com.android.phone",
+                "com.wrlus.virtcam",
+        };
     }
 }
@@ -0,0 +1,227 @@
+package com.wrlus.virtcam.utils;
+
+import android.util.Log;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Frame buffers shared by the decode, transform and delivery stages and reused from frame to
+ * frame, so serving frames in steady state does not allocate and the GC has nothing to do.
+ * <p>
+ * Slots are classed by exact size, frames of one stream all have the same size and Camera1
+ * apps expect arrays of exactly the frame size. A slot is acquired with one reference, each
+ * {@link Slot#retain} needs its own {@link Slot#release}, and the slot goes back to the pool
+ * with the last one. Free slots are handed out least recently released first. At most
+ * {@link Config#framePoolMaxFreePerSize} free slots per size and
+ * {@link Config#framePoolMaxBytes} in total are kept, others are left to the GC.
+ * <p>
+ * Slots are heap arrays, not direct buffers: preview callbacks, YuvImage and file streams
+ * all need a byte[] starting at offset 0, which direct buffers on ART can not provide.
+ * {@link Slot#buffer} wraps the same array for stages working on ByteBuffers.
+ * <p>
+ * With {@link Config#enableFramePoolLeakCheck} the stack of every acquire is kept, and slots
+ * collected by the GC without being released are logged with it.
+ */
+public class FramePool {
+    private static final String TAG = "FramePool";
+
+    public static final class Slot {
+        private final byte[] array;
+        private final ByteBuffer buffer;
+        private final AtomicInteger refCount = new AtomicInteger();
+        private volatile LeakRecord leakRecord;
+
+        private Slot(int size) {
+            array = new byte[size];
+            buffer = ByteBuffer.wrap(array);
+        }
+
+        public byte[] array() {
+            return array;
+        }
+
+        /**
+         * Buffer over the whole array, cleared on acquire.
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        public int size() {
+            return array.length;
+        }
+
+        /**
+         * Add a reference for another consumer of the frame.
+         */
+        public Slot retain() {
+            while (true) {
+                int count = refCount.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("Retain of a released frame slot");
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return this;
+                }
+            }
+        }
+
+        /**
+         * Drop a reference, the slot must not be touched through it afterwards.
+         */
+        public void release() {
+            int count = refCount.decrementAndGet();
+            if (count == 0) {
+                recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("Frame slot released too often");
+            }
+        }
+    }
+
+    private static final class SizeClass {
+        final int size;
+        final ArrayDeque<Slot> free = new ArrayDeque<>();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Cleared when its slot is released, so only slots collected while held get enqueued.
+     */
+    private static final class LeakRecord extends WeakReference<Slot> {
+        final int size;
+        final Throwable site;
+
+        LeakRecord(Slot slot) {
+            super(slot, leakQueue);
+            size = slot.size();
+            site = new Throwable("Frame slot acquired here");
+        }
+    }
+
+    private static final ArrayList<SizeClass> sizeClasses = new ArrayList<>();
+    private static final ReferenceQueue<Slot> leakQueue = new ReferenceQueue<>();
+    private static final Set<LeakRecord> leakRecords =
+            Collections.newSetFromMap(new ConcurrentHashMap<LeakRecord, Boolean>());
+    private static long freeBytes = 0;
+    private static long allocatedSlots = 0;
+    private static long reusedSlots = 0;
+
+    /**
+     * Slot of exactly size bytes holding one reference, contents are undefined.
+     */
+    public static Slot acquire(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Bad frame slot size " + size);
+        }
+        Slot slot;
+        synchronized (FramePool.class) {
+            SizeClass sizeClass = findSizeClass(size);
+            slot = sizeClass != null ? sizeClass.free.pollFirst() : null;
+            if (slot != null) {
+                freeBytes -= size;
+                ++reusedSlots;
+            } else {
+                ++allocatedSlots;
+            }
+        }
+        if (slot == null) {
+            slot = new Slot(size);
+        }
+        slot.refCount.set(1);
+        slot.buffer.clear();
+        if (Config.enableFramePoolLeakCheck) {
+            reportLeaks();
+            LeakRecord record = new LeakRecord(slot);
+            leakRecords.add(record);
+            slot.leakRecord = record;
+        }
+        return slot;
+    }
+
+    private static void recycle(Slot slot) {
+        LeakRecord record = slot.leakRecord;
+        if (record != null) {
+            slot.leakRecord = null;
+            record.clear();
+            leakRecords.remove(record);
+        }
+        int size = slot.size();
+        synchronized (FramePool.class) {
+            if (freeBytes + size > Config.framePoolMaxBytes) {
+                return;
+            }
+            SizeClass sizeClass = findSizeClass(size);
+            if (sizeClass == null) {
+                sizeClass = new SizeClass(size);
+                sizeClasses.add(sizeClass);
+            }
+            if (sizeClass.free.size() >= Config.framePoolMaxFreePerSize) {
+                return;
+            }
+            sizeClass.free.addLast(slot);
+            freeBytes += size;
+        }
+    }
+
+    private static SizeClass findSizeClass(int size) {
+        // A handful of stream sizes at most, a list beats boxing keys for a map.
+        for (int i = 0; i < sizeClasses.size(); i++) {
+            SizeClass sizeClass = sizeClasses.get(i);
+            if (sizeClass.size == size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop all free slots, e.g. when the camera is released and stream sizes will change.
+     */
+    public static void trim() {
+        synchronized (FramePool.class) {
+            Log.i(TAG, "Trim " + freeBytes + " free bytes, " + allocatedSlots +
+                    " slots allocated, " + reusedSlots + " reused");
+            sizeClasses.clear();
+            freeBytes = 0;
+        }
+        if (Config.enableFramePoolLeakCheck) {
+            reportLeaks();
+            if (!leakRecords.isEmpty()) {
+                Log.w(TAG, leakRecords.size() + " frame slots still held");
+            }
+        }
+    }
+
+    /**
+     * Log slots the GC collected without release, only tracked with
+     * {@link Config#enableFramePoolLeakCheck}.
+     *
+     * @return number of leaked slots found.
+     */
+    public static int reportLeaks() {
+        int leaks = 0;
+        Reference<? extends Slot> reference;
+        while ((reference = leakQueue.poll()) != null) {
+            LeakRecord record = (LeakRecord) reference;
+            if (leakRecords.remove(record)) {
+                ++leaks;
+                Log.e(TAG, "Frame slot of " + record.size + " bytes was never released",
+                        record.site);
+            }
+        }
+        return leaks;
+    }
+}
@@ -0,0 +1,285 @@
+package com.wrlus.virtcam.utils;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.wrlus.virtcam.decode.DecodeExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record NV21 frames into one MP4 with a hardware encoder, instead of a JPEG file per frame.
+ * <p>
+ * Frames are copied into a small pool of {@link Config#recordQueueFrames} buffers and fed
+ * to the encoder on a decode pool thread, callers do not wait for the encoder: when it
+ * falls behind and no buffer is free the frame is dropped. Timestamps of the frames are
+ * kept, only nudged forward where they would not increase.
+ */
+public class FrameRecorder {
+    private static final String TAG = "FrameRecorder";
+    private static final int I_FRAME_INTERVAL_S = 1;
+    private static final int LOG_INTERVAL_FRAMES = 300;
+
+    private static final class Frame {
+        final byte[] data;
+        long timeUs;
+
+        Frame(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final File outputFile;
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final Handler handler;
+    private final ArrayBlockingQueue<Frame> freeFrames;
+    private final ArrayBlockingQueue<Frame> pendingFrames;
+    private volatile boolean stopping = false;
+    private volatile long offeredFrames = 0;
+    private volatile long droppedFrames = 0;
+
+    // Encoder thread only.
+    private final ArrayDeque<Integer> freeInputs = new ArrayDeque<>();
+    private MediaCodec codec;
+    private MediaMuxer muxer;
+    private int track = -1;
+    private boolean eosQueued = false;
+    private boolean finished = false;
+    private long lastTimeUs = -1;
+    private long writtenFrames = 0;
+
+    private final Runnable feed = new Runnable() {
+        @Override
+        public void run() {
+            feedEncoder();
+        }
+    };
+
+    private FrameRecorder(File outputFile, int width, int height) {
+        this.outputFile = outputFile;
+        this.width = width;
+        this.height = height;
+        this.frameSize = width * height * 3 / 2;
+        int queueFrames = Math.max(1, Config.recordQueueFrames);
+        freeFrames = new ArrayBlockingQueue<>(queueFrames);
+        pendingFrames = new ArrayBlockingQueue<>(queueFrames);
+        for (int i = 0; i < queueFrames; i++) {
+            freeFrames.add(new Frame(frameSize));
+        }
+        handler = DecodeExecutor.obtainHandler();
+    }
+
+    public static FrameRecorder start(File outputFile, int width, int height) {
+        FrameRecorder recorder = new FrameRecorder(outputFile, width, height);
+        recorder.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                recorder.setUp();
+            }
+        });
+        return recorder;
+    }
+
+    private void setUp() {
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(Config.recordMime, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, Config.recordBitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, Config.virtualFps);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_S);
+            codec = MediaCodec.createEncoderByType(Config.recordMime);
+            codec.setCallback(callback, handler);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            muxer = new MediaMuxer(outputFile.getAbsolutePath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            codec.start();
+            Log.i(TAG, "Recording " + width + "x" + height + " " + Config.recordMime +
+                    " to " + outputFile.getAbsolutePath());
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "setUp - " + e.getClass().getSimpleName(), e);
+            stopping = true;
+            finish();
+        }
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Queue a frame of the recorder size without waiting.
+     *
+     * @return false if the frame was dropped.
+     */
+    public boolean offer(byte[] nv21, long timeUs) {
+        return offer(nv21, timeUs, 0);
+    }
+
+    /**
+     * Queue a frame of the recorder size, waiting at most timeoutMs for a free buffer.
+     * Offline producers use this to keep every frame while the encoder keeps up.
+     *
+     * @return false if the frame was dropped.
+     */
+    public boolean offer(byte[] nv21, long timeUs, long timeoutMs) {
+        if (stopping || nv21 == null || nv21.length < frameSize) {
+            return false;
+        }
+        ++offeredFrames;
+        Frame frame;
+        try {
+            frame = timeoutMs > 0 ? freeFrames.poll(timeoutMs, TimeUnit.MILLISECONDS) :
+                    freeFrames.poll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            frame = null;
+        }
+        if (frame == null) {
+            ++droppedFrames;
+            if (droppedFrames % LOG_INTERVAL_FRAMES == 1) {
+                Log.w(TAG, "Encoder behind, dropped " + droppedFrames + " of " +
+                        offeredFrames + " frames");
+            }
+            return false;
+        }
+        System.arraycopy(nv21, 0, frame.data, 0, frameSize);
+        frame.timeUs = timeUs;
+        pendingFrames.add(frame);
+        handler.post(feed);
+        return true;
+    }
+
+    /**
+     * Encode frames queued so far, then finish the MP4 and release the encoder.
+     */
+    public void stop() {
+        stopping = true;
+        handler.post(feed);
+    }
+
+    private void feedEncoder() {
+        if (finished || codec == null) return;
+        Frame frame;
+        while (!freeInputs.isEmpty() && (frame = pendingFrames.poll()) != null) {
+            queueFrame(freeInputs.poll(), frame);
+            freeFrames.add(frame);
+        }
+        if (stopping && !eosQueued && pendingFrames.isEmpty() && !freeInputs.isEmpty()) {
+            codec.queueInputBuffer(freeInputs.poll(), 0, 0, lastTimeUs + 1,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            eosQueued = true;
+        }
+    }
+
+    private void queueFrame(int index, Frame frame) {
+        Image image = codec.getInputImage(index);
+        if (image == null) {
+            // No flexible YUV input on this codec, drop the frame but keep the buffer.
+            freeInputs.push(index);
+            return;
+        }
+        VideoUtils.copyNV21ToImage(frame.data, width, height, image);
+        long timeUs = frame.timeUs > lastTimeUs ? frame.timeUs : lastTimeUs + 1;
+        lastTimeUs = timeUs;
+        codec.queueInputBuffer(index, 0, frameSize, timeUs, 0);
+    }
+
+    private void writeOutput(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        // Codec config goes to the muxer through the output format.
+        boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        if (!config && info.size > 0 && track >= 0) {
+            ByteBuffer buffer = codec.getOutputBuffer(index);
+            if (buffer != null) {
+                buffer.position(info.offset);
+                buffer.limit(info.offset + info.size);
+                muxer.writeSampleData(track, buffer, info);
+                ++writtenFrames;
+            }
+        }
+        codec.releaseOutputBuffer(index, false);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (finished) return;
+        finished = true;
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "finish - codec already stopped");
+            }
+            codec.release();
+        }
+        if (muxer != null) {
+            try {
+                if (track >= 0) muxer.stop();
+            } catch (IllegalStateException e) {
+                // Muxer refuses to stop without samples, the file is unusable anyway.
+                Log.w(TAG, "finish - muxer stop failed", e);
+            }
+            muxer.release();
+        }
+        pendingFrames.clear();
+        DecodeExecutor.release(handler);
+        Log.i(TAG, "Recorded " + writtenFrames + " frames, dropped " + droppedFrames +
+                " of " + offeredFrames + " to " + outputFile.getAbsolutePath());
+    }
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (finished) return;
+            freeInputs.add(index);
+            feedEncoder();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if (finished) return;
+            writeOutput(codec, index, info);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "onError - CodecException", e);
+            stopping = true;
+            finish();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            Log.i(TAG, "onOutputFormatChanged: " + format);
+            if (track < 0) {
+                track = muxer.addTrack(format);
+                muxer.start();
+            }
+        }
+    };
+}
@@ -0,0 +1,207 @@
+package com.wrlus.virtcam.utils;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Allocation-free tracing of hook and frame paths. Every event is an id, a timestamp and
+ * two longs written into a preallocated ring of the calling thread, no string is built.
+ * Rings are printed to logcat by {@link #dump}, automatically after an error event, and
+ * events at or above {@link Config#traceLogcatLevel} also go to logcat right away. Warnings
+ * and errors repeat on every frame while something is broken, so they are printed at most
+ * once per interval and event with the count of the ones left out.
+ */
+public class TraceLog {
+    private static final String TAG = "TraceLog";
+    private static final int SLOT_LONGS = 4;
+    /**
+     * Keep rings of at most this many threads, rings of dead threads are dropped first.
+     */
+    private static final int MAX_RINGS = 64;
+    private static final long ERROR_DUMP_INTERVAL_NS = 10_000_000_000L;
+    private static final long WARN_LOGCAT_INTERVAL_NS = 1_000_000_000L;
+
+    public enum Event {
+        CAMERA2_CREATE_SESSION(Log.VERBOSE),
+        CAMERA2_ADD_TARGET(Log.VERBOSE),
+        CAMERA2_SET_REPEATING_REQUEST(Log.VERBOSE),
+        /**
+         * a: burst size.
+         */
+        CAMERA2_SET_REPEATING_BURST(Log.VERBOSE),
+        CAMERA2_CAPTURE_BURST(Log.VERBOSE),
+        CAMERA2_CAPTURE(Log.VERBOSE),
+        CAMERA2_CLOSE(Log.DEBUG),
+        CAMERA1_SET_PREVIEW_TEXTURE(Log.VERBOSE),
+        CAMERA1_SET_PREVIEW_DISPLAY(Log.VERBOSE),
+        CAMERA1_START_PREVIEW(Log.DEBUG),
+        CAMERA1_STOP_PREVIEW(Log.DEBUG),
+        CAMERA1_RELEASE(Log.DEBUG),
+        CAMERA1_SET_PREVIEW_CALLBACK(Log.VERBOSE),
+        CAMERA1_TAKE_PICTURE(Log.VERBOSE),
+        /**
+         * a: frame count of the session.
+         */
+        PREVIEW_FRAME_BEFORE(Log.VERBOSE),
+        PREVIEW_FRAME_AFTER(Log.VERBOSE),
+        /**
+         * a: 1 for video source, 0 otherwise.
+         */
+        PREVIEW_FRAME_REPLACE_FAILED(Log.ERROR),
+        /**
+         * a: frame index, b: decoded frame count.
+         */
+        SERVE_PREVIEW_FRAME(Log.VERBOSE),
+        /**
+         * a: frame index read back from the latency probe marker, b: latency in us.
+         */
+        PROBE_CONSUMED(Log.INFO),
+        /**
+         * a: expected frame index, b: frame index read back. Frames were dropped if b is
+         * larger, repeated if it is smaller.
+         */
+        PROBE_FRAME_GAP(Log.WARN),
+        ;
+
+        final int level;
+
+        Event(int level) {
+            this.level = level;
+        }
+    }
+
+    private static final Event[] EVENTS = Event.values();
+    private static final List<Ring> rings = new ArrayList<>();
+    private static volatile long lastErrorDumpNs = 0;
+    private static final AtomicLongArray lastLogcatNs = new AtomicLongArray(EVENTS.length);
+    private static final AtomicLongArray skippedLogcat = new AtomicLongArray(EVENTS.length);
+
+    private static final class Ring {
+        final Thread thread;
+        final String threadName;
+        final long[] slots;
+        final int capacity;
+        /**
+         * Total events written, only the owner thread writes.
+         */
+        volatile long written = 0;
+
+        Ring(Thread thread, int capacity) {
+            this.thread = thread;
+            this.threadName = thread.getName();
+            this.capacity = capacity;
+            this.slots = new long[capacity * SLOT_LONGS];
+        }
+
+        void put(Event event, long timeNs, long a, long b) {
+            long n = written;
+            int base = (int) (n % capacity) * SLOT_LONGS;
+            slots[base] = event.ordinal();
+            slots[base + 1] = timeNs;
+            slots[base + 2] = a;
+            slots[base + 3] = b;
+            written = n + 1;
+        }
+    }
+
+    private static final ThreadLocal<Ring> localRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(Thread.currentThread(), Math.max(16, Config.traceRingEvents));
+            synchronized (rings) {
+                if (rings.size() >= MAX_RINGS) {
+                    pruneRings();
+                }
+                rings.add(ring);
+            }
+            return ring;
+        }
+    };
+
+    public static void event(Event event) {
+        event(event, 0, 0);
+    }
+
+    public static void event(Event event, long a) {
+        event(event, a, 0);
+    }
+
+    public static void event(Event event, long a, long b) {
+        long timeNs = System.nanoTime();
+        localRing.get().put(event, timeNs, a, b);
+        if (event.level >= Config.traceLogcatLevel) {
+            if (event.level < Log.WARN) {
+                Log.println(event.level, TAG, event.name() + " " + a + " " + b);
+            } else {
+                printLimited(event, timeNs, a, b);
+            }
+        }
+        if (event.level >= Log.ERROR && timeNs - lastErrorDumpNs > ERROR_DUMP_INTERVAL_NS) {
+            lastErrorDumpNs = timeNs;
+            dump(event.name());
+        }
+    }
+
+    /**
+     * Print event unless it was printed less than an interval ago, then only count it.
+     */
+    private static void printLimited(Event event, long timeNs, long a, long b) {
+        int id = event.ordinal();
+        long lastNs = lastLogcatNs.get(id);
+        if ((lastNs != 0 && timeNs - lastNs < WARN_LOGCAT_INTERVAL_NS) ||
+                !lastLogcatNs.compareAndSet(id, lastNs, timeNs)) {
+            skippedLogcat.incrementAndGet(id);
+            return;
+        }
+        long skipped = skippedLogcat.getAndSet(id, 0);
+        Log.println(event.level, TAG, event.name() + " " + a + " " + b +
+                (skipped > 0 ? " (" + skipped + " more since last printed)" : ""));
+    }
+
+    /**
+     * Print events of all threads to logcat, oldest first per thread.
+     * Rings are read without stopping writers, the newest few events may be torn.
+     */
+    public static void dump(String reason) {
+        long nowNs = System.nanoTime();
+        List<Ring> snapshot;
+        synchronized (rings) {
+            snapshot = new ArrayList<>(rings);
+        }
+        Log.i(TAG, "Dump trace (" + reason + "), " + snapshot.size() + " threads");
+        for (Ring ring : snapshot) {
+            long written = ring.written;
+            long first = Math.max(0, written - ring.capacity);
+            if (written == 0) continue;
+            StringBuilder builder = new StringBuilder();
+            builder.append(ring.threadName).append(": ").append(written).append(" events");
+            Log.i(TAG, builder.toString());
+            for (long n = first; n < written; n++) {
+                int base = (int) (n % ring.capacity) * SLOT_LONGS;
+                int id = (int) ring.slots[base];
+                builder.setLength(0);
+                builder.append("  -").append((nowNs - ring.slots[base + 1]) / 1000).append("us ")
+                        .append(id >= 0 && id < EVENTS.length ? EVENTS[id].name() : "?")
+                        .append(' ').append(ring.slots[base + 2])
+                        .append(' ').append(ring.slots[base + 3]);
+                Log.i(TAG, builder.toString());
+            }
+        }
+    }
+
+    private static void pruneRings() {
+        Iterator<Ring> iterator = rings.iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().thread.isAlive()) {
+                iterator.remove();
+            }
+        }
+        if (rings.size() >= MAX_RINGS) {
+            rings.remove(0);
+        }
+    }
+}
@@ -5,192 +5,331 @@ import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.media.Image;
 import android.media.ImageWriter;
-import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaPlayer;
 import android.util.Log;
 import android.view.Surface;
 
-import androidx.annotation.NonNull;
-
 import com.polarxiong.videotoimages.OutputImageFormat;
 import com.polarxiong.videotoimages.VideoToFrames;
+import com.wrlus.virtcam.decode.DecodeExecutor;
+import com.wrlus.virtcam.decode.DecodeJob;
+import com.wrlus.virtcam.decode.DecodeJobRegistry;
+import com.wrlus.virtcam.decode.LoopingDecoder;
+import com.wrlus.virtcam.decode.LoopingPlayer;
+import com.wrlus.virtcam.decode.Playlist;
+import com.wrlus.virtcam.decode.SegmentedDecoder;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by wrlu on 2024/3/13.
  */
 public class VideoUtils {
+    private static final Pattern FRAME_SIZE_PATTERN = Pattern.compile("_(\\d+)x(\\d+)\\.yuv$");
+    /**
+     * camera3_jpeg_blob id, written behind JPEG data so ImageReader finds its size.
+     */
+    private static final short JPEG_BLOB_ID = 0x00ff;
     private static final String TAG = "VideoUtils";
-    private static final ConcurrentLinkedQueue<String> decodedFrames =
-            new ConcurrentLinkedQueue<>();
-    public enum DecodeStatus {
-        NOT_START,
-        DECODING,
-        FINISHED,
-    }
-    private static DecodeStatus decodeToFileStatus = DecodeStatus.NOT_START;
-
-    public static MediaPlayer playVideo(File videoFile, Surface surface) {
-        MediaPlayer mediaPlayer = new MediaPlayer();
-        mediaPlayer.setSurface(surface);
-        mediaPlayer.setVolume(0, 0);
-        mediaPlayer.setLooping(true);
-        mediaPlayer.setOnPreparedListener(
-                new MediaPlayer.OnPreparedListener() {
-                    @Override
-                    public void onPrepared(MediaPlayer mp) {
-                        mp.start();
-                    }
-                });
-        try {
-            mediaPlayer.setDataSource(videoFile.getAbsolutePath());
-            mediaPlayer.prepare();
-            return mediaPlayer;
-        } catch (IOException e) {
-            Log.e(TAG, "playVideo - IOException", e);
-        }
-        return null;
+
+    /**
+     * Play video to surface with MediaPlayer in a loop, see {@link LoopingPlayer}.
+     */
+    public static LoopingPlayer playVideo(File videoFile, Surface surface) {
+        return LoopingPlayer.start(videoFile, surface);
     }
 
-    public static MediaCodec decodeVideoToSurface(File videoFile, Surface surface) {
-        MediaExtractor extractor = new MediaExtractor();
-        try {
-            extractor.setDataSource(videoFile.toString());
-            int trackIndex = VideoToFrames.selectTrack(extractor);
-            extractor.selectTrack(trackIndex);
-            MediaFormat mediaFormat = extractor.getTrackFormat(trackIndex);
-            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
-            MediaCodec mediaCodec = MediaCodec
-                    .createDecoderByType(mediaFormat.getString(MediaFormat.KEY_MIME));
-            mediaCodec.setCallback(new MediaCodec.Callback() {
-                @Override
-                public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-                    ByteBuffer inputBuffer = codec.getInputBuffer(index);
-                    int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                    if (sampleSize > 0) {
-                        long presentationTimeUs = extractor.getSampleTime();
-                        codec.queueInputBuffer(index, 0, sampleSize, presentationTimeUs, 0);
-                        extractor.advance();
-                    } else {
-                        codec.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    }
-                }
+    /**
+     * Decode video to surface in a gapless loop, see {@link LoopingDecoder}.
+     */
+    public static LoopingDecoder decodeVideoToSurface(File videoFile, Surface surface) {
+        return LoopingDecoder.start(videoFile, surface);
+    }
 
-                @Override
-                public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM)!= 0) {
-                        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                    }
-                    codec.releaseOutputBuffer(index, true);
-                }
+    /**
+     * Decode playlist clips to surface one after another in a gapless loop.
+     */
+    public static LoopingDecoder decodeVideoToSurface(Playlist playlist, Surface surface) {
+        return LoopingDecoder.start(playlist, surface);
+    }
 
-                @Override
-                public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+    /**
+     * Decode playlist clips to surface at a forced rate, for high-speed sessions.
+     */
+    public static LoopingDecoder decodeVideoToSurface(Playlist playlist, Surface surface,
+                                                      int fps, int batchSize) {
+        return LoopingDecoder.start(playlist, surface, fps, batchSize);
+    }
 
+    /**
+     * Decode video to NV21 frame files, at most once per video no matter how many
+     * cameras or callbacks ask for it.
+     */
+    public static DecodeJob decodeVideoAndSaveNV21(File videoFile, File outputDir) {
+        return decodeVideoAndSaveNV21(videoFile, outputDir, 0, 0);
+    }
+
+    /**
+     * Directory for NV21 frames of a video at width x height, 0 for the video size. Named
+     * after the decode job, so decodes of the same video and size reuse one directory and
+     * no two of them share one.
+     */
+    public static File getDecodeDir(File baseFile, File videoFile, int width, int height) {
+        return getDecodeDir(baseFile,
+                DecodeJobRegistry.key(videoFile, getNV21Variant(width, height)));
+    }
+
+    private static File getDecodeDir(File baseFile, String key) {
+        return new File(baseFile, "files/decode_video_" + DecodeJobRegistry.hashKey(key));
+    }
+
+    /**
+     * Give up a job decoded into {@link #getDecodeDir}. Once nobody else uses it, its
+     * decode is cancelled and its frame files are deleted when the decoder is done.
+     */
+    public static void releaseDecodedFrames(File baseFile, DecodeJob job) {
+        if (!DecodeJobRegistry.release(job)) {
+            return;
+        }
+        File outputDir = getDecodeDir(baseFile, job.getKey());
+        job.cancel();
+        job.addListener(new DecodeJob.Listener() {
+            @Override
+            public void onDecodeJobFinished(DecodeJob finishedJob) {
+                // A new job of the same video and size decodes into the same directory.
+                if (DecodeJobRegistry.contains(finishedJob.getKey())) {
+                    return;
                 }
+                File[] frameFiles = outputDir.listFiles();
+                if (frameFiles != null) {
+                    for (File frameFile : frameFiles) {
+                        frameFile.delete();
+                    }
+                }
+                outputDir.delete();
+                Log.i(TAG, "Deleted decoded frames " + outputDir.getAbsolutePath());
+            }
+        });
+    }
 
-                @Override
-                public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+    private static String getNV21Variant(int width, int height) {
+        String variant = OutputImageFormat.NV21.toString();
+        if (width > 0) {
+            variant += "_" + width + "x" + height;
+        }
+        return variant;
+    }
 
+    /**
+     * Decode video to NV21 frame files of width x height, at most once per video and size.
+     * Frames are decimated while converting, 0 keeps the video size.
+     */
+    public static DecodeJob decodeVideoAndSaveNV21(File videoFile, File outputDir,
+                                                   int width, int height) {
+        DecodeJob job = DecodeJobRegistry.obtain(videoFile, getNV21Variant(width, height));
+        if (!job.tryStart()) {
+            return job;
+        }
+        // Create decoded video frame saved path, or clear frames left by an earlier process.
+        Log.w(TAG, "Create dir " + outputDir.getAbsolutePath() +
+                " result: " + outputDir.mkdir());
+        File[] staleFiles = outputDir.listFiles();
+        if (staleFiles != null) {
+            for (File staleFile : staleFiles) {
+                staleFile.delete();
+            }
+        }
+        if (Config.enableSegmentedDecode) {
+            DecodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Fall back to sequential decode if the video can not be segmented.
+                    if (!SegmentedDecoder.decode(videoFile, outputDir, job, width, height)) {
+                        decodeVideoSequential(videoFile, outputDir, job, width, height);
+                    }
                 }
             });
-            mediaCodec.configure(mediaFormat, surface, null, 0);
-            mediaCodec.start();
-            return mediaCodec;
-        } catch (IOException e) {
-            Log.e(TAG, "decodeVideoToSurface - IOException", e);
+        } else {
+            decodeVideoSequential(videoFile, outputDir, job, width, height);
         }
-        return null;
+        return job;
     }
 
-    public static void decodeVideoAndSaveNV21(File videoFile, File outputDir) {
-        if (decodeToFileStatus == DecodeStatus.NOT_START) {
-            decodeToFileStatus = DecodeStatus.DECODING;
-            // Create decoded video frame saved path.
-            Log.w(TAG, "Create dir " + outputDir.getAbsolutePath() +
-                    " result: " + outputDir.mkdir());
-            // Use VideoToFrames to decode video, will run in a handler thread.
-            VideoToFrames videoToFrames = new VideoToFrames();
-            videoToFrames.setSaveFrames(outputDir.getAbsolutePath(),
-                    OutputImageFormat.NV21);
-            videoToFrames.setCallback(new VideoToFrames.Callback() {
-                @Override
-                public void onDecodeFrameToFile(int index, String fileName) {
-                    decodedFrames.add(fileName);
+    private static void decodeVideoSequential(File videoFile, File outputDir, DecodeJob job,
+                                              int width, int height) {
+        // Use VideoToFrames to decode video, will run in the blocking decode pool.
+        List<String> decodedFrames = new ArrayList<>();
+        VideoToFrames videoToFrames = new VideoToFrames();
+        videoToFrames.setSaveFrames(outputDir.getAbsolutePath(),
+                OutputImageFormat.NV21);
+        videoToFrames.setOutputSize(width, height);
+        videoToFrames.setCallback(new VideoToFrames.Callback() {
+            @Override
+            public void onDecodeFrameToFile(int index, String fileName) {
+                decodedFrames.add(fileName);
+                if (job.isCancelled()) {
+                    videoToFrames.stopDecode();
                 }
+            }
 
-                @Override
-                public void onFinishDecode() {
-                    decodeToFileStatus = DecodeStatus.FINISHED;
-                    Log.i(TAG, "onFinishDecode: finish decode video: " +
-                            videoFile.getAbsolutePath() + ", to path: " +
-                            outputDir.getAbsolutePath());
+            @Override
+            public void onFinishDecode() {
+                if (job.isCancelled()) {
+                    job.fail();
+                    Log.i(TAG, "onFinishDecode: decode cancelled: " +
+                            videoFile.getAbsolutePath());
+                    return;
                 }
-            });
-            videoToFrames.decode(videoFile.getAbsolutePath());
-        }
+                job.finish(decodedFrames);
+                Log.i(TAG, "onFinishDecode: finish decode video: " +
+                        videoFile.getAbsolutePath() + ", to path: " +
+                        outputDir.getAbsolutePath());
+            }
+
+            @Override
+            public void onDecodeFailed(Exception e) {
+                job.fail();
+                Log.e(TAG, "onDecodeFailed: decode video failed: " +
+                        videoFile.getAbsolutePath(), e);
+            }
+        });
+        videoToFrames.decode(videoFile.getAbsolutePath(), DecodeExecutor.executor());
     }
 
-    public static byte[] getReplacedPreviewFrame() {
-        if (VideoUtils.getDecodeToFileStatus() == VideoUtils.DecodeStatus.FINISHED) {
-            String savedFrameFileName = VideoUtils.getDecodedFrames().poll();
-            // Looping play.
-            VideoUtils.getDecodedFrames().add(savedFrameFileName);
-            Log.w(TAG, "Serve replaced preview frame: " + savedFrameFileName);
-            return readFile(savedFrameFileName);
-        } else {
+    /**
+     * Get the NV21 data of a decoded frame, frame index wraps around for looping play.
+     */
+    public static byte[] getReplacedPreviewFrame(DecodeJob job, long frameIndex) {
+        String savedFrameFileName = getFrameFileName(job, frameIndex);
+        return savedFrameFileName == null ? null : readFile(savedFrameFileName);
+    }
+
+    /**
+     * Like {@link #getReplacedPreviewFrame} for every-frame callers, the frame is read into
+     * a pooled slot which the caller releases.
+     */
+    public static FramePool.Slot readReplacedPreviewFrame(DecodeJob job, long frameIndex) {
+        String savedFrameFileName = getFrameFileName(job, frameIndex);
+        return savedFrameFileName == null ? null : readFileToSlot(savedFrameFileName);
+    }
+
+    private static String getFrameFileName(DecodeJob job, long frameIndex) {
+        String[] frames = job.getFrames();
+        if (frames == null || frames.length == 0) {
             return null;
         }
+        TraceLog.event(TraceLog.Event.SERVE_PREVIEW_FRAME, frameIndex, frames.length);
+        return frames[(int) (frameIndex % frames.length)];
     }
 
-    public static byte[] rotateNV21(byte[] yuv, int width, int height, int rotation) {
-        if (rotation == 0) return yuv;
-        if (rotation % 90 != 0 || rotation < 0 || rotation > 270) {
-            throw new IllegalArgumentException("0 <= rotation < 360, rotation % 90 == 0");
+    /**
+     * Width and height of a decoded frame file, from its "_WxH.yuv" suffix.
+     *
+     * @return false if file name has no size.
+     */
+    public static boolean parseFrameSize(String fileName, int[] size) {
+        Matcher matcher = FRAME_SIZE_PATTERN.matcher(fileName);
+        if (!matcher.find()) {
+            return false;
         }
+        size[0] = Integer.parseInt(matcher.group(1));
+        size[1] = Integer.parseInt(matcher.group(2));
+        return true;
+    }
 
-        final byte[]  output    = new byte[yuv.length];
-        final int     frameSize = width * height;
-        final boolean swap      = rotation % 180 != 0;
-        final boolean xflip     = rotation % 270 != 0;
-        final boolean yflip     = rotation >= 180;
-
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                final int yIn = j * width + i;
-                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
-                final int vIn = uIn       + 1;
-
-                final int wOut     = swap  ? height              : width;
-                final int hOut     = swap  ? width               : height;
-                final int iSwapped = swap  ? j                   : i;
-                final int jSwapped = swap  ? i                   : j;
-                final int iOut     = xflip ? wOut - iSwapped - 1 : iSwapped;
-                final int jOut     = yflip ? hOut - jSwapped - 1 : jSwapped;
-
-                final int yOut = jOut * wOut + iOut;
-                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
-                final int vOut = uOut + 1;
-
-                output[yOut] = (byte)(0xff & yuv[yIn]);
-                output[uOut] = (byte)(0xff & yuv[uIn]);
-                output[vOut] = (byte)(0xff & yuv[vIn]);
+    /**
+     * Width and height of the video track of a file.
+     *
+     * @return false if the file has no readable video track.
+     */
+    public static boolean getVideoSize(File videoFile, int[] size) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(videoFile.getAbsolutePath());
+            int trackIndex = VideoToFrames.selectTrack(extractor);
+            if (trackIndex < 0) {
+                return false;
+            }
+            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            size[0] = format.getInteger(MediaFormat.KEY_WIDTH);
+            size[1] = format.getInteger(MediaFormat.KEY_HEIGHT);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "getVideoSize - IOException", e);
+            return false;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Copy JPEG data into a JPEG (BLOB) image, with the blob trailer at the end of the
+     * buffer like camera HALs write it.
+     *
+     * @return false if the image buffer is too small.
+     */
+    public static boolean copyJpegToImage(byte[] jpeg, Image image) {
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+        int trailerSize = 8;
+        if (buffer.capacity() < jpeg.length + trailerSize) {
+            return false;
+        }
+        buffer.clear();
+        buffer.put(jpeg);
+        ByteBuffer trailer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        trailer.position(buffer.capacity() - trailerSize);
+        trailer.putShort(JPEG_BLOB_ID);
+        trailer.putShort((short) 0);
+        trailer.putInt(jpeg.length);
+        return true;
+    }
+
+    /**
+     * Copy a NV21 frame into a YUV_420_888 image, honoring plane row and pixel strides.
+     */
+    public static void copyNV21ToImage(byte[] nv21, int width, int height, Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        if (yRowStride == width) {
+            yBuffer.put(nv21, 0, width * height);
+        } else {
+            for (int row = 0; row < height; row++) {
+                yBuffer.position(row * yRowStride);
+                yBuffer.put(nv21, row * width, width);
+            }
+        }
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int uRowStride = planes[1].getRowStride();
+        int uPixelStride = planes[1].getPixelStride();
+        int vRowStride = planes[2].getRowStride();
+        int vPixelStride = planes[2].getPixelStride();
+        final int frameSize = width * height;
+        for (int row = 0; row < height / 2; row++) {
+            int src = frameSize + row * width;
+            int uDst = row * uRowStride;
+            int vDst = row * vRowStride;
+            for (int col = 0; col < width / 2; col++) {
+                vBuffer.put(vDst, nv21[src++]);
+                uBuffer.put(uDst, nv21[src++]);
+                uDst += uPixelStride;
+                vDst += vPixelStride;
             }
         }
-        return output;
     }
 
     public static void savePreviewFrameImage(byte[] data, int width, int height,
@@ -228,11 +367,23 @@ public class VideoUtils {
         return null;
     }
 
-    public static DecodeStatus getDecodeToFileStatus() {
-        return decodeToFileStatus;
-    }
-
-    public static ConcurrentLinkedQueue<String> getDecodedFrames() {
-        return decodedFrames;
+    private static FramePool.Slot readFileToSlot(String filePath) {
+        int size = (int) new File(filePath).length();
+        if (size <= 0) {
+            Log.e(TAG, "readFileToSlot: missing or empty " + filePath);
+            return null;
+        }
+        FramePool.Slot slot = FramePool.acquire(size);
+        try (FileInputStream fis = new FileInputStream(filePath)) {
+            int readSize = fis.read(slot.array());
+            if (readSize != size) {
+                Log.w(TAG, "readFileToSlot: readSize != size");
+            }
+            return slot;
+        } catch (IOException e) {
+            Log.e(TAG, "readFileToSlot - IOException", e);
+        }
+        slot.release();
+        return null;
     }
 }
@@ -0,0 +1,137 @@
+package com.wrlus.virtcam.utils;
+
+/**
+ * NV21 conversions without Android dependencies, shared by hooks, sources and the replay
+ * harness.
+ */
+public class YuvUtils {
+    /**
+     * Side of the square blocks rotated at once, so reads and writes both stay in cache.
+     */
+    private static final int ROTATE_TILE = 32;
+
+    public static byte[] rotateNV21(byte[] yuv, int width, int height, int rotation) {
+        if (rotation == 0) return yuv;
+        return rotateNV21(yuv, width, height, rotation, new byte[yuv.length]);
+    }
+
+    /**
+     * Rotate into output of at least the frame size, e.g. a pooled frame slot.
+     */
+    public static byte[] rotateNV21(byte[] yuv, int width, int height, int rotation,
+                                    byte[] output) {
+        if (rotation % 90 != 0 || rotation < 0 || rotation > 270) {
+            throw new IllegalArgumentException("0 <= rotation < 360, rotation % 90 == 0");
+        }
+        if (rotation == 0) {
+            System.arraycopy(yuv, 0, output, 0, width * height * 3 / 2);
+            return output;
+        }
+        if (rotation == 90 && (width & 1) == 0 && (height & 1) == 0) {
+            rotateNV21By90(yuv, width, height, output);
+            return output;
+        }
+
+        final int     frameSize = width * height;
+        final boolean swap      = rotation % 180 != 0;
+        final boolean xflip     = rotation % 270 != 0;
+        final boolean yflip     = rotation >= 180;
+
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                final int yIn = j * width + i;
+                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
+                final int vIn = uIn       + 1;
+
+                final int wOut     = swap  ? height              : width;
+                final int hOut     = swap  ? width               : height;
+                final int iSwapped = swap  ? j                   : i;
+                final int jSwapped = swap  ? i                   : j;
+                final int iOut     = xflip ? wOut - iSwapped - 1 : iSwapped;
+                final int jOut     = yflip ? hOut - jSwapped - 1 : jSwapped;
+
+                final int yOut = jOut * wOut + iOut;
+                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
+                final int vOut = uOut + 1;
+
+                output[yOut] = (byte)(0xff & yuv[yIn]);
+                output[uOut] = (byte)(0xff & yuv[uIn]);
+                output[vOut] = (byte)(0xff & yuv[vIn]);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Every preview frame takes this path. Same output as the generic loop, but the Y plane
+     * goes tile by tile and every chroma pair is written once instead of four times.
+     */
+    private static void rotateNV21By90(byte[] yuv, int width, int height, byte[] output) {
+        final int frameSize = width * height;
+        for (int j0 = 0; j0 < height; j0 += ROTATE_TILE) {
+            final int jEnd = Math.min(j0 + ROTATE_TILE, height);
+            for (int i0 = 0; i0 < width; i0 += ROTATE_TILE) {
+                final int iEnd = Math.min(i0 + ROTATE_TILE, width);
+                for (int i = i0; i < iEnd; i++) {
+                    // Input column i becomes output row i, read bottom up.
+                    int yOut = i * height + height - 1 - j0;
+                    for (int yIn = j0 * width + i; yIn < jEnd * width; yIn += width) {
+                        output[yOut--] = yuv[yIn];
+                    }
+                }
+            }
+        }
+        final int chromaWidth = width / 2;
+        final int chromaHeight = height / 2;
+        for (int ci = 0; ci < chromaWidth; ci++) {
+            int uvOut = frameSize + ci * height + height - 2;
+            int uvIn = frameSize + 2 * ci;
+            for (int cj = 0; cj < chromaHeight; cj++) {
+                output[uvOut] = yuv[uvIn];
+                output[uvOut + 1] = yuv[uvIn + 1];
+                uvOut -= 2;
+                uvIn += width;
+            }
+        }
+    }
+
+    public static void argbToNV21(int[] argb, int width, int height, byte[] nv21) {
+        final int frameSize = width * height;
+        int yIndex = 0;
+        for (int j = 0; j < height; j++) {
+            int uvIndex = frameSize + (j >> 1) * width;
+            for (int i = 0; i < width; i++) {
+                final int color = argb[yIndex];
+                final int r = (color >> 16) & 0xff;
+                final int g = (color >> 8) & 0xff;
+                final int b = color & 0xff;
+                // BT.601 limited range.
+                nv21[yIndex++] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                if ((j & 1) == 0 && (i & 1) == 0) {
+                    nv21[uvIndex++] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                    nv21[uvIndex++] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                }
+            }
+        }
+    }
+
+    public static void nv21ToArgb(byte[] nv21, int width, int height, int[] argb) {
+        final int frameSize = width * height;
+        for (int j = 0; j < height; j++) {
+            final int uvRow = frameSize + (j >> 1) * width;
+            for (int i = 0; i < width; i++) {
+                final int c = (0xff & nv21[j * width + i]) - 16;
+                final int e = (0xff & nv21[uvRow + (i & ~1)]) - 128;
+                final int d = (0xff & nv21[uvRow + (i & ~1) + 1]) - 128;
+                final int r = clamp((298 * c + 409 * e + 128) >> 8);
+                final int g = clamp((298 * c - 100 * d - 208 * e + 128) >> 8);
+                final int b = clamp((298 * c + 516 * d + 128) >> 8);
+                argb[j * width + i] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,33 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Replay stand-in, holds no samples. Tests subclass it to serve their own.
+ */
+public class MediaExtractor {
+    public static final int SAMPLE_FLAG_SYNC = 1;
+
+    /**
+     * Write the current sample into buffer at offset.
+     *
+     * @return sample size, or -1 if there are no more samples.
+     */
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return -1;
+    }
+
+    public long getSampleTime() {
+        return -1;
+    }
+
+    public int getSampleFlags() {
+        return 0;
+    }
+
+    public boolean advance() {
+        return false;
+    }
+
+    public void release() {}
+}
@@ -0,0 +1,31 @@
+package android.media;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replay stand-in, integer keys only.
+ */
+public final class MediaFormat {
+    public static final String MIMETYPE_VIDEO_AVC = "video/avc";
+    public static final String MIMETYPE_VIDEO_HEVC = "video/hevc";
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+
+    private final Map<String, Integer> values = new HashMap<>();
+
+    public boolean containsKey(String name) {
+        return values.containsKey(name);
+    }
+
+    public int getInteger(String name) {
+        Integer value = values.get(name);
+        if (value == null) {
+            throw new NullPointerException(name);
+        }
+        return value;
+    }
+
+    public void setInteger(String name, int value) {
+        values.put(name, value);
+    }
+}
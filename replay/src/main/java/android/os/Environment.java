@@ -0,0 +1,14 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * Replay stand-in, external storage is the JVM temp directory.
+ */
+public final class Environment {
+    private Environment() {}
+
+    public static File getExternalStorageDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * Replay stand-in, only constants read by Config.
+ */
+public final class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_DISPLAY = -4;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private Process() {}
+}
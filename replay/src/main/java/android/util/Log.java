@@ -0,0 +1,65 @@
+package android.util;
+
+/**
+ * Replay stand-in, prints to stderr at or above level of system property "replay.log",
+ * WARN by default.
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    private static final String[] LEVEL_NAMES = {"?", "?", "V", "D", "I", "W", "E", "A"};
+    private static final int minLevel = Integer.getInteger("replay.log", WARN);
+
+    private Log() {}
+
+    public static int println(int priority, String tag, String msg) {
+        if (priority < minLevel) {
+            return 0;
+        }
+        String level = priority >= 0 && priority < LEVEL_NAMES.length ?
+                LEVEL_NAMES[priority] : "?";
+        System.err.println(level + "/" + tag + ": " + msg);
+        return msg.length();
+    }
+
+    private static int println(int priority, String tag, String msg, Throwable tr) {
+        int written = println(priority, tag, msg);
+        if (tr != null && priority >= minLevel) {
+            tr.printStackTrace();
+        }
+        return written;
+    }
+
+    public static int v(String tag, String msg) {
+        return println(VERBOSE, tag, msg);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(INFO, tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(WARN, tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(ERROR, tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(ERROR, tag, msg, tr);
+    }
+}
@@ -0,0 +1,159 @@
+package com.wrlus.virtcam.replay;
+
+import android.media.MediaFormat;
+
+import com.wrlus.virtcam.decode.DeliveryGovernor;
+import com.wrlus.virtcam.decode.SampleCache;
+import com.wrlus.virtcam.decode.SampleSelector;
+import com.wrlus.virtcam.source.FrameSource;
+import com.wrlus.virtcam.utils.TraceLog;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Stand-in for a Camera2 repeating request into an app ImageReader. The producer paces
+ * frames like LoopingDecoder: it reads H.264 samples from a {@link SampleCache}, skips the
+ * ones its {@link SampleSelector} leaves out and frames the consumer can not take as told by
+ * a {@link DeliveryGovernor}, and renders the rest into free images. A consumer thread
+ * acquires images and holds each one for a while, like an app's analysis pipeline.
+ */
+class Camera2Replay {
+    private static final class Image {
+        final byte[] data;
+        long dueNs;
+
+        Image(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private static final Image END_OF_SESSION = new Image(0);
+
+    private final FrameSource source;
+    private final SampleCache samples;
+    private final int maxImages;
+    private final long consumerWorkNs;
+    private final ByteBuffer inputBuffer;
+    private final SampleSelector sampleSelector = new SampleSelector();
+    private int sampleIndex = 0;
+
+    Camera2Replay(FrameSource source, SampleCache samples, int maxImages, long consumerWorkNs) {
+        this.source = source;
+        this.samples = samples;
+        this.maxImages = maxImages;
+        this.consumerWorkNs = consumerWorkNs;
+        int maxSampleSize = 0;
+        for (int i = 0; i < samples.getSampleCount(); i++) {
+            maxSampleSize = Math.max(maxSampleSize, samples.getSampleSize(i));
+        }
+        this.inputBuffer = ByteBuffer.allocateDirect(Math.max(maxSampleSize, 1));
+    }
+
+    /**
+     * Create a session with one ImageReader output of width x height, run its repeating
+     * request at fps for durationNs and close it again.
+     *
+     * @param producerStats time from due to rendered (or skipped) per frame.
+     * @param consumerStats time from due to acquired per delivered frame.
+     */
+    void runSession(int width, int height, int fps, long durationNs,
+                    FrameStats producerStats, FrameStats consumerStats)
+            throws InterruptedException {
+        TraceLog.event(TraceLog.Event.CAMERA2_CREATE_SESSION, width, height);
+        source.prepare(width, height);
+        long periodNs = 1_000_000_000L / fps;
+        DeliveryGovernor governor = new DeliveryGovernor("Replay " + width + "x" + height);
+        governor.setFrameDurationUs(periodNs / 1000);
+        sampleSelector.setStream(MediaFormat.MIMETYPE_VIDEO_AVC, -1);
+        ArrayBlockingQueue<Image> free = new ArrayBlockingQueue<>(maxImages);
+        ArrayBlockingQueue<Image> ready = new ArrayBlockingQueue<>(maxImages + 1);
+        for (int i = 0; i < maxImages; i++) {
+            free.add(new Image(width * height * 3 / 2));
+        }
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume(governor, free, ready, periodNs, consumerStats);
+            }
+        }, "ReplayConsumer");
+        consumer.start();
+
+        TraceLog.event(TraceLog.Event.CAMERA2_SET_REPEATING_REQUEST, fps);
+        long frames = durationNs / periodNs;
+        long startNs = System.nanoTime() + periodNs;
+        for (long n = 0; n < frames; n++) {
+            long dueNs = startNs + n * periodNs;
+            ReplayHarness.sleepUntil(dueNs);
+            if (System.nanoTime() > dueNs + periodNs) {
+                producerStats.late();
+                continue;
+            }
+            producerStats.beginAllocation();
+            produce(governor, free, ready, dueNs, periodNs, producerStats);
+            producerStats.endAllocation();
+            producerStats.record(dueNs, dueNs + periodNs, System.nanoTime());
+        }
+        ready.put(END_OF_SESSION);
+        consumer.join();
+        TraceLog.event(TraceLog.Event.CAMERA2_CLOSE);
+    }
+
+    private void produce(DeliveryGovernor governor, ArrayBlockingQueue<Image> free,
+                         ArrayBlockingQueue<Image> ready, long dueNs, long periodNs,
+                         FrameStats stats) {
+        int sampleSize = samples.readSample(sampleIndex, inputBuffer);
+        if (sampleSize < 0) {
+            // End of stream, loop back like the gapless decoder does.
+            sampleIndex = samples.findSyncSample(0);
+            sampleSize = samples.readSample(sampleIndex, inputBuffer);
+        }
+        if (samples.isSyncSample(sampleIndex)) {
+            sampleSelector.startGop(samples, sampleIndex, periodNs / 1000,
+                    governor.getDecodeInterval());
+        }
+        boolean decode = sampleSelector.shouldDecode(inputBuffer, sampleSize,
+                samples.getSampleTimeUs(sampleIndex), governor);
+        ++sampleIndex;
+        if (!decode) {
+            stats.drop();
+            return;
+        }
+        byte[] frame = source.nextFrame();
+        if (frame == null || !governor.shouldDeliver(System.nanoTime())) {
+            stats.drop();
+            return;
+        }
+        Image image = free.poll();
+        if (image == null) {
+            // Consumer holds all images, the frame would block the producer.
+            stats.drop();
+            return;
+        }
+        System.arraycopy(frame, 0, image.data, 0, Math.min(frame.length, image.data.length));
+        image.dueNs = dueNs;
+        ready.add(image);
+    }
+
+    private void consume(DeliveryGovernor governor, ArrayBlockingQueue<Image> free,
+                         ArrayBlockingQueue<Image> ready, long periodNs, FrameStats stats) {
+        try {
+            while (true) {
+                Image image = ready.take();
+                if (image == END_OF_SESSION) {
+                    return;
+                }
+                long acquireNs = System.nanoTime();
+                stats.beginAllocation();
+                governor.onConsumerAcquire(maxImages, acquireNs);
+                stats.endAllocation();
+                stats.record(image.dueNs, image.dueNs + periodNs, acquireNs);
+                ReplayHarness.sleepUntil(acquireNs + consumerWorkNs);
+                governor.onConsumerRelease(System.nanoTime());
+                free.add(image);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
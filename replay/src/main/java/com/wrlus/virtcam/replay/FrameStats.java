@@ -0,0 +1,111 @@
+package com.wrlus.virtcam.replay;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Per-frame latency, allocation and deadline bookkeeping of one scenario, written by one
+ * thread only. Latencies go to a preallocated array so recording does not allocate itself.
+ */
+class FrameStats {
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final String name;
+    private final long[] latenciesNs;
+    private int count = 0;
+    private long dropped = 0;
+    private long missedDeadlines = 0;
+    private long lateFrames = 0;
+    private long allocatedBytes = 0;
+    private long allocationStart = -1;
+
+    FrameStats(String name, int maxFrames) {
+        this.name = name;
+        this.latenciesNs = new long[maxFrames];
+    }
+
+    /**
+     * Bytes allocated by the calling thread so far, -1 if the JVM can not tell.
+     */
+    static long threadAllocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    void beginAllocation() {
+        allocationStart = threadAllocatedBytes();
+    }
+
+    void endAllocation() {
+        if (allocationStart >= 0) {
+            allocatedBytes += threadAllocatedBytes() - allocationStart;
+            allocationStart = -1;
+        }
+    }
+
+    /**
+     * @param dueNs when the frame was due, latency counts from there.
+     * @param deadlineNs when the frame had to be done, usually the next frame's due time.
+     */
+    void record(long dueNs, long deadlineNs, long doneNs) {
+        if (count < latenciesNs.length) {
+            latenciesNs[count++] = doneNs - dueNs;
+        }
+        if (doneNs > deadlineNs) {
+            ++missedDeadlines;
+        }
+    }
+
+    /**
+     * Frame which was due but intentionally not delivered, e.g. skipped by backpressure.
+     */
+    void drop() {
+        ++dropped;
+    }
+
+    /**
+     * Frame which was not even started before its deadline and is skipped, like the camera
+     * HAL drops frames of a callback which falls behind. Counts as a missed deadline.
+     */
+    void late() {
+        ++lateFrames;
+        ++missedDeadlines;
+    }
+
+    int getFrameCount() {
+        return count;
+    }
+
+    long getMissedDeadlines() {
+        return missedDeadlines;
+    }
+
+    double getMissedRatio() {
+        long due = count + lateFrames;
+        return due == 0 ? 0 : (double) missedDeadlines / due;
+    }
+
+    String report() {
+        long[] sorted = Arrays.copyOf(latenciesNs, count);
+        Arrays.sort(sorted);
+        return String.format("%-36s frames %6d  p50 %8.3f  p90 %8.3f  p99 %8.3f  max %8.3f ms" +
+                        "  alloc %8s B/frame  missed %5d  dropped %5d",
+                name, count, percentileMs(sorted, 50), percentileMs(sorted, 90),
+                percentileMs(sorted, 99), count == 0 ? 0 : sorted[count - 1] / 1e6,
+                threadAllocatedBytes() < 0 ? "n/a" :
+                        String.valueOf(count == 0 ? 0 : allocatedBytes / count),
+                missedDeadlines, dropped);
+    }
+
+    private static double percentileMs(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))] / 1e6;
+    }
+}
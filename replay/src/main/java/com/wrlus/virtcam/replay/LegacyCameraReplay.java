@@ -0,0 +1,136 @@
+package com.wrlus.virtcam.replay;
+
+import com.wrlus.virtcam.hook.PreviewFrameReplacer;
+import com.wrlus.virtcam.source.FrameSource;
+import com.wrlus.virtcam.utils.FramePool;
+import com.wrlus.virtcam.utils.TraceLog;
+
+/**
+ * Stand-in for android.hardware.Camera driven through the calls apps make: open,
+ * setPreviewCallback, startPreview, then onPreviewFrame at a fixed rate until stopPreview.
+ * Every frame goes through the {@link PreviewFrameReplacer} of the onPreviewFrame hook of
+ * LegacyCameraHooker before the app callback sees it.
+ */
+class LegacyCameraReplay {
+    interface PreviewCallback {
+        void onPreviewFrame(byte[] data, LegacyCameraReplay camera);
+    }
+
+    private final FrameSource source;
+    /**
+     * Serve frames like decoded video, portrait frames rotated to the preview,
+     * otherwise serve them at preview size as still image and pattern sources do.
+     */
+    private final boolean videoSource;
+    private PreviewCallback callback;
+    private int previewWidth = 640;
+    private int previewHeight = 480;
+    private boolean previewing = false;
+    private PreviewFrameReplacer frameReplacer = new PreviewFrameReplacer(false);
+
+    private LegacyCameraReplay(FrameSource source, boolean videoSource) {
+        this.source = source;
+        this.videoSource = videoSource;
+    }
+
+    static LegacyCameraReplay open(FrameSource source, boolean videoSource) {
+        return new LegacyCameraReplay(source, videoSource);
+    }
+
+    void setPreviewCallback(PreviewCallback callback) {
+        TraceLog.event(TraceLog.Event.CAMERA1_SET_PREVIEW_CALLBACK);
+        this.callback = callback;
+    }
+
+    void setPreviewSize(int width, int height) {
+        if (previewing) {
+            throw new IllegalStateException("Preview size can not change while previewing");
+        }
+        previewWidth = width;
+        previewHeight = height;
+    }
+
+    /**
+     * Stamp the latency probe marker into served frames, like Config.enableLatencyProbe.
+     */
+    void setLatencyProbe(boolean enable) {
+        frameReplacer = new PreviewFrameReplacer(enable);
+    }
+
+    int getPreviewWidth() {
+        return previewWidth;
+    }
+
+    int getPreviewHeight() {
+        return previewHeight;
+    }
+
+    void startPreview() {
+        TraceLog.event(TraceLog.Event.CAMERA1_START_PREVIEW, previewWidth, previewHeight);
+        if (videoSource) {
+            // Decoded video is portrait, rotated by 90 degrees into the preview.
+            source.prepare(previewHeight, previewWidth);
+        } else {
+            source.prepare(previewWidth, previewHeight);
+        }
+        previewing = true;
+    }
+
+    /**
+     * Deliver preview frames at fps for durationNs like the camera HAL would, each frame is
+     * due at a fixed time and has to be done before the next one is due.
+     */
+    void runPreview(int fps, long durationNs, FrameStats stats) {
+        if (!previewing) {
+            throw new IllegalStateException("Preview is not started");
+        }
+        long periodNs = 1_000_000_000L / fps;
+        long frames = durationNs / periodNs;
+        long startNs = System.nanoTime() + periodNs;
+        for (long n = 0; n < frames; n++) {
+            long dueNs = startNs + n * periodNs;
+            ReplayHarness.sleepUntil(dueNs);
+            if (System.nanoTime() > dueNs + periodNs) {
+                stats.late();
+                continue;
+            }
+            // Camera fills a new array per frame for setPreviewCallback, not our allocation.
+            byte[] cameraData = new byte[previewWidth * previewHeight * 3 / 2];
+            stats.beginAllocation();
+            byte[] data = replaceFrame(n, cameraData);
+            if (callback != null) {
+                callback.onPreviewFrame(data, this);
+            }
+            TraceLog.event(TraceLog.Event.PREVIEW_FRAME_AFTER, n);
+            stats.endAllocation();
+            stats.record(dueNs, dueNs + periodNs, System.nanoTime());
+        }
+    }
+
+    void stopPreview() {
+        TraceLog.event(TraceLog.Event.CAMERA1_STOP_PREVIEW);
+        previewing = false;
+    }
+
+    void release() {
+        TraceLog.event(TraceLog.Event.CAMERA1_RELEASE);
+        previewing = false;
+        frameReplacer.releaseCallbackFrames();
+        FramePool.trim();
+        source.release();
+    }
+
+    /**
+     * What the onPreviewFrame hook does with the frame before the app gets it.
+     */
+    private byte[] replaceFrame(long frameCount, byte[] cameraData) {
+        TraceLog.event(TraceLog.Event.PREVIEW_FRAME_BEFORE, frameCount);
+        byte[] newData = source.nextFrame();
+        if (videoSource) {
+            return frameReplacer.replaceWithVideoFrame(cameraData, newData,
+                    newData != null ? newData.length : 0, previewWidth, previewHeight);
+        }
+        return frameReplacer.replaceWithSourceFrame(cameraData, newData,
+                previewWidth, previewHeight);
+    }
+}
@@ -0,0 +1,167 @@
+package com.wrlus.virtcam.replay;
+
+import com.wrlus.virtcam.source.LatencyProbe;
+import com.wrlus.virtcam.source.YuvFileIndex;
+import com.wrlus.virtcam.source.YuvFileSource;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Read latency probe markers back from frames dumped by the legacy camera hook (a directory
+ * of numbered JPEGs) or from a recording converted to Y4M or raw YUV, and report frames
+ * without marker, dropped and repeated frames and how serve times line up with the frames.
+ * <p>
+ * For recordings with a frame rate, the offset of each frame's serve time from its place
+ * in the recording is reported relative to the smallest one, which is the latency jitter
+ * between serving and recording.
+ * <p>
+ * Usage: ProbeScan dump_dir | recording.y4m [--verbose]
+ */
+public class ProbeScan {
+    private final LatencyProbe.Marker marker = new LatencyProbe.Marker();
+    private final boolean verbose;
+    private long frames = 0;
+    private long decoded = 0;
+    private long dropped = 0;
+    private long repeated = 0;
+    private long lastFrameIndex = -1;
+    private long lastTimeUs = -1;
+    private long[] offsetsUs = new long[1024];
+    private int offsetCount = 0;
+
+    private ProbeScan(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: ProbeScan dump_dir | recording.y4m [--verbose]");
+            System.exit(2);
+        }
+        File input = new File(args[0]);
+        ProbeScan scan = new ProbeScan(args.length > 1 && "--verbose".equals(args[1]));
+        if (input.isDirectory()) {
+            scan.scanDumps(input);
+        } else {
+            scan.scanRecording(input);
+        }
+        scan.report();
+    }
+
+    private void scanDumps(File dir) throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".jpg"));
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        // Dumps are named by frame count.
+        Arrays.sort(files, Comparator.comparingLong(ProbeScan::dumpNumber));
+        byte[] luma = null;
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                continue;
+            }
+            int width = image.getWidth();
+            int height = image.getHeight();
+            if (luma == null || luma.length != width * height) {
+                luma = new byte[width * height];
+            }
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int rgb = image.getRGB(x, y);
+                    int r = (rgb >> 16) & 0xff;
+                    int g = (rgb >> 8) & 0xff;
+                    int b = rgb & 0xff;
+                    luma[y * width + x] = (byte) ((299 * r + 587 * g + 114 * b) / 1000);
+                }
+            }
+            onFrame(file.getName(), LatencyProbe.decode(luma, width, width, height, marker),
+                    -1);
+        }
+    }
+
+    private void scanRecording(File file) throws IOException {
+        YuvFileSource source = new YuvFileSource(file);
+        // Any size opens the file, frames are read from the mapping in its own size.
+        source.prepare(2, 2);
+        YuvFileIndex index = source.getIndex();
+        if (index == null) {
+            throw new IOException("Cannot open " + file);
+        }
+        long frameDurationUs = index.getFrameDurationUs();
+        for (int i = 0; i < index.getFrameCount(); i++) {
+            // Luma comes first in every supported layout.
+            boolean found = LatencyProbe.decode(source.getFrameBuffer(i), index.getWidth(),
+                    index.getWidth(), index.getHeight(), marker);
+            onFrame("frame " + i, found, i * frameDurationUs);
+        }
+        source.release();
+    }
+
+    /**
+     * @param positionUs time of the frame in the recording, -1 if unknown.
+     */
+    private void onFrame(String name, boolean found, long positionUs) {
+        ++frames;
+        if (!found) {
+            if (verbose) System.out.println(name + ": no marker");
+            return;
+        }
+        ++decoded;
+        String note = "";
+        if (lastFrameIndex >= 0) {
+            long gap = marker.frameIndex - lastFrameIndex;
+            if (gap > 1) {
+                dropped += gap - 1;
+                note = " dropped " + (gap - 1);
+            } else if (gap <= 0) {
+                ++repeated;
+                note = " repeated";
+            }
+        }
+        if (positionUs >= 0) {
+            if (offsetCount == offsetsUs.length) {
+                offsetsUs = Arrays.copyOf(offsetsUs, offsetCount * 2);
+            }
+            offsetsUs[offsetCount++] = positionUs - marker.timeUs;
+        }
+        if (verbose) {
+            System.out.println(name + ": frame " + marker.frameIndex + " served at " +
+                    marker.timeUs + " us" + (lastTimeUs >= 0 ?
+                    " (+" + (marker.timeUs - lastTimeUs) + " us)" : "") + note);
+        }
+        lastFrameIndex = marker.frameIndex;
+        lastTimeUs = marker.timeUs;
+    }
+
+    private void report() {
+        System.out.println(frames + " frames, " + decoded + " with marker, " + dropped +
+                " dropped, " + repeated + " repeated");
+        if (offsetCount > 1) {
+            long[] sorted = Arrays.copyOf(offsetsUs, offsetCount);
+            Arrays.sort(sorted);
+            long min = sorted[0];
+            System.out.println(String.format("relative latency p50 %.3f  p90 %.3f  p99 %.3f" +
+                            "  max %.3f ms",
+                    (sorted[offsetCount / 2] - min) / 1e3,
+                    (sorted[offsetCount * 9 / 10] - min) / 1e3,
+                    (sorted[Math.min(offsetCount - 1, offsetCount * 99 / 100)] - min) / 1e3,
+                    (sorted[offsetCount - 1] - min) / 1e3));
+        }
+    }
+
+    private static long dumpNumber(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('.')));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
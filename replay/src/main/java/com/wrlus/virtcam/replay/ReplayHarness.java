@@ -0,0 +1,271 @@
+package com.wrlus.virtcam.replay;
+
+import com.wrlus.virtcam.decode.SampleCache;
+import com.wrlus.virtcam.source.FrameSource;
+import com.wrlus.virtcam.source.LatencyProbe;
+import com.wrlus.virtcam.source.PatternSource;
+import com.wrlus.virtcam.source.YuvFileSource;
+import com.wrlus.virtcam.utils.TraceLog;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replay camera call sequences against the frame-serving, rotation, caching and pacing code
+ * of the module on a plain JVM, and report per-frame latency percentiles, allocated bytes
+ * per frame and missed deadlines. The hookers themselves need the Xposed runtime, so the
+ * stand-ins drive the per-frame code their hooks share.
+ * <p>
+ * Usage: ReplayHarness [--fps 30,60] [--seconds 5] [--sizes 640x480,1280x720]
+ * [--pattern MOVING_GRADIENT | --yuv file.y4m] [--max-images 4] [--consumer-ms 5]
+ * [--max-missed-percent 1] [--probe] [--dump-trace]
+ * <p>
+ * Exits with 1 if any scenario misses more deadlines than allowed, so it can gate a build.
+ * The default rates pass on a single core, 120 fps needs a quiet multi-core machine and is
+ * left to an explicit --fps.
+ */
+public class ReplayHarness {
+    private static final long WARM_UP_NS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Synthetic H.264 stream for the sample cache: 10 seconds, an IDR sample every 30
+     * samples, every other sample between them is not referenced.
+     */
+    private static final int SYNTHETIC_SAMPLES = 300;
+    private static final int SYNTHETIC_GOP = 30;
+    private static final int SYNTHETIC_SYNC_SIZE = 60 * 1024;
+    private static final int SYNTHETIC_SAMPLE_SIZE = 12 * 1024;
+
+    private int[] fpsList = {30, 60};
+    private long durationNs = TimeUnit.SECONDS.toNanos(5);
+    private final List<int[]> sizes = new ArrayList<>();
+    private PatternSource.Pattern pattern = PatternSource.Pattern.MOVING_GRADIENT;
+    private File yuvFile;
+    private int maxImages = 4;
+    private long consumerWorkNs = TimeUnit.MILLISECONDS.toNanos(5);
+    private double maxMissedPercent = 1;
+    private boolean dumpTrace = false;
+    /**
+     * Stamp latency probe markers into Camera1 frames and read them back in the callback.
+     */
+    private boolean probe = false;
+    private final LatencyProbe.Marker probeMarker = new LatencyProbe.Marker();
+    private long probeMisses = 0;
+    private final List<FrameStats> results = new ArrayList<>();
+    /**
+     * Written by the preview callback so the JIT can not drop reads of the frame.
+     */
+    private volatile int frameChecksum;
+
+    public static void main(String[] args) throws Exception {
+        ReplayHarness harness = new ReplayHarness();
+        try {
+            harness.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    static void sleepUntil(long dueNs) {
+        long remainingNs;
+        while ((remainingNs = dueNs - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remainingNs);
+        }
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--dump-trace".equals(arg)) {
+                dumpTrace = true;
+                continue;
+            }
+            if ("--probe".equals(arg)) {
+                probe = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--fps":
+                    String[] fpsValues = value.split(",");
+                    fpsList = new int[fpsValues.length];
+                    for (int j = 0; j < fpsValues.length; j++) {
+                        fpsList[j] = Integer.parseInt(fpsValues[j].trim());
+                        if (fpsList[j] <= 0) {
+                            throw new IllegalArgumentException("Bad fps: " + value);
+                        }
+                    }
+                    break;
+                case "--seconds":
+                    durationNs = (long) (Double.parseDouble(value) * 1e9);
+                    break;
+                case "--sizes":
+                    for (String size : value.split(",")) {
+                        sizes.add(parseSize(size.trim()));
+                    }
+                    break;
+                case "--pattern":
+                    pattern = PatternSource.Pattern.valueOf(value);
+                    break;
+                case "--yuv":
+                    yuvFile = new File(value);
+                    break;
+                case "--max-images":
+                    maxImages = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--consumer-ms":
+                    consumerWorkNs = (long) (Double.parseDouble(value) * 1e6);
+                    break;
+                case "--max-missed-percent":
+                    maxMissedPercent = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (sizes.isEmpty()) {
+            // Preview at the default size, reconfigure to 720p and back.
+            sizes.add(new int[]{640, 480});
+            sizes.add(new int[]{1280, 720});
+            sizes.add(new int[]{640, 480});
+        }
+    }
+
+    private static int[] parseSize(String size) {
+        String[] parts = size.split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Bad size: " + size);
+        }
+        int width = Integer.parseInt(parts[0]);
+        int height = Integer.parseInt(parts[1]);
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Bad size: " + size);
+        }
+        return new int[]{width, height};
+    }
+
+    private FrameSource openSource() {
+        return yuvFile != null ? new YuvFileSource(yuvFile) : new PatternSource(pattern);
+    }
+
+    private boolean run() throws InterruptedException {
+        System.out.println("Replay " + (yuvFile != null ? yuvFile.getPath() : pattern.name()) +
+                ", " + durationNs / 1_000_000 + " ms per configuration, " + maxImages +
+                " images, consumer " + consumerWorkNs / 1000 + " us");
+        SampleCache samples = createSyntheticSamples();
+        // Warm up the JIT on every path, results are discarded.
+        int[] first = sizes.get(0);
+        replayLegacyCamera(false, fpsList[0], WARM_UP_NS, false);
+        replayLegacyCamera(true, fpsList[0], WARM_UP_NS, false);
+        replayCamera2(samples, first[0], first[1], fpsList[0], WARM_UP_NS, false);
+
+        for (int fps : fpsList) {
+            replayLegacyCamera(false, fps, durationNs, true);
+            replayLegacyCamera(true, fps, durationNs, true);
+            for (int[] size : sizes) {
+                replayCamera2(samples, size[0], size[1], fps, durationNs, true);
+            }
+        }
+        if (dumpTrace) {
+            TraceLog.dump("replay");
+        }
+
+        if (probe) {
+            System.out.println("Latency probe markers not read back: " + probeMisses);
+        }
+        boolean passed = true;
+        for (FrameStats stats : results) {
+            System.out.println(stats.report());
+            if (stats.getMissedRatio() * 100 > maxMissedPercent) {
+                passed = false;
+            }
+        }
+        System.out.println(passed ? "PASS" : "FAIL: more than " + maxMissedPercent +
+                "% deadlines missed");
+        return passed;
+    }
+
+    /**
+     * open, setPreviewCallback, then startPreview / stopPreview for each size in turn.
+     */
+    private void replayLegacyCamera(boolean video, int fps, long durationNs, boolean keep) {
+        LegacyCameraReplay camera = LegacyCameraReplay.open(openSource(), video);
+        camera.setPreviewCallback(new LegacyCameraReplay.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, LegacyCameraReplay camera) {
+                if (data == null) return;
+                // Touch every page like an app copying the frame out would.
+                int sum = 0;
+                for (int i = 0; i < data.length; i += 4096) {
+                    sum += data[i];
+                }
+                frameChecksum = sum;
+                if (probe && !LatencyProbe.decode(data, camera.getPreviewWidth(),
+                        camera.getPreviewWidth(), camera.getPreviewHeight(), probeMarker)) {
+                    ++probeMisses;
+                }
+            }
+        });
+        camera.setLatencyProbe(probe);
+        for (int[] size : sizes) {
+            camera.setPreviewSize(size[0], size[1]);
+            FrameStats stats = new FrameStats("camera1 " + (video ? "video " : "source ") +
+                    size[0] + "x" + size[1] + "@" + fps, maxFrames(fps, durationNs));
+            camera.startPreview();
+            camera.runPreview(fps, durationNs, stats);
+            camera.stopPreview();
+            if (keep) {
+                results.add(stats);
+            }
+        }
+        camera.release();
+    }
+
+    private void replayCamera2(SampleCache samples, int width, int height, int fps,
+                               long durationNs, boolean keep) throws InterruptedException {
+        FrameSource source = openSource();
+        Camera2Replay camera = new Camera2Replay(source, samples, maxImages, consumerWorkNs);
+        String name = width + "x" + height + "@" + fps;
+        FrameStats producerStats = new FrameStats("camera2 produce " + name,
+                maxFrames(fps, durationNs));
+        FrameStats consumerStats = new FrameStats("camera2 acquire " + name,
+                maxFrames(fps, durationNs));
+        camera.runSession(width, height, fps, durationNs, producerStats, consumerStats);
+        source.release();
+        if (keep) {
+            results.add(producerStats);
+            results.add(consumerStats);
+        }
+    }
+
+    private static int maxFrames(int fps, long durationNs) {
+        return (int) (durationNs * fps / 1_000_000_000L) + 1;
+    }
+
+    private static SampleCache createSyntheticSamples() {
+        SampleCache samples = new SampleCache(SYNTHETIC_SAMPLES * SYNTHETIC_SAMPLE_SIZE);
+        ByteBuffer sample = ByteBuffer.allocate(SYNTHETIC_SYNC_SIZE);
+        for (int i = 0; i < SYNTHETIC_SAMPLES; i++) {
+            boolean sync = i % SYNTHETIC_GOP == 0;
+            sample.clear();
+            sample.limit(sync ? SYNTHETIC_SYNC_SIZE : SYNTHETIC_SAMPLE_SIZE);
+            // Annex-B start code and NAL header: IDR, non-reference or reference slice.
+            sample.put(new byte[]{0, 0, 0, 1});
+            sample.put((byte) (sync ? 0x65 : (i & 1) == 1 ? 0x01 : 0x41));
+            while (sample.hasRemaining()) {
+                sample.put((byte) (sample.position() + i));
+            }
+            sample.flip();
+            samples.addSample(sample, i * 33333L, sync ? SampleCache.FLAG_SYNC : 0);
+        }
+        return samples;
+    }
+}
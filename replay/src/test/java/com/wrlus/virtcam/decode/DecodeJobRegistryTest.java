@@ -0,0 +1,61 @@
+package com.wrlus.virtcam.decode;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Users of {@link DecodeJobRegistry} jobs and the names of their frame directories.
+ */
+public class DecodeJobRegistryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void jobLeavesWithItsLastUser() throws IOException {
+        File clip = folder.newFile("clip.mp4");
+        DecodeJob first = DecodeJobRegistry.obtain(clip, "NV21");
+        DecodeJob second = DecodeJobRegistry.obtain(clip, "NV21");
+        assertSame(first, second);
+        assertFalse(DecodeJobRegistry.release(first));
+        assertTrue(DecodeJobRegistry.contains(first.getKey()));
+        assertTrue(DecodeJobRegistry.release(second));
+        assertFalse(DecodeJobRegistry.contains(first.getKey()));
+        assertNotSame(first, DecodeJobRegistry.obtain(clip, "NV21"));
+    }
+
+    @Test
+    public void replacedFailedJobIsNotReleased() throws IOException {
+        File clip = folder.newFile("clip.mp4");
+        DecodeJob failed = DecodeJobRegistry.obtain(clip, "NV21_640x480");
+        assertTrue(failed.tryStart());
+        failed.fail();
+        DecodeJob retry = DecodeJobRegistry.obtain(clip, "NV21_640x480");
+        assertNotSame(failed, retry);
+        // The retry decodes into the same directory, it must keep its frames.
+        assertFalse(DecodeJobRegistry.release(failed));
+        assertTrue(DecodeJobRegistry.contains(retry.getKey()));
+        assertTrue(retry.tryStart());
+        retry.finish(Collections.<String>emptyList());
+        assertTrue(DecodeJobRegistry.release(retry));
+    }
+
+    @Test
+    public void hashedKeysDifferForEveryVariant() throws IOException {
+        File clip = folder.newFile("clip.mp4");
+        String small = DecodeJobRegistry.hashKey(DecodeJobRegistry.key(clip, "NV21_320x240"));
+        String large = DecodeJobRegistry.hashKey(DecodeJobRegistry.key(clip, "NV21_640x480"));
+        assertNotEquals(small, large);
+        assertTrue(small.matches("[0-9a-f]{40}"));
+    }
+}
@@ -0,0 +1,126 @@
+package com.wrlus.virtcam.decode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * GOP head decoding of {@link GopThinner} and the decode interval of
+ * {@link DeliveryGovernor} which drives it.
+ */
+public class GopThinnerTest {
+    private static final long FRAME_US = 33333;
+    private static final int GOP = 30;
+
+    /**
+     * Run GOPs of IPPP samples through the thinner like LoopingDecoder does.
+     *
+     * @return mapped times of the decoded samples.
+     */
+    private static List<Long> run(GopThinner thinner, int gops, int interval) {
+        List<Long> decoded = new ArrayList<>();
+        for (int sample = 0; sample < gops * GOP; sample++) {
+            long timeUs = sample * FRAME_US;
+            if (sample % GOP == 0) {
+                boolean last = sample / GOP == gops - 1;
+                thinner.startGop(timeUs, GOP, last ? Long.MAX_VALUE : timeUs + GOP * FRAME_US,
+                        FRAME_US, interval);
+            }
+            if (thinner.shouldDecode(timeUs)) {
+                decoded.add(thinner.mapSampleTime(timeUs));
+            }
+        }
+        return decoded;
+    }
+
+    @Test
+    public void everythingIsDecodedAtIntervalOne() {
+        List<Long> decoded = run(new GopThinner(), 3, 1);
+        assertEquals(3 * GOP, decoded.size());
+        for (int i = 0; i < decoded.size(); i++) {
+            assertEquals(i * FRAME_US, (long) decoded.get(i));
+        }
+    }
+
+    @Test
+    public void headOfEveryGopIsSpreadOverIt() {
+        List<Long> decoded = run(new GopThinner(), 4, 3);
+        assertEquals(4 * GOP / 3, decoded.size());
+        // One consumer interval apart, every GOP starting on its sync sample.
+        for (int i = 0; i < decoded.size(); i++) {
+            assertEquals(i * 3 * FRAME_US, (long) decoded.get(i));
+        }
+    }
+
+    @Test
+    public void unevenIntervalStaysBeforeNextGop() {
+        List<Long> decoded = run(new GopThinner(), 2, 4);
+        // Eight of thirty samples per GOP, none mapped past the next sync sample.
+        assertEquals(16, decoded.size());
+        for (int i = 1; i < decoded.size(); i++) {
+            assertTrue(decoded.get(i) > decoded.get(i - 1));
+        }
+        assertTrue(decoded.get(7) < GOP * FRAME_US);
+        assertEquals(GOP * FRAME_US, (long) decoded.get(8));
+    }
+
+    @Test
+    public void resetDecodesEverythingUntilNextGop() {
+        GopThinner thinner = new GopThinner();
+        thinner.startGop(0, GOP, GOP * FRAME_US, FRAME_US, 5);
+        thinner.reset();
+        for (int i = 0; i < GOP; i++) {
+            assertTrue(thinner.shouldDecode(i * FRAME_US));
+            assertEquals(i * FRAME_US, thinner.mapSampleTime(i * FRAME_US));
+        }
+    }
+
+    @Test
+    public void leadingPicturesAfterSkippedTailAreSkipped() {
+        GopThinner thinner = new GopThinner();
+        thinner.startGop(0, GOP, GOP * FRAME_US, FRAME_US, 1);
+        for (int i = 0; i < GOP; i++) {
+            assertTrue(thinner.shouldDecode(i * FRAME_US));
+        }
+        // Open GOP: sync sample, then two pictures presented before it.
+        long syncUs = GOP * FRAME_US;
+        thinner.startGop(syncUs, GOP, 2 * syncUs, FRAME_US, 3);
+        assertTrue(thinner.shouldDecode(syncUs));
+        // Nothing was skipped before, their references are there.
+        assertTrue(thinner.shouldDecode(syncUs - 2 * FRAME_US));
+        for (int i = 2; i < GOP; i++) {
+            thinner.shouldDecode(syncUs + i * FRAME_US);
+        }
+        // Tail of the second GOP was skipped, leading pictures of the third go too.
+        thinner.startGop(2 * syncUs, GOP, Long.MAX_VALUE, FRAME_US, 3);
+        assertTrue(thinner.shouldDecode(2 * syncUs));
+        assertFalse(thinner.shouldDecode(2 * syncUs - 2 * FRAME_US));
+        assertTrue(thinner.shouldDecode(2 * syncUs + FRAME_US));
+    }
+
+    @Test
+    public void governorThinsOnlySlowConsumers() {
+        DeliveryGovernor governor = new DeliveryGovernor("test");
+        governor.setFrameDurationUs(FRAME_US);
+        long nowNs = 1_000_000_000L;
+        // Consumer at the video rate.
+        for (int i = 0; i < 20; i++) {
+            governor.onConsumerAcquire(4, nowNs);
+            governor.onConsumerRelease(nowNs + 1000);
+            nowNs += FRAME_US * 1000;
+        }
+        assertEquals(1, governor.getDecodeInterval());
+        // Consumer at a third of it, 10 fps for a 30 fps video.
+        for (int i = 0; i < 40; i++) {
+            governor.onConsumerAcquire(4, nowNs);
+            governor.onConsumerRelease(nowNs + 1000);
+            nowNs += 3 * FRAME_US * 1000;
+        }
+        assertEquals(3, governor.getDecodeInterval());
+    }
+}
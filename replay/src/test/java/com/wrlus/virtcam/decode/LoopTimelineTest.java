@@ -0,0 +1,166 @@
+package com.wrlus.virtcam.decode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Feed clips through {@link LoopTimeline} the way LoopingDecoder does over several loop
+ * boundaries, render every frame when due and check the gaps between rendered frames.
+ */
+public class LoopTimelineTest {
+    private static final long FRAME_US = 33333;
+    private static final long PERIOD_NS = FRAME_US * 1000;
+    private static final long START_NS = 1_000_000_000L;
+
+    /**
+     * Sample times in decode order of a clip with I P B B ordering, like H.264 main profile.
+     */
+    private static long[] reorderedClip(int frames, long firstUs) {
+        List<Integer> order = new ArrayList<>();
+        order.add(0);
+        int p = 3;
+        for (; p < frames; p += 3) {
+            order.add(p);
+            order.add(p - 2);
+            order.add(p - 1);
+        }
+        for (int i = p - 2; i < frames; i++) {
+            if (i > 0) order.add(i);
+        }
+        long[] times = new long[order.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = firstUs + order.get(i) * FRAME_US;
+        }
+        return times;
+    }
+
+    /**
+     * Queue loops of clips in turn, output frames in presentation order within each loop
+     * and render them when due.
+     *
+     * @return render times of all frames.
+     */
+    private static List<Long> run(LoopTimeline timeline, long[][] clips, int loops,
+                                  long periodNs, boolean fixedRate) {
+        List<Long> output = new ArrayList<>();
+        for (int loop = 0; loop < loops; loop++) {
+            long[] clip = clips[loop % clips.length];
+            if (loop > 0) {
+                timeline.startLoop(clip[0], FRAME_US);
+            }
+            List<Long> loopOutput = new ArrayList<>();
+            for (long sampleTimeUs : clip) {
+                loopOutput.add(timeline.onInputSample(sampleTimeUs));
+            }
+            // The decoder reorders within a loop, never across the boundary.
+            Collections.sort(loopOutput);
+            output.addAll(loopOutput);
+        }
+        List<Long> renderTimes = new ArrayList<>();
+        long nowNs = START_NS;
+        for (long presentationTimeUs : output) {
+            // Decoder runs ahead, the frame comes out when the previous one was rendered.
+            long dueNs = timeline.getRenderTimeNs(presentationTimeUs, periodNs, fixedRate, nowNs);
+            nowNs = Math.max(nowNs, dueNs);
+            timeline.onRendered(nowNs);
+            timeline.onOutput(presentationTimeUs);
+            renderTimes.add(nowNs);
+        }
+        return renderTimes;
+    }
+
+    private static void assertEvenlySpaced(List<Long> renderTimes, long periodNs) {
+        for (int i = 1; i < renderTimes.size(); i++) {
+            long gapNs = renderTimes.get(i) - renderTimes.get(i - 1);
+            assertEquals("gap before frame " + i, periodNs, gapNs);
+        }
+    }
+
+    @Test
+    public void loopsOfOneClipAreGapless() {
+        LoopTimeline timeline = new LoopTimeline();
+        List<Long> renderTimes = run(timeline, new long[][]{reorderedClip(31, 0)}, 5,
+                PERIOD_NS, false);
+        assertEquals(31 * 5, renderTimes.size());
+        assertEvenlySpaced(renderTimes, PERIOD_NS);
+        assertTrue(timeline.getWorstGapNs() <= PERIOD_NS);
+        assertEquals(4, timeline.getLoopCount());
+    }
+
+    @Test
+    public void clipSwitchesWithOtherStartTimesAreGapless() {
+        LoopTimeline timeline = new LoopTimeline();
+        // Second clip starts late in its own time, e.g. an edit list or a cut.
+        long[][] clips = {reorderedClip(31, 0), reorderedClip(20, 2_000_000)};
+        List<Long> renderTimes = run(timeline, clips, 6, PERIOD_NS, false);
+        assertEvenlySpaced(renderTimes, PERIOD_NS);
+        assertTrue(timeline.getWorstGapNs() <= PERIOD_NS);
+        assertEquals(5, timeline.getLoopCount());
+    }
+
+    @Test
+    public void skippedSamplesKeepTheirTime() {
+        LoopTimeline timeline = new LoopTimeline();
+        long[] clip = reorderedClip(31, 0);
+        List<Long> output = new ArrayList<>();
+        for (int loop = 0; loop < 3; loop++) {
+            if (loop > 0) timeline.startLoop(clip[0], FRAME_US);
+            for (int i = 0; i < clip.length; i++) {
+                if (clip[i] == 30 * FRAME_US) {
+                    // Last frame of the loop dropped as disposable.
+                    timeline.onSkippedSample(clip[i]);
+                } else {
+                    output.add(timeline.onInputSample(clip[i]));
+                }
+            }
+        }
+        // Next loop starts one frame after the skipped sample, not on top of it.
+        long loopLengthUs = 31 * FRAME_US;
+        assertTrue(output.contains(loopLengthUs));
+        assertTrue(output.contains(2 * loopLengthUs));
+    }
+
+    @Test
+    public void forcedRateIgnoresClipTimestamps() {
+        LoopTimeline timeline = new LoopTimeline();
+        long periodNs = 1_000_000_000L / 120;
+        List<Long> renderTimes = run(timeline, new long[][]{reorderedClip(31, 0)}, 4,
+                periodNs, true);
+        assertEvenlySpaced(renderTimes, periodNs);
+        assertTrue(timeline.getWorstGapNs() <= periodNs);
+    }
+
+    @Test
+    public void stallReanchorsInsteadOfBursting() {
+        LoopTimeline timeline = new LoopTimeline();
+        long dueNs = timeline.getRenderTimeNs(0, PERIOD_NS, false, START_NS);
+        assertEquals(START_NS, dueNs);
+        // App paused for a second, the next frame is due now and the one after a period later.
+        long resumeNs = START_NS + 1_000_000_000L;
+        assertEquals(resumeNs, timeline.getRenderTimeNs(FRAME_US, PERIOD_NS, false, resumeNs));
+        assertEquals(resumeNs + PERIOD_NS,
+                timeline.getRenderTimeNs(2 * FRAME_US, PERIOD_NS, false, resumeNs));
+    }
+
+    @Test
+    public void loopEndReportsItsWorstGap() {
+        LoopTimeline timeline = new LoopTimeline();
+        timeline.onInputSample(0);
+        timeline.onInputSample(FRAME_US);
+        timeline.startLoop(0, FRAME_US);
+        timeline.onInputSample(0);
+        timeline.onRendered(START_NS);
+        assertEquals(-1, timeline.onOutput(0));
+        timeline.onRendered(START_NS + PERIOD_NS);
+        assertEquals(-1, timeline.onOutput(FRAME_US));
+        timeline.onRendered(START_NS + 2 * PERIOD_NS);
+        assertEquals(PERIOD_NS, timeline.onOutput(2 * FRAME_US));
+        assertEquals(1, timeline.getLoopCount());
+    }
+}
@@ -0,0 +1,83 @@
+package com.wrlus.virtcam.decode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reference checks of {@link NalUnits} on H.264 and HEVC NAL headers.
+ */
+public class NalUnitsTest {
+    private static final String AVC = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final String HEVC = MediaFormat.MIMETYPE_VIDEO_HEVC;
+
+    /**
+     * Annex-B sample of NAL units given by their header bytes, each with a short payload.
+     */
+    private static ByteBuffer sample(int[]... headers) {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (int[] header : headers) {
+            buffer.put(new byte[]{0, 0, 0, 1});
+            for (int b : header) {
+                buffer.put((byte) b);
+            }
+            buffer.put(new byte[]{(byte) 0x88, 0x40});
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean isDisposable(ByteBuffer sample, String mime, int maxTemporalId) {
+        return NalUnits.isDisposable(sample, sample.limit(), mime, maxTemporalId);
+    }
+
+    /**
+     * HEVC NAL header of type and TemporalId.
+     */
+    private static int[] hevc(int type, int temporalId) {
+        return new int[]{type << 1, temporalId + 1};
+    }
+
+    @Test
+    public void avcNonReferenceSlicesAreDisposable() {
+        // nal_ref_idc 0, non-IDR slice.
+        assertTrue(isDisposable(sample(new int[]{0x01}), AVC, -1));
+        // Typical phone streams: every slice has nal_ref_idc != 0.
+        assertFalse(isDisposable(sample(new int[]{0x21}), AVC, -1));
+        assertFalse(isDisposable(sample(new int[]{0x65}), AVC, -1));
+        // SEI before the slice is skipped.
+        assertTrue(isDisposable(sample(new int[]{0x06}, new int[]{0x01}), AVC, -1));
+    }
+
+    @Test
+    public void hevcSubLayerNonReferenceOnlyInHighestSubLayer() {
+        // TRAIL_N in the only sub-layer.
+        assertTrue(isDisposable(sample(hevc(0, 0)), HEVC, 0));
+        // TRAIL_N of sub-layer 0 may be referenced by sub-layer 1 pictures.
+        assertFalse(isDisposable(sample(hevc(0, 0)), HEVC, 1));
+        assertTrue(isDisposable(sample(hevc(0, 1)), HEVC, 1));
+        // RASL_N in the highest sub-layer, after a prefix SEI.
+        assertTrue(isDisposable(sample(hevc(39, 0), hevc(8, 0)), HEVC, 0));
+        // TRAIL_R and IDR are references.
+        assertFalse(isDisposable(sample(hevc(1, 0)), HEVC, 0));
+        assertFalse(isDisposable(sample(hevc(19, 0)), HEVC, 0));
+        // Without the sub-layer count nothing is dropped.
+        assertFalse(isDisposable(sample(hevc(0, 0)), HEVC, -1));
+    }
+
+    @Test
+    public void hevcMaxTemporalIdIsReadFromSps() {
+        // VPS, then SPS with sps_video_parameter_set_id 0 and sps_max_sub_layers_minus1 2.
+        ByteBuffer csd = sample(new int[]{0x40, 0x01, 0x0c}, new int[]{0x42, 0x01, 0x04});
+        assertEquals(2, NalUnits.getMaxTemporalId(csd));
+        assertEquals(0, NalUnits.getMaxTemporalId(sample(new int[]{0x42, 0x01, 0x01})));
+        assertEquals(-1, NalUnits.getMaxTemporalId(sample(new int[]{0x40, 0x01, 0x0c})));
+        assertEquals(-1, NalUnits.getMaxTemporalId(null));
+    }
+}
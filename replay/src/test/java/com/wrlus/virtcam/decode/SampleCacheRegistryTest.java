@@ -0,0 +1,106 @@
+package com.wrlus.virtcam.decode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Loading samples of {@link SampleCacheRegistry} into a buffer of the source file size.
+ */
+public class SampleCacheRegistryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Serve the given samples in order, filled with their index, like MediaExtractor does
+     * with a buffer and offset.
+     */
+    private static MediaExtractor extractor(final int[] sampleSizes) {
+        return new MediaExtractor() {
+            private int index = 0;
+
+            @Override
+            public int readSampleData(ByteBuffer buffer, int offset) {
+                if (index >= sampleSizes.length) {
+                    return -1;
+                }
+                int size = sampleSizes[index];
+                if (buffer.capacity() - offset < size) {
+                    throw new IllegalArgumentException("Buffer too small");
+                }
+                for (int i = 0; i < size; i++) {
+                    buffer.put(offset + i, (byte) index);
+                }
+                return size;
+            }
+
+            @Override
+            public long getSampleTime() {
+                return index * 33333L;
+            }
+
+            @Override
+            public int getSampleFlags() {
+                return index % 30 == 0 ? SAMPLE_FLAG_SYNC : 0;
+            }
+
+            @Override
+            public boolean advance() {
+                return ++index < sampleSizes.length;
+            }
+        };
+    }
+
+    private File writeSource(int size) throws IOException {
+        File file = folder.newFile("clip.mp4");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file;
+    }
+
+    @Test
+    public void capacityStaysAtFileSize() throws IOException {
+        // Samples fill the whole file, the last ones far below the declared maximum.
+        int[] sampleSizes = new int[90];
+        int total = 0;
+        for (int i = 0; i < sampleSizes.length; i++) {
+            sampleSizes[i] = i % 30 == 0 ? 40000 : 3000 + i * 7;
+            total += sampleSizes[i];
+        }
+        File source = writeSource(total);
+        MediaFormat format = new MediaFormat();
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 1024 * 1024);
+        SampleCache cache = SampleCacheRegistry.load(source, extractor(sampleSizes), format);
+        assertNotNull(cache);
+        assertEquals(total, cache.getCapacity());
+        assertEquals(total, cache.getDataSize());
+        assertEquals(90, cache.getSampleCount());
+        assertEquals(3, cache.getSyncSampleCount());
+        ByteBuffer sample = ByteBuffer.allocate(40000);
+        assertEquals(sampleSizes[89], cache.readSample(89, sample));
+        assertEquals(89, sample.get(0));
+    }
+
+    @Test
+    public void defaultMaximumDoesNotGrowSmallFiles() throws IOException {
+        int[] sampleSizes = {500, 200, 300};
+        File source = writeSource(1200);
+        SampleCache cache = SampleCacheRegistry.load(source, extractor(sampleSizes),
+                new MediaFormat());
+        assertNotNull(cache);
+        assertEquals(1200, cache.getCapacity());
+        assertEquals(1000, cache.getDataSize());
+    }
+}
@@ -0,0 +1,155 @@
+package com.wrlus.virtcam.decode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content keys and publishing of {@link SharedSampleStore}.
+ */
+public class SharedSampleStoreTest {
+    private static final int SOURCE_SIZE = 3 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeSource(String name, long seed) throws IOException {
+        byte[] content = new byte[SOURCE_SIZE];
+        new Random(seed).nextBytes(content);
+        File file = folder.newFile(name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    /**
+     * Flip one byte in the middle of file, away from head and tail.
+     */
+    private static void touchMiddle(File file) throws IOException {
+        long modified = file.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(SOURCE_SIZE / 2);
+            int value = raf.read();
+            raf.seek(SOURCE_SIZE / 2);
+            raf.write(value ^ 0xff);
+        }
+        // Coarse mtime may not have moved on its own.
+        file.setLastModified(modified + 2000);
+    }
+
+    private static SampleCache samples(int count) {
+        SampleCache cache = new SampleCache(1024);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer sample = ByteBuffer.wrap(new byte[]{(byte) i, (byte) (i * 3), 7});
+            cache.addSample(sample, i * 33333L, i % 10 == 0 ? SampleCache.FLAG_SYNC : 0);
+        }
+        return cache;
+    }
+
+    private static SharedSampleStore.Loader countingLoader(AtomicInteger loads, int count) {
+        return new SharedSampleStore.Loader() {
+            @Override
+            public SampleCache load() {
+                loads.incrementAndGet();
+                return samples(count);
+            }
+        };
+    }
+
+    @Test
+    public void copiesShareTheKey() throws IOException {
+        File source = writeSource("a.mp4", 1);
+        File copy = writeSource("b.mp4", 1);
+        assertEquals(SharedSampleStore.contentKey(source), SharedSampleStore.contentKey(copy));
+        assertNotEquals(SharedSampleStore.contentKey(source),
+                SharedSampleStore.contentKey(writeSource("c.mp4", 2)));
+    }
+
+    @Test
+    public void keyCoversTheMiddleOfTheFile() throws IOException {
+        File source = writeSource("a.mp4", 1);
+        String key = SharedSampleStore.contentKey(source);
+        touchMiddle(source);
+        assertNotEquals(key, SharedSampleStore.contentKey(source));
+    }
+
+    @Test
+    public void publishedSamplesAreMappedWithoutLoading() throws IOException {
+        File dir = folder.newFolder("cache");
+        File source = writeSource("a.mp4", 1);
+        AtomicInteger loads = new AtomicInteger();
+        SampleCache published = SharedSampleStore.obtain(dir, source, countingLoader(loads, 25));
+        assertNotNull(published);
+        assertEquals(1, loads.get());
+        SampleCache mapped = SharedSampleStore.obtain(dir, source,
+                new SharedSampleStore.Loader() {
+                    @Override
+                    public SampleCache load() {
+                        fail("Published samples loaded again");
+                        return null;
+                    }
+                });
+        assertNotNull(mapped);
+        assertEquals(25, mapped.getSampleCount());
+        assertEquals(3, mapped.getSyncSampleCount());
+        ByteBuffer sample = ByteBuffer.allocate(16);
+        for (int i = 0; i < 25; i++) {
+            assertEquals(3, mapped.readSample(i, sample));
+            assertEquals((byte) (i * 3), sample.get(1));
+            assertEquals(i * 33333L, mapped.getSampleTimeUs(i));
+        }
+    }
+
+    @Test
+    public void changedSourceIsLoadedAgain() throws IOException {
+        File dir = folder.newFolder("cache");
+        File source = writeSource("a.mp4", 1);
+        AtomicInteger loads = new AtomicInteger();
+        SharedSampleStore.obtain(dir, source, countingLoader(loads, 5));
+        touchMiddle(source);
+        SampleCache cache = SharedSampleStore.obtain(dir, source, countingLoader(loads, 8));
+        assertEquals(2, loads.get());
+        assertEquals(8, cache.getSampleCount());
+    }
+
+    @Test
+    public void damagedSampleDataIsLoadedAgain() throws IOException {
+        File dir = folder.newFolder("cache");
+        File source = writeSource("a.mp4", 1);
+        AtomicInteger loads = new AtomicInteger();
+        SharedSampleStore.obtain(dir, source, countingLoader(loads, 25));
+        File[] published = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(".vsc");
+            }
+        });
+        assertNotNull(published);
+        assertEquals(1, published.length);
+        // Index stays intact, only the last sample byte changes.
+        try (RandomAccessFile raf = new RandomAccessFile(published[0], "rw")) {
+            raf.seek(raf.length() - 1);
+            int value = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(value ^ 0xff);
+        }
+        SampleCache cache = SharedSampleStore.obtain(dir, source, countingLoader(loads, 25));
+        assertEquals(2, loads.get());
+        assertEquals(25, cache.getSampleCount());
+    }
+}
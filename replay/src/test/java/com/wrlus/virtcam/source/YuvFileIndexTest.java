@@ -0,0 +1,228 @@
+package com.wrlus.virtcam.source;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Y4M header parsing, frame offsets of Y4M and raw files, the raw .desc sidecar and
+ * malformed input of {@link YuvFileIndex}.
+ */
+public class YuvFileIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Y4M stream of frames filled with their index, FRAME headers given per frame.
+     */
+    private static byte[] y4m(String header, int width, int height, String... frameHeaders)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((header + "\n").getBytes(StandardCharsets.US_ASCII));
+        byte[] frame = new byte[YuvFileIndex.frameSize(width, height)];
+        for (int i = 0; i < frameHeaders.length; i++) {
+            out.write((frameHeaders[i] + "\n").getBytes(StandardCharsets.US_ASCII));
+            Arrays.fill(frame, (byte) i);
+            out.write(frame);
+        }
+        return out.toByteArray();
+    }
+
+    private static Properties descriptor(String width, String height, String format) {
+        Properties descriptor = new Properties();
+        if (width != null) descriptor.setProperty("width", width);
+        if (height != null) descriptor.setProperty("height", height);
+        if (format != null) descriptor.setProperty("format", format);
+        return descriptor;
+    }
+
+    private static void assertY4mRejected(String message, byte[] data) {
+        try {
+            YuvFileIndex.parseY4m(ByteBuffer.wrap(data));
+            fail(message);
+        } catch (IOException expected) {
+            // Malformed input is reported, never indexed.
+        }
+    }
+
+    private static void assertRawRejected(String message, Properties descriptor) {
+        try {
+            YuvFileIndex.parseRaw(descriptor, 1 << 20);
+            fail(message);
+        } catch (IOException expected) {
+            // Malformed descriptor is reported, never indexed.
+        }
+    }
+
+    @Test
+    public void y4mHeaderIsParsed() throws IOException {
+        byte[] data = y4m("YUV4MPEG2 W64 H48 F25:1 Ip A1:1 C420jpeg XYSCSS=420JPEG",
+                64, 48, "FRAME");
+        YuvFileIndex index = YuvFileIndex.parseY4m(ByteBuffer.wrap(data));
+        assertEquals(64, index.getWidth());
+        assertEquals(48, index.getHeight());
+        assertEquals(YuvFileIndex.Layout.I420, index.getLayout());
+        assertEquals(40000, index.getFrameDurationUs());
+        assertEquals(64 * 48 * 3 / 2, index.getFrameSize());
+    }
+
+    @Test
+    public void y4mDefaultsTo30Fps() throws IOException {
+        byte[] data = y4m("YUV4MPEG2 W16 H16", 16, 16, "FRAME");
+        YuvFileIndex index = YuvFileIndex.parseY4m(ByteBuffer.wrap(data));
+        assertEquals(33333, index.getFrameDurationUs());
+        // NTSC rate keeps its denominator.
+        data = y4m("YUV4MPEG2 W16 H16 F30000:1001", 16, 16, "FRAME");
+        assertEquals(33366, YuvFileIndex.parseY4m(ByteBuffer.wrap(data)).getFrameDurationUs());
+    }
+
+    @Test
+    public void y4mFrameOffsetsSkipFrameHeaders() throws IOException {
+        String header = "YUV4MPEG2 W16 H8 F30:1 C420";
+        int frameSize = YuvFileIndex.frameSize(16, 8);
+        // Frame headers may carry parameters of their own.
+        byte[] data = y4m(header, 16, 8, "FRAME", "FRAME Ip", "FRAME");
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        YuvFileIndex index = YuvFileIndex.parseY4m(buffer);
+        assertEquals(3, index.getFrameCount());
+        int first = header.length() + 1 + "FRAME\n".length();
+        assertEquals(first, index.getFrameOffset(0));
+        assertEquals(first + frameSize + "FRAME Ip\n".length(), index.getFrameOffset(1));
+        assertEquals(index.getFrameOffset(1) + frameSize + "FRAME\n".length(),
+                index.getFrameOffset(2));
+        for (int i = 0; i < index.getFrameCount(); i++) {
+            assertEquals(i, buffer.get(index.getFrameOffset(i)));
+            assertEquals(i, buffer.get(index.getFrameOffset(i) + frameSize - 1));
+        }
+    }
+
+    @Test
+    public void y4mIndexGrowsPastInitialCapacity() throws IOException {
+        String[] frameHeaders = new String[40];
+        Arrays.fill(frameHeaders, "FRAME");
+        byte[] data = y4m("YUV4MPEG2 W4 H4", 4, 4, frameHeaders);
+        YuvFileIndex index = YuvFileIndex.parseY4m(ByteBuffer.wrap(data));
+        assertEquals(40, index.getFrameCount());
+        assertEquals(39, data[index.getFrameOffset(39)]);
+    }
+
+    @Test
+    public void y4mTruncatedTrailingFrameIsDropped() throws IOException {
+        byte[] data = y4m("YUV4MPEG2 W16 H8", 16, 8, "FRAME", "FRAME");
+        byte[] truncated = Arrays.copyOf(data, data.length - 1);
+        assertEquals(1, YuvFileIndex.parseY4m(ByteBuffer.wrap(truncated)).getFrameCount());
+        // Header only, no frames yet.
+        byte[] headerOnly = y4m("YUV4MPEG2 W16 H8", 16, 8);
+        assertEquals(0, YuvFileIndex.parseY4m(ByteBuffer.wrap(headerOnly)).getFrameCount());
+    }
+
+    @Test
+    public void malformedY4mIsRejected() throws IOException {
+        assertY4mRejected("missing magic", y4m("YUV4MPEG W16 H8", 16, 8, "FRAME"));
+        assertY4mRejected("unterminated header",
+                "YUV4MPEG2 W16 H8".getBytes(StandardCharsets.US_ASCII));
+        assertY4mRejected("missing width", y4m("YUV4MPEG2 H8", 16, 8, "FRAME"));
+        assertY4mRejected("invalid height", y4m("YUV4MPEG2 W16 Hx", 16, 8, "FRAME"));
+        assertY4mRejected("odd width", y4m("YUV4MPEG2 W15 H8", 15, 8, "FRAME"));
+        assertY4mRejected("invalid frame rate", y4m("YUV4MPEG2 W16 H8 Fa:1", 16, 8, "FRAME"));
+        assertY4mRejected("4:4:4 color space", y4m("YUV4MPEG2 W16 H8 C444", 16, 8, "FRAME"));
+        assertY4mRejected("too large", y4m("YUV4MPEG2 W65536 H65536", 2, 2));
+        assertY4mRejected("missing FRAME marker", y4m("YUV4MPEG2 W16 H8", 16, 8, "FRAMX"));
+        byte[] unterminatedFrame = new byte[2048];
+        byte[] header = "YUV4MPEG2 W16 H8\nFRAME".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(header, 0, unterminatedFrame, 0, header.length);
+        assertY4mRejected("unterminated FRAME header", unterminatedFrame);
+    }
+
+    @Test
+    public void rawFrameOffsetsFollowFrameSize() throws IOException {
+        Properties descriptor = descriptor("32", "16", "NV12");
+        descriptor.setProperty("fps", "60");
+        int frameSize = YuvFileIndex.frameSize(32, 16);
+        // Trailing partial frame is ignored.
+        YuvFileIndex index = YuvFileIndex.parseRaw(descriptor, 3L * frameSize + 10);
+        assertEquals(YuvFileIndex.Layout.NV12, index.getLayout());
+        assertEquals(3, index.getFrameCount());
+        assertEquals(16666, index.getFrameDurationUs());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i * frameSize, index.getFrameOffset(i));
+        }
+    }
+
+    @Test
+    public void rawDefaultsToI420At30Fps() throws IOException {
+        YuvFileIndex index = YuvFileIndex.parseRaw(descriptor(" 16 ", "8", null),
+                YuvFileIndex.frameSize(16, 8));
+        assertEquals(16, index.getWidth());
+        assertEquals(YuvFileIndex.Layout.I420, index.getLayout());
+        assertEquals(33333, index.getFrameDurationUs());
+        assertEquals(1, index.getFrameCount());
+    }
+
+    @Test
+    public void malformedRawDescriptorIsRejected() {
+        assertRawRejected("missing width", descriptor(null, "8", "NV21"));
+        assertRawRejected("invalid height", descriptor("16", "eight", "NV21"));
+        assertRawRejected("odd height", descriptor("16", "7", "NV21"));
+        assertRawRejected("zero width", descriptor("0", "8", "NV21"));
+        assertRawRejected("unknown format", descriptor("16", "8", "YUY2"));
+        Properties descriptor = descriptor("16", "8", "NV21");
+        descriptor.setProperty("fps", "fast");
+        assertRawRejected("invalid fps", descriptor);
+    }
+
+    @Test
+    public void descriptorSidecarDescribesRawFile() throws IOException {
+        File raw = folder.newFile("virtual.yuv");
+        assertEquals(raw.getPath() + ".desc", YuvFileSource.getDescriptorFile(raw).getPath());
+        // Two I420 frames of 4x2: Y, then U and V planes of 2x1.
+        byte[] frames = {
+                1, 2, 3, 4, 5, 6, 7, 8, 10, 11, 20, 21,
+                9, 9, 9, 9, 9, 9, 9, 9, 12, 13, 22, 23,
+        };
+        try (FileOutputStream out = new FileOutputStream(raw)) {
+            out.write(frames);
+        }
+        try (FileOutputStream out = new FileOutputStream(YuvFileSource.getDescriptorFile(raw))) {
+            out.write("# 4x2 test clip\nwidth=4\nheight=2\nformat=I420\nfps=15\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        YuvFileSource source = new YuvFileSource(raw);
+        source.prepare(4, 2);
+        YuvFileIndex index = source.getIndex();
+        assertEquals(2, index.getFrameCount());
+        assertEquals(66666, index.getFrameDurationUs());
+        // I420 is served as NV21, chroma interleaved V first.
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 20, 10, 21, 11},
+                source.nextFrame());
+        assertArrayEquals(new byte[]{9, 9, 9, 9, 9, 9, 9, 9, 22, 12, 23, 13},
+                source.nextFrame());
+        source.release();
+    }
+
+    @Test
+    public void rawFileWithoutSidecarServesNothing() throws IOException {
+        File raw = folder.newFile("virtual.yuv");
+        try (FileOutputStream out = new FileOutputStream(raw)) {
+            out.write(new byte[12]);
+        }
+        YuvFileSource source = new YuvFileSource(raw);
+        source.prepare(4, 2);
+        assertNull(source.getIndex());
+        assertNull(source.nextFrame());
+    }
+}
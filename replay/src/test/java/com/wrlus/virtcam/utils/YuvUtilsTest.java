@@ -0,0 +1,58 @@
+package com.wrlus.virtcam.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Rotation of NV21 frames by {@link YuvUtils}.
+ */
+public class YuvUtilsTest {
+    private static byte[] randomFrame(int width, int height) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        new Random(width * 31 + height).nextBytes(frame);
+        return frame;
+    }
+
+    /**
+     * Pixel by pixel rotation by 90 degrees clockwise, chroma pairs follow their 2x2 block.
+     */
+    private static byte[] rotateBy90(byte[] yuv, int width, int height) {
+        int frameSize = width * height;
+        byte[] output = new byte[yuv.length];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int x = height - 1 - j;
+                output[i * height + x] = yuv[j * width + i];
+                int uvIn = frameSize + (j / 2) * width + (i & ~1);
+                int uvOut = frameSize + (i / 2) * height + (x & ~1);
+                output[uvOut] = yuv[uvIn];
+                output[uvOut + 1] = yuv[uvIn + 1];
+            }
+        }
+        return output;
+    }
+
+    @Test
+    public void rotateBy90MatchesPixelByPixel() {
+        // Sizes on and off the tile grid.
+        int[][] sizes = {{640, 480}, {1280, 720}, {2, 2}, {34, 18}, {176, 144}};
+        for (int[] size : sizes) {
+            byte[] frame = randomFrame(size[0], size[1]);
+            byte[] expected = rotateBy90(frame, size[0], size[1]);
+            assertArrayEquals(size[0] + "x" + size[1], expected,
+                    YuvUtils.rotateNV21(frame, size[0], size[1], 90));
+        }
+    }
+
+    @Test
+    public void rotateBy90IntoLargerOutput() {
+        byte[] frame = randomFrame(64, 48);
+        byte[] output = new byte[frame.length + 100];
+        byte[] rotated = YuvUtils.rotateNV21(frame, 64, 48, 90, output);
+        assertArrayEquals(rotateBy90(frame, 64, 48), Arrays.copyOf(rotated, frame.length));
+    }
+}